@@ -22,12 +22,14 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
+import ubic.erminej.analysis.ExecutionPolicy;
 import ubic.erminej.analysis.GeneSetPvalRun;
 import ubic.erminej.data.GeneAnnotations;
 import ubic.erminej.data.GeneScores;
 
 /**
- * Simple API to run ermineJ analyses, using Strings as the initial representations.
+ * Simple API to run ermineJ analyses, using Strings as the initial representations. Analyses run through this API do
+ * not slow themselves down to keep a user interface responsive (see {@link ExecutionPolicy}).
  *
  * @author Paul Pavlidis
  * @version $Id$
@@ -47,6 +49,8 @@ public class ClassScoreSimple {
 
     private GeneSetPvalRun results;
 
+    private ExecutionPolicy executionPolicy = ExecutionPolicy.fullSpeed();
+
     private Settings settings = null;
 
     /**
@@ -68,7 +72,6 @@ public class ClassScoreSimple {
         }
         settings.setQuantile( 50 );
         settings.setMtc( SettingsHolder.MultiTestCorrMethod.FDR );
-
     }
 
     /**
@@ -93,7 +96,7 @@ public class ClassScoreSimple {
     public void run( List<Double> geneScores ) {
         GeneAnnotations geneData = new GeneAnnotations( elements, genes, goAssociations );
         GeneScores scores = new GeneScores( elements, geneScores, geneData, settings );
-        results = new GeneSetPvalRun( settings, scores );
+        results = new GeneSetPvalRun( settings, scores, executionPolicy );
     }
 
     /**
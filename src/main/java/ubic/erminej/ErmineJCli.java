@@ -19,13 +19,19 @@
 package ubic.erminej;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import javax.swing.UIManager;
 
@@ -52,7 +58,12 @@ import ubic.erminej.SettingsHolder.GeneScoreMethod;
 import ubic.erminej.SettingsHolder.Method;
 import ubic.erminej.SettingsHolder.MultiElementHandling;
 import ubic.erminej.SettingsHolder.MultiTestCorrMethod;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
+import ubic.erminej.analysis.ExecutionPolicy;
 import ubic.erminej.analysis.GeneSetPvalRun;
+import ubic.erminej.analysis.OraBatch;
+import ubic.erminej.analysis.OraThreshold;
+import ubic.erminej.data.Gene;
 import ubic.erminej.data.GeneAnnotationParser;
 import ubic.erminej.data.GeneAnnotationParser.Format;
 import ubic.erminej.data.GeneAnnotations;
@@ -96,6 +107,17 @@ public class ErmineJCli {
     protected StatusViewer statusMessenger;
     private File batchFile;
     private CommandLine commandLine;
+
+    /**
+     * Given to the analyses run from the command line: nobody is waiting for a user interface to respond.
+     */
+    private ExecutionPolicy executionPolicy = ExecutionPolicy.fullSpeed();
+
+    /**
+     * If not null, ORA is run on each of the gene lists in this file instead of on a score file.
+     */
+    private File geneListFile = null;
+
     private Options options = new Options();
 
     private boolean saveAllGenes = false;
@@ -104,6 +126,11 @@ public class ErmineJCli {
     // protected Map<String, GeneScores> geneScoreSets;
     private String saveFileName = null;
 
+    /**
+     * If not null, ORA is run at each of these thresholds.
+     */
+    private List<OraThreshold> sweepThresholds = null;
+
     private boolean useCommandLineInterface = true;
 
     /**
@@ -190,10 +217,47 @@ public class ErmineJCli {
      */
     protected GeneSetPvalRun analyze() throws IOException {
         statusMessenger.showProgress( "Starting analysis" );
-        GeneSetPvalRun runResult = new GeneSetPvalRun( settings, geneData, statusMessenger );
+        GeneSetPvalRun runResult = new GeneSetPvalRun( settings, geneData, statusMessenger, executionPolicy );
         return runResult;
     }
 
+    /**
+     * Run ORA on each of the gene lists given with -geneLists, writing the results as they are done.
+     *
+     * @throws java.io.IOException if any.
+     */
+    protected void analyzeGeneLists() throws IOException {
+        Map<String, Collection<Gene>> lists = OraBatch.readGeneLists( geneListFile.getAbsolutePath(), geneData,
+                statusMessenger );
+        statusMessenger.showProgress( "Starting analysis of " + lists.size() + " gene lists" );
+        OraBatch batch = new OraBatch( settings, geneData, statusMessenger );
+        batch.setExecutionPolicy( executionPolicy );
+
+        Writer w = null;
+        try {
+            if ( getSaveFileName() == null ) {
+                w = new BufferedWriter( new PrintWriter( System.out ) );
+            } else {
+                statusMessenger.showProgress( "Writing results to " + getSaveFileName() );
+                w = new BufferedWriter( new FileWriter( getSaveFileName(), false ) );
+            }
+            batch.write( lists, w );
+        } finally {
+            if ( w != null ) w.close();
+        }
+    }
+
+    /**
+     * Run ORA at each of the thresholds given with -sweep.
+     *
+     * @throws java.io.IOException if any.
+     * @return one run per threshold.
+     */
+    protected List<GeneSetPvalRun> analyzeSweep() throws IOException {
+        statusMessenger.showProgress( "Starting analysis at " + sweepThresholds.size() + " thresholds" );
+        return GeneSetPvalRun.oraSweep( settings, geneData, statusMessenger, sweepThresholds, executionPolicy );
+    }
+
     /**
      * <p>
      * batchAnalyze.
@@ -222,9 +286,16 @@ public class ErmineJCli {
 
             settings.setScoreFile( file.getAbsolutePath() );
             statusMessenger.showProgress( "Starting analysis of " + file );
-            GeneSetPvalRun runResult = new GeneSetPvalRun( settings, geneData, statusMessenger );
-            results.add( runResult );
             String outputFile = file.getAbsolutePath().replaceAll( "\\.txt$", "" ) + ".erminej.txt";
+            if ( sweepThresholds != null ) {
+                List<GeneSetPvalRun> runs = analyzeSweep();
+                results.addAll( runs );
+                statusMessenger.showProgress( "Writing results to " + outputFile );
+                ResultsPrinter.write( outputFile, settings, runs );
+                continue;
+            }
+            GeneSetPvalRun runResult = new GeneSetPvalRun( settings, geneData, statusMessenger, executionPolicy );
+            results.add( runResult );
             statusMessenger.showProgress( "Writing results to " + outputFile );
             ResultsPrinter.write( outputFile, runResult, isSaveAllGenes() );
         }
@@ -346,8 +417,14 @@ public class ErmineJCli {
             } else {
 
                 try {
-                    GeneSetPvalRun result = analyze();
-                    ResultsPrinter.write( getSaveFileName(), result, isSaveAllGenes() );
+                    if ( geneListFile != null ) {
+                        analyzeGeneLists();
+                    } else if ( sweepThresholds != null ) {
+                        ResultsPrinter.write( getSaveFileName(), settings, analyzeSweep() );
+                    } else {
+                        GeneSetPvalRun result = analyze();
+                        ResultsPrinter.write( getSaveFileName(), result, isSaveAllGenes() );
+                    }
                 } catch ( Exception e ) {
                     getStatusMessenger().showStatus( "Error During analysis:" + e );
                     e.printStackTrace();
@@ -603,8 +680,8 @@ public class ErmineJCli {
                 .withDescription(
                         "Multiple test correction method: " + SettingsHolder.MultiTestCorrMethod.FWE
                                 + " = Bonferroni FWE, "
-                                // + SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG
-                                //  + " = Westfall-Young (slow), "
+                                + SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG
+                                + " = Westfall-Young (GSR only; slow), "
                                 + SettingsHolder.MultiTestCorrMethod.FDR
                                 + " = Benjamini-Hochberg FDR [default]" );
         OptionBuilder
@@ -620,6 +697,58 @@ public class ErmineJCli {
         options.addOption(
                 OptionBuilder.hasArg().withArgName( "value" ).withDescription( "Seed for random number generation (integer)" ).create( "seed" ) );
 
+        options.addOption( OptionBuilder.hasArg().withArgName( "value" )
+                .withDescription( "Number of threads to use for resampling (default: number of processors)" )
+                .create( "threads" ) );
+
+        options.addOption( OptionBuilder
+                .withDescription( "For the correlation method, compute all the correlations once up front;"
+                        + " large data sets are kept in a file in the data directory and reused by later runs" )
+                .create( "corrmatrix" ) );
+
+        options.addOption( OptionBuilder
+                .withDescription( "For the correlation method, build the null distributions for all gene set sizes"
+                        + " by growing the same random gene sets; faster for large gene sets" )
+                .create( "nested" ) );
+
+        options.addOption( OptionBuilder
+                .withDescription( "Save the expression data in a binary file in the data directory, so later runs"
+                        + " on the same file load faster" )
+                .create( "datacache" ) );
+
+        options.addOption( OptionBuilder
+                .withDescription( "For the correlation method, keep the copy of the expression values used for"
+                        + " correlations in single precision to save memory (the data as read are still kept)" )
+                .create( "float" ) );
+
+        options.addOption( OptionBuilder.hasArg().withArgName( "thresholds" )
+                .withDescription( "For ORA, run at each of these comma-separated score thresholds, or topN for the N"
+                        + " best genes, e.g. 0.001,0.01,0.05,top200; all runs are written to the output file"
+                        + " (overrides -t)" )
+                .create( "sweep" ) );
+
+        options.addOption( OptionBuilder.hasArg().withArgName( "file" )
+                .withDescription( "For ORA, score each gene list in this file instead of using a score file; one list"
+                        + " per line, its name followed by the gene symbols, tab-delimited. Results are written as a"
+                        + " single table. Incompatible with -batch, -s and -sweep" )
+                .create( "geneLists" ) );
+
+        options.addOption( OptionBuilder.hasArg().withArgName( "method" )
+                .withDescription( "How the null distribution is obtained for GSR with the " + GeneScoreMethod.MEAN
+                        + " score: " + NullDistributionMethod.RESAMPLING + " [default], "
+                        + NullDistributionMethod.NORMAL + " (analytic normal approximation) or "
+                        + NullDistributionMethod.EDGEWORTH + " (normal with skewness correction); or "
+                        + NullDistributionMethod.SEQUENTIAL
+                        + " (any score; resample per gene set, stopping early for non-significant sets;"
+                        + " not with -mtc WESTFALLYOUNG)" )
+                .create( "null" ) );
+
+        options.addOption( OptionBuilder.hasArg().withArgName( "value" )
+                .withDescription( "With -null " + NullDistributionMethod.SEQUENTIAL
+                        + ", stop resampling a gene set after this many random sets score at least as well"
+                        + " (default: 10)" )
+                .create( "exceedances" ) );
+
     }
 
     /**
@@ -809,6 +938,7 @@ public class ErmineJCli {
         if ( commandLine.hasOption( 'j' ) ) {
             log.info( "Gene symbols for each term will be output" );
             this.saveAllGenes = true;
+            settings.setSaveAllGenesInOutput( true ); // used when writing sweeps and gene list batches.
 
         }
         if ( commandLine.hasOption( 'k' ) ) {
@@ -870,9 +1000,8 @@ public class ErmineJCli {
                             settings.setMtc( SettingsHolder.MultiTestCorrMethod.FWE );
                             break;
                         case 1:
-                            throw new IllegalArgumentException( "Westfall-Young correction is no longer supported" );
-                            //                            settings.setMtc( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG );
-                            //                            break;
+                            settings.setMtc( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG );
+                            break;
                         case 2:
                             settings.setMtc( SettingsHolder.MultiTestCorrMethod.FDR );
                             break;
@@ -882,9 +1011,11 @@ public class ErmineJCli {
 
                     System.err
                             .println(
-                                    "Please consider switching to the new command line style for this option (FDR or FWE)" );
+                                    "Please consider switching to the new command line style for this option"
+                                            + " (FDR, FWE or WESTFALLYOUNG)" );
                 } else {
-                    System.err.println(  "Multiple test correction must be FDR (Benjamini-Hochberg) or FWE (Bonferroni)" );
+                    System.err.println( "Multiple test correction must be FDR (Benjamini-Hochberg), FWE (Bonferroni)"
+                            + " or WESTFALLYOUNG" );
                     showHelp();
                     return false;
                 }
@@ -892,7 +1023,8 @@ public class ErmineJCli {
                 MultiTestCorrMethod mtcmethod = SettingsHolder.MultiTestCorrMethod.valueOf( arg );
                 settings.setMtc( mtcmethod );
             } catch ( Exception e ) {
-                System.err.println( "Multiple test correction must be FDR (Benjamini-Hochberg) or FWE (Bonferroni)" );
+                System.err.println( "Multiple test correction must be FDR (Benjamini-Hochberg), FWE (Bonferroni)"
+                        + " or WESTFALLYOUNG" );
                 showHelp();
                 return false;
             }
@@ -1070,8 +1202,35 @@ public class ErmineJCli {
             return false;
         }
 
+        if ( commandLine.hasOption( "geneLists" ) ) {
+            if ( !settings.getClassScoreMethod().equals( SettingsHolder.Method.ORA ) ) {
+                System.err.println( "Gene lists (-geneLists) can only be analyzed with ORA" );
+                showHelp();
+                return false;
+            }
+            if ( commandLine.hasOption( "batch" ) || commandLine.hasOption( "s" )
+                    || commandLine.hasOption( "sweep" ) ) {
+                System.err.println( "Cannot combine -geneLists with -batch, -s or -sweep" );
+                showHelp();
+                return false;
+            }
+            if ( !settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.FWE )
+                    && !settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.FDR ) ) {
+                System.err.println( "Gene lists (-geneLists) can only be corrected with FDR or FWE, not "
+                        + settings.getMtc() );
+                showHelp();
+                return false;
+            }
+            geneListFile = new File( commandLine.getOptionValue( "geneLists" ) );
+            if ( !geneListFile.canRead() ) {
+                System.err.println( "Cannot read from gene list file " + geneListFile.getAbsolutePath() );
+                showHelp();
+                return false;
+            }
+        }
+
         if ( !( settings.getClassScoreMethod().equals( SettingsHolder.Method.CORR ) )
-                && settings.getScoreFile() == null ) {
+                && settings.getScoreFile() == null && geneListFile == null ) {
             System.err.println( "You must supply a gene score file if you are not using the correlation method" );
             showHelp();
             return false;
@@ -1089,6 +1248,92 @@ public class ErmineJCli {
             }
         }
 
+        if ( commandLine.hasOption( "threads" ) ) {
+            arg = commandLine.getOptionValue( "threads" );
+            try {
+                int intarg = Integer.parseInt( arg );
+                if ( intarg > 0 )
+                    settings.setNumThreads( intarg );
+                else {
+                    System.err.println( "Number of threads must be greater than 0 (-threads)" );
+                    showHelp();
+                    return false;
+                }
+            } catch ( NumberFormatException e ) {
+                System.err.println( "Number of threads must be an integer" );
+                showHelp();
+                return false;
+            }
+        }
+
+        if ( commandLine.hasOption( "corrmatrix" ) ) {
+            settings.setPrecomputeCorrelations( true );
+        }
+
+        if ( commandLine.hasOption( "nested" ) ) {
+            settings.setNestedCorrelationSampling( true );
+        }
+
+        if ( commandLine.hasOption( "datacache" ) ) {
+            settings.setUseDataMatrixCache( true );
+        }
+
+        if ( commandLine.hasOption( "float" ) ) {
+            settings.setUseSinglePrecision( true );
+        }
+
+        if ( commandLine.hasOption( "sweep" ) ) {
+            if ( !settings.getClassScoreMethod().equals( SettingsHolder.Method.ORA ) ) {
+                System.err.println( "Threshold sweeps (-sweep) are only available for ORA" );
+                showHelp();
+                return false;
+            }
+            try {
+                sweepThresholds = OraThreshold.parseList( commandLine.getOptionValue( "sweep" ) );
+            } catch ( IllegalArgumentException e ) {
+                System.err.println( e.getMessage() );
+                showHelp();
+                return false;
+            }
+        }
+
+        if ( commandLine.hasOption( "null" ) ) {
+            arg = commandLine.getOptionValue( "null" );
+            try {
+                settings.setNullDistributionMethod( NullDistributionMethod.valueOf( arg ) );
+            } catch ( IllegalArgumentException e ) {
+                System.err.println( "Null distribution method must be RESAMPLING, NORMAL, EDGEWORTH or SEQUENTIAL" );
+                showHelp();
+                return false;
+            }
+        }
+
+        if ( settings.getNullDistributionMethod().equals( NullDistributionMethod.SEQUENTIAL )
+                && settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG ) ) {
+            System.err.println( "Westfall-Young correction (-mtc WESTFALLYOUNG) cannot be used with -null "
+                    + NullDistributionMethod.SEQUENTIAL + "; use FDR or FWE" );
+            showHelp();
+            return false;
+        }
+
+        if ( commandLine.hasOption( "exceedances" ) ) {
+            arg = commandLine.getOptionValue( "exceedances" );
+            try {
+                int intarg = Integer.parseInt( arg );
+                if ( intarg > 0 )
+                    settings.setSequentialExceedances( intarg );
+                else {
+                    System.err.println( "Number of exceedances must be greater than 0 (-exceedances)" );
+                    showHelp();
+                    return false;
+                }
+            } catch ( NumberFormatException e ) {
+                System.err.println( "Number of exceedances must be an integer" );
+                showHelp();
+                return false;
+            }
+        }
+
         if ( commandLine.hasOption( 'S' ) ) {
             // saveconfig
             arg = commandLine.getOptionValue( 'S' );
@@ -77,7 +77,8 @@ public class Settings extends SettingsHolder {
             SCORE_COL, MTC_CONFIG_NAME, ITERATIONS, CLASS_FILE, BIG_IS_BETTER, DO_LOG, GENE_REP_TREATMENT,
             ALWAYS_USE_EMPIRICAL, ANNOT_FILE, ANNOT_FORMAT, CLASS_SCORE_METHOD,
             USE_MOL_FUNC, USE_BIOL_PROC, USE_CELL_COMP, USE_USER_DEFINED_GROUPS,
-            CUSTOM_GENESET_FILES, VERSIONPARAM, SEED };
+            CUSTOM_GENESET_FILES, VERSIONPARAM, SEED, NULL_DISTRIBUTION_METHOD,
+            SEQUENTIAL_EXCEEDANCES, NESTED_CORRELATION_SAMPLING, USE_SINGLE_PRECISION };
     //  USE_MULTIFUNCTIONALITY_CORRECTION,
     // FILTER_NONSPECIFIC,
 
@@ -484,6 +485,39 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( CLASS_SCORE_METHOD, val.toString() );
     }
 
+    /**
+     * <p>
+     * setConvergenceCheckFrequency.
+     * </p>
+     *
+     * @param val a int.
+     */
+    public void setConvergenceCheckFrequency( int val ) {
+        this.config.setProperty( CONVERGENCE_CHECK_FREQUENCY, val );
+    }
+
+    /**
+     * <p>
+     * setConvergenceMinStableChecks.
+     * </p>
+     *
+     * @param val a int.
+     */
+    public void setConvergenceMinStableChecks( int val ) {
+        this.config.setProperty( CONVERGENCE_MIN_STABLE_CHECKS, val );
+    }
+
+    /**
+     * <p>
+     * setConvergenceTolerance.
+     * </p>
+     *
+     * @param val a double.
+     */
+    public void setConvergenceTolerance( double val ) {
+        this.config.setProperty( CONVERGENCE_TOLERANCE, val );
+    }
+
     /**
      * <p>
      * setCustomGeneSetDirectory.
@@ -495,6 +529,17 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( CUSTOM_GENE_SET_DIRECTORY_PROPERTY, val );
     }
 
+    /**
+     * <p>
+     * setDataCacheMB.
+     * </p>
+     *
+     * @param val a int; zero keeps only the files in use.
+     */
+    public void setDataCacheMB( int val ) {
+        this.config.setProperty( DATA_CACHE_MB, val );
+    }
+
     /**
      * <p>
      * setDataCol.
@@ -623,6 +668,50 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( MTC_CONFIG_NAME, mtc.toString() );
     }
 
+    /**
+     * <p>
+     * setNestedCorrelationSampling.
+     * </p>
+     *
+     * @param b a boolean.
+     */
+    public void setNestedCorrelationSampling( boolean b ) {
+        this.config.setProperty( NESTED_CORRELATION_SAMPLING, b );
+    }
+
+    /**
+     * <p>
+     * setNullDistributionCacheMB.
+     * </p>
+     *
+     * @param val a int; zero disables the cache.
+     */
+    public void setNullDistributionCacheMB( int val ) {
+        this.config.setProperty( NULL_DISTRIBUTION_CACHE_MB, val );
+    }
+
+    /**
+     * <p>
+     * setNullDistributionMethod.
+     * </p>
+     *
+     * @param val a {@link ubic.erminej.SettingsHolder.NullDistributionMethod} object.
+     */
+    public void setNullDistributionMethod( NullDistributionMethod val ) {
+        this.config.setProperty( NULL_DISTRIBUTION_METHOD, val.toString() );
+    }
+
+    /**
+     * <p>
+     * setNumThreads.
+     * </p>
+     *
+     * @param val a int.
+     */
+    public void setNumThreads( int val ) {
+        this.config.setProperty( NUM_THREADS, val );
+    }
+
     /**
      * Mostly used for testing
      *
@@ -632,6 +721,17 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( OUTPUT_FILE, outputFile );
     }
 
+    /**
+     * <p>
+     * setPrecomputeCorrelations.
+     * </p>
+     *
+     * @param b a boolean.
+     */
+    public void setPrecomputeCorrelations( boolean b ) {
+        this.config.setProperty( PRECOMPUTE_CORRELATIONS, b );
+    }
+
     /**
      * <p>
      * setPrefFile.
@@ -708,6 +808,17 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( SELECTED_CUSTOM_GENESETS, addedClassesIds );
     }
 
+    /**
+     * <p>
+     * setSequentialExceedances.
+     * </p>
+     *
+     * @param val a int.
+     */
+    public void setSequentialExceedances( int val ) {
+        this.config.setProperty( SEQUENTIAL_EXCEEDANCES, val );
+    }
+
     /**
      * <p>
      * setTester.
@@ -741,6 +852,17 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( USE_CELL_COMP, useCellularComponent );
     }
 
+    /**
+     * <p>
+     * setUseDataMatrixCache.
+     * </p>
+     *
+     * @param b a boolean.
+     */
+    public void setUseDataMatrixCache( boolean b ) {
+        this.config.setProperty( USE_DATA_MATRIX_CACHE, b );
+    }
+
     /**
      * <p>
      * setUseMolecularFunction.
@@ -764,6 +886,17 @@ public class Settings extends SettingsHolder {
         this.config.setProperty( USE_MULTIFUNCTIONALITY_CORRECTION, b );
     }
 
+    /**
+     * <p>
+     * setUseSinglePrecision.
+     * </p>
+     *
+     * @param b a boolean.
+     */
+    public void setUseSinglePrecision( boolean b ) {
+        this.config.setProperty( USE_SINGLE_PRECISION, b );
+    }
+
     /**
      * <p>
      * setUserGeneSetDirectory.
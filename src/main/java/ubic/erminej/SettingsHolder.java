@@ -49,6 +49,16 @@ public class SettingsHolder {
         MEAN, MEAN_ABOVE_QUANTILE, PRECISIONRECALL, QUANTILE
     }
 
+    /**
+     * For the gene set resampling method, how the null distribution of gene set scores is obtained. The analytic
+     * methods are only available for {@link GeneScoreMethod#MEAN}; other score methods use resampling. SEQUENTIAL
+     * resamples separately for each gene set and stops early once the p-value is clearly not small (Besag and
+     * Clifford, 1991); it works with any score method.
+     */
+    public enum NullDistributionMethod {
+        EDGEWORTH, NORMAL, RESAMPLING, SEQUENTIAL
+    }
+
     /**
      * Which gene set scoring method to use. PREREC is a subtype of GSR.
      */
@@ -64,10 +74,10 @@ public class SettingsHolder {
     }
 
     /**
-     * How to correct for multiple tests.
+     * How to correct for multiple tests. WESTFALLYOUNG is only available for the gene set resampling method.
      */
     public enum MultiTestCorrMethod {
-        FDR, FWE
+        FDR, FWE, WESTFALLYOUNG
     }
 
     /** Constant <code>defaults</code> */
@@ -95,10 +105,18 @@ public class SettingsHolder {
     protected static final String CLASS_FILE = "classFile";
     /** Constant <code>CLASS_SCORE_METHOD="classScoreMethod"</code> */
     protected static final String CLASS_SCORE_METHOD = "classScoreMethod";
+    /** Constant <code>CONVERGENCE_CHECK_FREQUENCY="convergenceCheckFrequency"</code> */
+    protected static final String CONVERGENCE_CHECK_FREQUENCY = "convergenceCheckFrequency";
+    /** Constant <code>CONVERGENCE_MIN_STABLE_CHECKS="convergenceMinStableChecks"</code> */
+    protected static final String CONVERGENCE_MIN_STABLE_CHECKS = "convergenceMinStableChecks";
+    /** Constant <code>CONVERGENCE_TOLERANCE="convergenceTolerance"</code> */
+    protected static final String CONVERGENCE_TOLERANCE = "convergenceTolerance";
     /** Constant <code>CUSTOM_GENE_SET_DIRECTORY_PROPERTY="classFolder"</code> */
     protected static final String CUSTOM_GENE_SET_DIRECTORY_PROPERTY = "classFolder";
     /** Constant <code>CUSTOM_GENESET_FILES="customGeneSetFiles"</code> */
     protected static final String CUSTOM_GENESET_FILES = "customGeneSetFiles";
+    /** Constant <code>DATA_CACHE_MB="dataCacheMB"</code> */
+    protected static final String DATA_CACHE_MB = "dataCacheMB";
     /** Constant <code>DATA_COL="dataCol"</code> */
     protected static final String DATA_COL = "dataCol"; // in data matrix, where the first data are.
     /** Constant <code>DATA_DIRECTORY="dataDirectory"</code> */
@@ -135,8 +153,18 @@ public class SettingsHolder {
     protected static final String MIN_CLASS_SIZE = "minClassSize";
     /** Constant <code>MTC_CONFIG_NAME="mtc"</code> */
     protected static final String MTC_CONFIG_NAME = "mtc";
+    /** Constant <code>NESTED_CORRELATION_SAMPLING="nestedCorrelationSampling"</code> */
+    protected static final String NESTED_CORRELATION_SAMPLING = "nestedCorrelationSampling";
+    /** Constant <code>NULL_DISTRIBUTION_METHOD="nullDistributionMethod"</code> */
+    protected static final String NULL_DISTRIBUTION_METHOD = "nullDistributionMethod";
+    /** Constant <code>NULL_DISTRIBUTION_CACHE_MB="nullDistributionCacheMB"</code> */
+    protected static final String NULL_DISTRIBUTION_CACHE_MB = "nullDistributionCacheMB";
+    /** Constant <code>NUM_THREADS="numThreads"</code> */
+    protected static final String NUM_THREADS = "numThreads";
     /** Constant <code>OUTPUT_FILE="outputFile"</code> */
     protected static final String OUTPUT_FILE = "outputFile";
+    /** Constant <code>PRECOMPUTE_CORRELATIONS="precomputeCorrelations"</code> */
+    protected static final String PRECOMPUTE_CORRELATIONS = "precomputeCorrelations";
     /** Constant <code>PREFERENCES_FILE_NAME="preferencesFileName"</code> */
     protected static final String PREFERENCES_FILE_NAME = "preferencesFileName";
     /** Constant <code>QUANTILE_CONFIG_NAME="quantile"</code> */
@@ -145,6 +173,8 @@ public class SettingsHolder {
     protected static final String RAW_FILE_CONFIG_NAME = "rawFile";
     /** Constant <code>SAVE_ALL_GENES_IN_OUTPUT="saveAllGenesInOutput"</code> */
     protected static final String SAVE_ALL_GENES_IN_OUTPUT = "saveAllGenesInOutput";
+    /** Constant <code>SEQUENTIAL_EXCEEDANCES="sequentialExceedances"</code> */
+    protected static final String SEQUENTIAL_EXCEEDANCES = "sequentialExceedances";
     /** Constant <code>SEED="seed"</code> */
     protected static final String SEED = "seed";
     /** Constant <code>SCORE_COL="scoreCol"</code> */
@@ -157,8 +187,12 @@ public class SettingsHolder {
     protected static final String USE_BIOL_PROC = "useGOBiologicalProcess";
     /** Constant <code>USE_CELL_COMP="useGOCellularComponent"</code> */
     protected static final String USE_CELL_COMP = "useGOCellularComponent";
+    /** Constant <code>USE_DATA_MATRIX_CACHE="useDataMatrixCache"</code> */
+    protected static final String USE_DATA_MATRIX_CACHE = "useDataMatrixCache";
     /** Constant <code>USE_MOL_FUNC="useGOMolecularFunction"</code> */
     protected static final String USE_MOL_FUNC = "useGOMolecularFunction";
+    /** Constant <code>USE_SINGLE_PRECISION="useSinglePrecision"</code> */
+    protected static final String USE_SINGLE_PRECISION = "useSinglePrecision";
 
     /** Constant <code>USE_USER_DEFINED_GROUPS="useUserDefinedGroups"</code> */
     protected static final String USE_USER_DEFINED_GROUPS = "useUserDefinedGroups";
@@ -397,6 +431,43 @@ public class SettingsHolder {
         return this.getClassScoreMethod().toString();
     }
 
+    /**
+     * How often (in iterations) resampling checks whether the null distribution has converged to a normal, if set.
+     *
+     * @return value or null if it wasn't set, in which case each method uses its own default.
+     */
+    public Integer getConvergenceCheckFrequency() {
+        if ( config.containsKey( CONVERGENCE_CHECK_FREQUENCY ) ) {
+            return config.getInt( CONVERGENCE_CHECK_FREQUENCY );
+        }
+        return null;
+    }
+
+    /**
+     * How many consecutive convergence checks must pass before resampling is stopped in favour of a normal
+     * approximation, if set.
+     *
+     * @return value or null if it wasn't set, in which case each method uses its own default.
+     */
+    public Integer getConvergenceMinStableChecks() {
+        if ( config.containsKey( CONVERGENCE_MIN_STABLE_CHECKS ) ) {
+            return config.getInt( CONVERGENCE_MIN_STABLE_CHECKS );
+        }
+        return null;
+    }
+
+    /**
+     * Largest change in the mean and variance between two convergence checks that counts as stable, if set.
+     *
+     * @return value or null if it wasn't set, in which case each method uses its own default.
+     */
+    public Double getConvergenceTolerance() {
+        if ( config.containsKey( CONVERGENCE_TOLERANCE ) ) {
+            return config.getDouble( CONVERGENCE_TOLERANCE );
+        }
+        return null;
+    }
+
     /**
      * <p>
      * getCustomGeneSetDirectory.
@@ -419,6 +490,18 @@ public class SettingsHolder {
         return new HashSet<>( Arrays.asList( config.getStringArray( CUSTOM_GENESET_FILES ) ) );
     }
 
+    /**
+     * Maximum amount of disk space, in megabytes, used to keep copies of expression data (see
+     * {@link #getUseDataMatrixCache()}), and separately to keep precomputed correlations (see
+     * {@link #getPrecomputeCorrelations()}). The least recently used files are removed beyond this; the ones in use are
+     * always kept.
+     *
+     * @return a int.
+     */
+    public int getDataCacheMB() {
+        return config.getInteger( DATA_CACHE_MB, 4096 );
+    }
+
     /**
      * The first column in the data file that has data in it. This is numbered "naturally" so that 2 means the second
      * column of the file.
@@ -597,6 +680,61 @@ public class SettingsHolder {
                 MultiTestCorrMethod.FDR.toString() ) );
     }
 
+    /**
+     * For the correlation method: whether the null distributions for all gene set sizes are built from the same
+     * random gene sets, each grown one element at a time, so the samples for a size reuse the correlations already
+     * summed for the smaller sizes. Much faster when large gene sets are analyzed; the distribution for each size is
+     * unchanged, but those for different sizes are no longer independent of each other.
+     *
+     * @return a boolean.
+     */
+    public boolean getNestedCorrelationSampling() {
+        return config.getBoolean( NESTED_CORRELATION_SAMPLING, false );
+    }
+
+    /**
+     * Maximum amount of disk space, in megabytes, used to keep null distributions from earlier analyses so they can be
+     * reused. Set to zero to disable the cache.
+     *
+     * @return a int.
+     */
+    public int getNullDistributionCacheMB() {
+        return config.getInteger( NULL_DISTRIBUTION_CACHE_MB, 200 );
+    }
+
+    /**
+     * <p>
+     * getNullDistributionMethod.
+     * </p>
+     *
+     * @return a {@link ubic.erminej.SettingsHolder.NullDistributionMethod} object.
+     */
+    public NullDistributionMethod getNullDistributionMethod() {
+        return NullDistributionMethod.valueOf( config.getString( NULL_DISTRIBUTION_METHOD,
+                NullDistributionMethod.RESAMPLING.toString() ) );
+    }
+
+    /**
+     * How many threads to use for the parts of the analysis that can be run in parallel, such as generating null
+     * distributions. Results do not depend on this setting.
+     *
+     * @return a int, at least 1. Defaults to the number of available processors.
+     */
+    public int getNumThreads() {
+        return Math.max( 1, config.getInteger( NUM_THREADS, Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    /**
+     * For the correlation method: whether to compute the correlations between all pairs of elements once, rather
+     * than for each gene set (see {@link ubic.erminej.analysis.CorrelationTable}). Faster, at the cost of memory or,
+     * for large data sets, disk space.
+     *
+     * @return a boolean.
+     */
+    public boolean getPrecomputeCorrelations() {
+        return config.getBoolean( PRECOMPUTE_CORRELATIONS, false );
+    }
+
     /**
      * <p>
      * getQuantile.
@@ -690,6 +828,16 @@ public class SettingsHolder {
         return new HashSet<>( Arrays.asList( config.getStringArray( SELECTED_CUSTOM_GENESETS ) ) );
     }
 
+    /**
+     * For {@link NullDistributionMethod#SEQUENTIAL}: how many random gene sets scoring at least as well as the real
+     * one are needed before sampling for that gene set stops.
+     *
+     * @return a int, at least 1. Defaults to 10.
+     */
+    public int getSequentialExceedances() {
+        return Math.max( 1, config.getInteger( SEQUENTIAL_EXCEEDANCES, 10 ) );
+    }
+
     /**
      * <p>
      * getStringProperty.
@@ -728,6 +876,16 @@ public class SettingsHolder {
 
     }
 
+    /**
+     * Whether the expression data read for an analysis is also saved in a binary file in the data directory, so later
+     * analyses of the same file can load it without parsing the text again.
+     *
+     * @return a boolean.
+     */
+    public boolean getUseDataMatrixCache() {
+        return config.getBoolean( USE_DATA_MATRIX_CACHE, false );
+    }
+
     /**
      * <p>
      * getUseLog.
@@ -762,6 +920,21 @@ public class SettingsHolder {
 
     }
 
+    /**
+     * For the correlation method: whether the expression values are kept in single precision while computing
+     * correlations, which halves the memory needed for the copy used to compute them. Correlations are still summed in
+     * double precision, but the scores can differ from those computed in double precision in the last few digits.
+     * <p>
+     * Note that the expression data as read, in double precision, are still kept for the whole analysis (they identify
+     * the rows, and the saved null distributions), so this does not reduce the peak memory below that of the data
+     * itself; it only makes the working copy half as large.
+     *
+     * @return a boolean.
+     */
+    public boolean getUseSinglePrecision() {
+        return config.getBoolean( USE_SINGLE_PRECISION, false );
+    }
+
     /**
      * Get the path to the directory where custom gene sets are stored (default should be like
      * ${HOME}/ermineJ.data/genesets). This path is not guaranteed to exist.
@@ -20,8 +20,16 @@ package ubic.erminej.analysis;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ubic.basecode.math.Rank;
 import ubic.basecode.util.StatusStderr;
@@ -41,9 +49,27 @@ import ubic.erminej.data.GeneSetTerm;
  */
 public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
 
+    /**
+     * Computes the result for one gene set. Used with {@link AbstractGeneSetPvalGenerator#scoreGeneSets}, so
+     * implementations must be safe to call from several threads at once.
+     */
+    protected interface GeneSetScorer {
+
+        /**
+         * @param geneSet a {@link ubic.erminej.data.GeneSetTerm} object.
+         * @return the result, or null if the gene set is not analyzed.
+         */
+        GeneSetResult score( GeneSetTerm geneSet );
+    }
+
     /** Constant <code>ALERT_UPDATE_FREQUENCY=300</code> */
     protected static final int ALERT_UPDATE_FREQUENCY = 300;
 
+    /**
+     * How many gene sets each parallel task scores.
+     */
+    private static final int GENE_SETS_PER_TASK = 20;
+
     protected StatusViewer messenger = new StatusStderr();
 
     protected SettingsHolder settings;
@@ -62,6 +88,8 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
 
     protected int numGenesUsed = 0;
 
+    protected int numThreads = 1;
+
     private int maxGeneSetSize;
 
     private int minGeneSetSize;
@@ -82,6 +110,7 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
         this.settings = set;
         this.geneAnnots = annots;
         this.geneToScoreMap = geneToScoreMap;
+        this.numThreads = set.getNumThreads();
 
         if ( messenger != null ) this.messenger = messenger;
     }
@@ -160,6 +189,15 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
         return geneAnnots.getGeneSetGenes( t ).size();
     }
 
+    /**
+     * Set how many threads may be used to score the gene sets. Results do not depend on this value.
+     *
+     * @param numThreads a int.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
     /**
      * <p>
      * setClassMaxSize.
@@ -209,7 +247,7 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
 
     /**
      * Perform multiple test correction during the multifunctionality correction. DOES NOT SUPPORT WESTFALL-YOUNG
-     * CORRECTION
+     * CORRECTION; if that was requested, the Benjamini-Hochberg FDR is used here.
      *
      * @param sortedClasses a {@link java.util.List} object.
      * @param results a {@link java.util.Map} object.
@@ -217,10 +255,12 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
     protected void multipleTestCorrect( List<GeneSetTerm> sortedClasses, Map<GeneSetTerm, GeneSetResult> results ) {
         MultipleTestCorrector mt = new MultipleTestCorrector( settings, sortedClasses, geneAnnots, null, results,
                 getMessenger() );
+        mt.setExecutionPolicy( getExecutionPolicy() );
         Settings.MultiTestCorrMethod multipleTestCorrMethod = settings.getMtc();
         if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.FWE ) ) {
             mt.bonferroni();
-        } else if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.FDR ) ) {
+        } else if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.FDR )
+                || multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG ) ) {
             mt.benjaminihochberg();
         } else {
             throw new UnsupportedOperationException( multipleTestCorrMethod
@@ -241,11 +281,16 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
         boolean invert = ( settings.getDoLog() && !settings.getBigIsBetter() )
                 || ( !settings.getDoLog() && settings.getBigIsBetter() );
 
-        if ( this.geneRanks == null ) {
-            geneRanks = Rank.rankTransform( geneToScoreMap, invert );
-            for ( Gene g : geneRanks.keySet() ) {
-                geneRanks.put( g, geneRanks.get( g ) + 1.0 );
+        Map<Gene, Double> geneRanks;
+        synchronized ( this ) {
+            if ( this.geneRanks == null ) {
+                Map<Gene, Double> ranks = Rank.rankTransform( geneToScoreMap, invert );
+                for ( Gene g : ranks.keySet() ) {
+                    ranks.put( g, ranks.get( g ) + 1.0 );
+                }
+                this.geneRanks = ranks;
             }
+            geneRanks = this.geneRanks;
         }
 
         List<Double> targetRanks = new ArrayList<>();
@@ -257,4 +302,79 @@ public abstract class AbstractGeneSetPvalGenerator extends AbstractLongTask {
         return targetRanks;
     }
 
+    /**
+     * Compute the results for all the gene sets, spreading them over the configured number of threads (see
+     * {@link #setNumThreads(int)}). Progress is reported every {@link #ALERT_UPDATE_FREQUENCY} results unless quiet,
+     * and each gene set starts with a check for cancellation.
+     *
+     * @param scorer a {@link ubic.erminej.analysis.AbstractGeneSetPvalGenerator.GeneSetScorer} object.
+     * @param quiet if true, progress is not reported.
+     * @return map of the gene sets that were analyzed to their results.
+     */
+    protected Map<GeneSetTerm, GeneSetResult> scoreGeneSets( final GeneSetScorer scorer, final boolean quiet ) {
+        final List<GeneSetTerm> terms = new ArrayList<>( geneAnnots.getGeneSetTerms() );
+        final Map<GeneSetTerm, GeneSetResult> results = new ConcurrentHashMap<>();
+        final AtomicInteger count = new AtomicInteger( 0 );
+
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for ( int start = 0; start < terms.size(); start += GENE_SETS_PER_TASK ) {
+            final int first = start;
+            final int last = Math.min( terms.size(), start + GENE_SETS_PER_TASK );
+            tasks.add( new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for ( int i = first; i < last; i++ ) {
+                        ifCancelledStop();
+                        GeneSetTerm t = terms.get( i );
+                        GeneSetResult res = scorer.score( t );
+                        if ( res == null ) continue;
+                        results.put( t, res );
+                        int c = count.incrementAndGet();
+                        if ( !quiet && getMessenger() != null && c % ALERT_UPDATE_FREQUENCY == 0 ) {
+                            getMessenger().showProgress( c + " gene sets analyzed" );
+                        }
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        if ( numThreads <= 1 || tasks.size() < 2 ) {
+            for ( Callable<Object> task : tasks ) {
+                try {
+                    task.call();
+                } catch ( RuntimeException e ) {
+                    throw e;
+                } catch ( Exception e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+            return new HashMap<>( results );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( numThreads );
+        try {
+            List<Future<Object>> done = new ArrayList<>();
+            for ( Callable<Object> task : tasks ) {
+                done.add( pool.submit( task ) );
+            }
+            for ( Future<Object> f : done ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            throw new CancellationException( "Cancelled" );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // a plain map, like a sequential run returns. Its iteration order does not matter: results are ranked by
+        // p-value with ties broken by gene set id (GeneSetResult.compareTo), so the ranks do not depend on the threads.
+        return new HashMap<>( results );
+    }
+
 }
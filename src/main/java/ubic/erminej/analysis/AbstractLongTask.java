@@ -18,14 +18,10 @@
  */
 package ubic.erminej.analysis;
 
-import java.util.concurrent.CancellationException;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 /**
  * <p>
- * Abstract AbstractLongTask class.
+ * Abstract AbstractLongTask class. How the task shares the processor, and how it notices it should stop, is decided by
+ * its {@link ExecutionPolicy}.
  * </p>
  *
  * @author pavlidis
@@ -33,19 +29,53 @@ import org.apache.commons.logging.LogFactory;
  */
 public abstract class AbstractLongTask {
 
-    private static Log log = LogFactory.getLog( AbstractLongTask.class.getName() );
+    private ExecutionPolicy executionPolicy = ExecutionPolicy.getDefault();
 
     /**
      * <p>
-     * ifInterruptedStop.
+     * Getter for the field <code>executionPolicy</code>.
      * </p>
+     *
+     * @return a {@link ubic.erminej.analysis.ExecutionPolicy} object.
+     */
+    public ExecutionPolicy getExecutionPolicy() {
+        return executionPolicy;
+    }
+
+    /**
+     * Stop, with a {@link java.util.concurrent.CancellationException}, if the task was cancelled; call often.
      */
     public void ifInterruptedStop() {
-        Thread.yield(); // let another thread have some time perhaps to stop this one.
-        if ( Thread.currentThread().isInterrupted() ) {
-            log.debug( "Interrupted, throwing CancellationException" );
-            throw new CancellationException( "Cancelled" );
-        }
+        executionPolicy.checkpoint();
+    }
+
+    /**
+     * <p>
+     * Setter for the field <code>executionPolicy</code>.
+     * </p>
+     *
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object; defaults to
+     *        {@link ExecutionPolicy#getDefault()}.
+     */
+    public void setExecutionPolicy( ExecutionPolicy executionPolicy ) {
+        if ( executionPolicy == null ) throw new IllegalArgumentException( "Policy cannot be null" );
+        this.executionPolicy = executionPolicy;
+    }
+
+    /**
+     * Stop, with a {@link java.util.concurrent.CancellationException}, if the task was cancelled, without yielding or
+     * sleeping; for use in the worker threads of the task.
+     */
+    protected void ifCancelledStop() {
+        executionPolicy.checkCancelled();
+    }
+
+    /**
+     * Let other threads run for a while, if the policy says so, and stop if the task was cancelled; call every so
+     * often in long loops.
+     */
+    protected void takeABreak() {
+        executionPolicy.pause();
     }
 
 }
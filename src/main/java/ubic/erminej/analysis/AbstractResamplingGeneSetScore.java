@@ -18,12 +18,21 @@
  */
 package ubic.erminej.analysis;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import ubic.erminej.Settings;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.data.Histogram;
+import ubic.erminej.data.HistogramCache;
+import ubic.erminej.data.RandomSource;
+import ubic.erminej.data.SplittableRandomSource;
 
 /**
  * <p>
@@ -61,11 +70,101 @@ public abstract class AbstractResamplingGeneSetScore extends AbstractLongTask im
     protected int classMinSize = 2;
 
     protected int numRuns = 10000;
+    protected int numThreads = 1;
     protected int numClasses = 0;
     protected double histogramMax = 0;
     protected double histogramMin = 0;
     protected Histogram hist = null;
 
+    /**
+     * The sizes of the gene sets that will be scored, if known; null means every size in the range might be needed.
+     */
+    protected SortedSet<Integer> geneSetSizes = null;
+
+    /**
+     * Used for all random sampling done by this instance; never shared with other instances unless explicitly set.
+     */
+    protected RandomSource randomSource = new SplittableRandomSource();
+
+    /**
+     * The seed the randomSource was created with, if any; used to identify saved null distributions.
+     */
+    protected Long randomSeed = null;
+
+    /**
+     * Decides when to switch to a normal approximation; only used if useNormalApprox is true.
+     */
+    protected ConvergencePolicy convergencePolicy = new ConvergencePolicy( TOLERANCE, 1,
+            NORMAL_APPROX_SAMPLE_FREQUENCY );
+
+    /**
+     * Determine which gene set sizes get their own simulation. Sizes that are not simulated are served by the nearest
+     * smaller size that was (see {@link Histogram#getValue(int, double, boolean)}). To improve performance, when the
+     * speed-up is in use we don't do every size after a certain size has been surpassed, as the distributions are
+     * very similar. If the sizes that will be needed are known, only the sizes needed to serve them are simulated.
+     *
+     * @param maxPossibleSize the largest size that can be sampled, e.g. the number of genes.
+     * @return sizes in increasing order
+     */
+    protected List<Integer> getGeneSetSizesToSample( int maxPossibleSize ) {
+        List<Integer> grid = new ArrayList<>();
+        for ( int size = classMinSize; size <= classMaxSize && size <= maxPossibleSize; size++ ) {
+            grid.add( size );
+            if ( useSpeedUp && size >= SPEEDUPSIZECUT ) {
+                size += Math.floor( SPEDUPSIZEEXTRASTEP * size );
+            }
+        }
+
+        if ( geneSetSizes == null ) {
+            return grid;
+        }
+
+        SortedSet<Integer> needed = new TreeSet<>();
+        int g = 0;
+        for ( int size : geneSetSizes ) {
+            if ( size < classMinSize || size > classMaxSize || size > maxPossibleSize ) continue;
+            // the largest grid point not bigger than the size; the grid is complete up to the speed-up cutoff.
+            while ( g + 1 < grid.size() && grid.get( g + 1 ) <= size ) {
+                g++;
+            }
+            needed.add( grid.get( g ) );
+        }
+        return new ArrayList<>( needed );
+    }
+
+    /**
+     * Restrict simulation to what is needed for gene sets of the given sizes.
+     *
+     * @param sizes a {@link java.util.Collection} object; null to simulate all sizes in the range.
+     */
+    public void setGeneSetSizes( Collection<Integer> sizes ) {
+        this.geneSetSizes = sizes == null ? null : new TreeSet<>( sizes );
+    }
+
+    /**
+     * Start a key identifying the null distribution this would generate, covering the settings shared by all the
+     * resampling methods. Subclasses add the data the distribution depends on.
+     *
+     * @return a {@link ubic.erminej.data.HistogramCache.KeyBuilder} object.
+     */
+    protected HistogramCache.KeyBuilder nullDistributionKey() {
+        return new HistogramCache.KeyBuilder( this.getClass().getName() ).add( classMinSize ).add( classMaxSize )
+                .add( numRuns ).add( useSpeedUp ).add( useNormalApprox ).add( convergencePolicy.getTolerance() )
+                .add( convergencePolicy.getMinStableChecks() ).add( convergencePolicy.getCheckFrequency() )
+                .add( histogramMin ).add( histogramMax ).add( randomSeed ).add( geneSetSizes );
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>convergencePolicy</code>.
+     * </p>
+     *
+     * @return a {@link ubic.erminej.analysis.ConvergencePolicy} object.
+     */
+    public ConvergencePolicy getConvergencePolicy() {
+        return convergencePolicy;
+    }
+
     /**
      * <p>
      * Getter for the field <code>hist</code>.
@@ -77,6 +176,45 @@ public abstract class AbstractResamplingGeneSetScore extends AbstractLongTask im
         return hist;
     }
 
+    /**
+     * <p>
+     * Setter for the field <code>convergencePolicy</code>.
+     * </p>
+     *
+     * @param convergencePolicy a {@link ubic.erminej.analysis.ConvergencePolicy} object.
+     */
+    public void setConvergencePolicy( ConvergencePolicy convergencePolicy ) {
+        if ( convergencePolicy == null ) {
+            throw new IllegalArgumentException( "Convergence policy cannot be null" );
+        }
+        this.convergencePolicy = convergencePolicy;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>randomSource</code>.
+     * </p>
+     *
+     * @return a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public RandomSource getRandomSource() {
+        return randomSource;
+    }
+
+    /**
+     * <p>
+     * Setter for the field <code>randomSource</code>.
+     * </p>
+     *
+     * @param randomSource a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public void setRandomSource( RandomSource randomSource ) {
+        if ( randomSource == null ) {
+            throw new IllegalArgumentException( "Random source cannot be null" );
+        }
+        this.randomSource = randomSource;
+    }
+
     /**
      * <p>
      * Setter for the field <code>useNormalApprox</code>.
@@ -88,6 +226,15 @@ public abstract class AbstractResamplingGeneSetScore extends AbstractLongTask im
         this.useNormalApprox = useNormalApprox;
     }
 
+    /**
+     * Set how many threads may be used to generate the null distribution. Results do not depend on this value.
+     *
+     * @param numThreads a int.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
     /**
      * If you set this to true, when large class sizes are analyzed, not every size is measured directly.
      *
@@ -0,0 +1,50 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+/**
+ * A flag that can be used to ask long-running tasks to stop. Checking it is cheap, so tasks can do it often.
+ *
+ * @version $Id$
+ * @see ExecutionPolicy
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Ask the tasks that use this token to stop. They will throw a {@link java.util.concurrent.CancellationException}
+     * at their next check.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * <p>
+     * isCancelled.
+     * </p>
+     *
+     * @return a boolean.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import ubic.erminej.SettingsHolder;
+
+/**
+ * Decides when resampling for a gene set size can stop because the mean and variance of the simulated scores have
+ * settled, so a normal approximation can be used instead. Subclass to change the criterion.
+ *
+ * @version $Id$
+ */
+public class ConvergencePolicy {
+
+    /**
+     * Use the values from the settings, where they are set, otherwise the given defaults.
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @param defaults a {@link ubic.erminej.analysis.ConvergencePolicy} object.
+     * @return a {@link ubic.erminej.analysis.ConvergencePolicy} object.
+     */
+    public static ConvergencePolicy fromSettings( SettingsHolder settings, ConvergencePolicy defaults ) {
+        Double tolerance = settings.getConvergenceTolerance();
+        Integer minStableChecks = settings.getConvergenceMinStableChecks();
+        Integer checkFrequency = settings.getConvergenceCheckFrequency();
+        return new ConvergencePolicy( tolerance == null ? defaults.getTolerance() : tolerance,
+                minStableChecks == null ? defaults.getMinStableChecks() : minStableChecks,
+                checkFrequency == null ? defaults.getCheckFrequency() : checkFrequency );
+    }
+
+    private final int checkFrequency;
+
+    private final int minStableChecks;
+
+    private final double tolerance;
+
+    /**
+     * <p>
+     * Constructor for ConvergencePolicy.
+     * </p>
+     *
+     * @param tolerance largest change in mean and variance between checks that counts as stable.
+     * @param minStableChecks how many consecutive stable checks are needed.
+     * @param checkFrequency check every this many iterations.
+     */
+    public ConvergencePolicy( double tolerance, int minStableChecks, int checkFrequency ) {
+        if ( tolerance < 0 ) {
+            throw new IllegalArgumentException( "Tolerance must not be negative" );
+        }
+        if ( minStableChecks < 1 || checkFrequency < 1 ) {
+            throw new IllegalArgumentException( "Stable checks and check frequency must be at least 1" );
+        }
+        this.tolerance = tolerance;
+        this.minStableChecks = minStableChecks;
+        this.checkFrequency = checkFrequency;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>checkFrequency</code>.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int getCheckFrequency() {
+        return checkFrequency;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>minStableChecks</code>.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int getMinStableChecks() {
+        return minStableChecks;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>tolerance</code>.
+     * </p>
+     *
+     * @return a double.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * <p>
+     * isCheckPoint.
+     * </p>
+     *
+     * @param iteration a int.
+     * @return true if convergence should be checked at this iteration.
+     */
+    public boolean isCheckPoint( int iteration ) {
+        return iteration > 0 && iteration % checkFrequency == 0;
+    }
+
+    /**
+     * <p>
+     * isStable.
+     * </p>
+     *
+     * @param oldMean a double.
+     * @param oldVariance a double.
+     * @param mean a double.
+     * @param variance a double.
+     * @return true if the change since the last check is within tolerance.
+     */
+    public boolean isStable( double oldMean, double oldVariance, double mean, double variance ) {
+        return Math.abs( oldVariance - variance ) <= tolerance && Math.abs( oldMean - mean ) <= tolerance;
+    }
+
+}
@@ -18,19 +18,15 @@
  */
 package ubic.erminej.analysis;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
-import ubic.basecode.math.DescriptiveWithMissing;
-import ubic.basecode.math.MatrixStats;
 import ubic.basecode.util.StatusViewer;
-import ubic.basecode.util.StringUtil;
 import ubic.erminej.Settings;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.data.Element;
@@ -55,10 +51,15 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
     private DoubleMatrix<Element, String> data = null;
     private Histogram hist;
     private Settings.MultiElementHandling geneRepTreatment = Settings.MultiElementHandling.BEST;
-    private int cacheHits = 0;
-    private int tests = 0;
-    private boolean[][] nanStatusMatrix;
-    private double[][] selfSquaredMatrix;
+    private AtomicInteger cacheHits = new AtomicInteger( 0 );
+    private AtomicInteger tests = new AtomicInteger( 0 );
+    private StandardizedRows standardizedRows;
+    private boolean singlePrecision = false;
+
+    /**
+     * Precomputed correlations, if available; used instead of standardizedRows.
+     */
+    private CorrelationTable correlationTable = null;
 
     /**
      * <p>
@@ -78,8 +79,8 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
         this.geneAnnots = geneAnnots;
         this.data = rawData;
 
-        nanStatusMatrix = MatrixStats.nanStatusMatrix( data.asArray() );
-        selfSquaredMatrix = MatrixStats.selfSquaredMatrix( data.asArray() );
+        singlePrecision = settings.getUseSinglePrecision();
+        standardizedRows = new StandardizedRows( data, singlePrecision );
 
         setHistogram( hist );
         setGeneRepTreatment( settings.getGeneRepTreatment() );
@@ -106,81 +107,81 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
         Collection<Element> elementsInSet = geneAnnots.getGeneSetElements( geneSetName );
 
         /*
-         * Iterate over the elements to get pairwise correlations.; we do this in a list so we can do each comparison
-         * just once.
+         * Find the rows for the elements, grouped by gene: the rows for the g'th gene are rows[geneStart[g]] ..
+         * rows[geneStart[g + 1] - 1]. This way the loops below only deal with indices.
          */
-        double sumCorrel = 0.0;
-        double nummeas = 0;
-        Map<Long, Double> values = new HashMap<>();
-        List<Element> elementList = new ArrayList<>( elementsInSet );
-
-        for ( int i = elementList.size() - 1; i >= 0; i-- ) {
-            Element elementi = elementList.get( i );
-
-            if ( !data.containsRowName( elementi ) ) {
+        Map<Gene, Integer> geneIndex = new HashMap<>();
+        int[] elementRow = new int[elementsInSet.size()];
+        int[] elementGene = new int[elementsInSet.size()];
+        int numElements = 0;
+        for ( Element element : elementsInSet ) {
+            if ( !data.containsRowName( element ) ) {
                 continue;
             }
+            Gene gene = element.getGene();
+            Integer g = geneIndex.get( gene );
+            if ( g == null ) {
+                g = geneIndex.size();
+                geneIndex.put( gene, g );
+            }
+            elementRow[numElements] = data.getRowIndexByName( element );
+            elementGene[numElements] = g;
+            numElements++;
+        }
 
-            int iIndex = data.getRowIndexByName( elementi );
-            Gene genei = elementi.getGene();
-            double[] irow = data.getRow( iIndex );
-            int numElementsForGeneI = geneAnnots.numElementsForGene( genei );
-            boolean multipleElementsI = numElementsForGeneI > 1;
-
-            for ( int j = i - 1; j >= 0; j-- ) {
-
-                Element elementj = elementList.get( j );
-
-                if ( !data.containsRowName( elementj ) ) {
-                    continue;
-                }
+        int numGenes = geneIndex.size();
+        int[] geneStart = new int[numGenes + 1];
+        int[] numElementsForGene = new int[numGenes];
+        for ( Map.Entry<Gene, Integer> e : geneIndex.entrySet() ) {
+            numElementsForGene[e.getValue()] = geneAnnots.numElementsForGene( e.getKey() );
+        }
+        for ( int e = 0; e < numElements; e++ ) {
+            geneStart[elementGene[e] + 1]++;
+        }
+        for ( int g = 0; g < numGenes; g++ ) {
+            geneStart[g + 1] += geneStart[g];
+        }
+        int[] rows = new int[numElements];
+        int[] next = Arrays.copyOf( geneStart, numGenes );
+        for ( int e = 0; e < numElements; e++ ) {
+            rows[next[elementGene[e]]++] = elementRow[e];
+        }
 
-                int jIndex = data.getRowIndexByName( elementj );
-                Gene genej = elementj.getGene();
+        /*
+         * Each pair of genes contributes once, with either the best correlation among their elements or the mean,
+         * weighted by how many elements the genes have. Self-comparisons are always ignored.
+         */
+        double sumCorrel = 0.0;
+        double nummeas = 0;
+        boolean best = geneRepTreatment.equals( Settings.MultiElementHandling.BEST );
+        if ( !best && !geneRepTreatment.equals( Settings.MultiElementHandling.MEAN ) ) {
+            throw new UnsupportedOperationException( "Unsupported replicate treatment method " + geneRepTreatment );
+        }
 
-                if ( genei.equals( genej ) ) {
-                    continue; // always ignore self-comparisons.
-                }
-                int numElementsForGeneJ = geneAnnots.numElementsForGene( genej );
-                double[] jrow = data.getRow( jIndex );
-                double corr = Math.abs( DescriptiveWithMissing.correlation( irow, jrow, selfSquaredMatrix[iIndex],
-                        selfSquaredMatrix[jIndex], nanStatusMatrix[iIndex], nanStatusMatrix[jIndex] ) );
-                tests++;
-
-                if ( multipleElementsI || numElementsForGeneJ > 1 ) { // do we even need to bother?
-                    if ( geneRepTreatment.equals( Settings.MultiElementHandling.BEST ) ) {
-                        Long key = StringUtil.twoStringHashKey( genei.getSymbol(), genej.getSymbol() );
-                        if ( !values.containsKey( key ) || values.get( key ) < corr ) {
-                            values.put( key, new Double( corr ) );
+        int numTests = 0;
+        for ( int gi = 0; gi < numGenes; gi++ ) {
+            for ( int gj = gi + 1; gj < numGenes; gj++ ) {
+                double bestCorr = Double.NaN;
+                double weight = 1.0 / ( ( double ) numElementsForGene[gi] * ( double ) numElementsForGene[gj] );
+                for ( int a = geneStart[gi]; a < geneStart[gi + 1]; a++ ) {
+                    for ( int b = geneStart[gj]; b < geneStart[gj + 1]; b++ ) {
+                        double corr = absCorrelation( rows[a], rows[b] );
+                        numTests++;
+                        if ( best ) {
+                            if ( Double.isNaN( bestCorr ) || corr > bestCorr ) bestCorr = corr;
+                        } else {
+                            sumCorrel += corr * weight;
+                            nummeas += weight;
                         }
-                    } else if ( geneRepTreatment.equals( Settings.MultiElementHandling.MEAN ) ) {
-                        double weight = 1.0 / ( ( double ) numElementsForGeneJ * ( double ) numElementsForGeneI );
-                        corr *= weight;
-                        sumCorrel += corr;
-                        nummeas += weight;
-                    } else {
-                        throw new UnsupportedOperationException( "Unsupported replicate treatment method "
-                                + geneRepTreatment );
                     }
-                } else {
-                    sumCorrel += corr;
+                }
+                if ( best ) {
+                    sumCorrel += bestCorr;
                     nummeas++;
-                    if ( geneRepTreatment.equals( Settings.MultiElementHandling.BEST ) ) {
-                        Long key = StringUtil.twoStringHashKey( genei.getSymbol(), genej.getSymbol() );
-                        values.put( key, new Double( corr ) );
-                    }
                 }
             }
         }
-
-        if ( geneRepTreatment.equals( Settings.MultiElementHandling.BEST ) ) {
-            sumCorrel = 0.0;
-            nummeas = 0;
-            for ( Iterator<Double> iter = values.values().iterator(); iter.hasNext(); ) {
-                sumCorrel += iter.next();
-                nummeas++;
-            }
-        }
+        tests.addAndGet( numTests );
 
         double geneSetMeanCorrel = sumCorrel / nummeas;
 
@@ -206,27 +207,17 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
     /** {@inheritDoc} */
     @Override
     public Map<GeneSetTerm, GeneSetResult> generateGeneSetResults() {
-        Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
-
-        int count = 0;
         setTests( 0 );
         setCacheHits( 0 );
 
         this.numGenesUsed = geneAnnots.numGenes(); // is this going to be right?
 
-        for ( Iterator<GeneSetTerm> iter = geneAnnots.getGeneSetTerms().iterator(); iter.hasNext(); ) {
-            ifInterruptedStop();
-
-            GeneSetTerm geneSetName = iter.next();
-            GeneSetResult res = classPval( geneSetName );
-            if ( res != null ) {
-                results.put( geneSetName, res );
-            }
-            count++;
-            if ( count % 100 == 0 ) {
-                getMessenger().showProgress( count + " gene sets analyzed" );
+        Map<GeneSetTerm, GeneSetResult> results = scoreGeneSets( new GeneSetScorer() {
+            @Override
+            public GeneSetResult score( GeneSetTerm geneSet ) {
+                return classPval( geneSet );
             }
-        }
+        }, false );
         if ( results.isEmpty() ) return results;
         GeneSetPvalRun.populateRanks( results );
 
@@ -274,7 +265,7 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @return Returns the usedCache.
      */
     public int getCacheHits() {
-        return this.cacheHits;
+        return this.cacheHits.get();
     }
 
     /**
@@ -296,7 +287,7 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @return Returns the tests.
      */
     public int getTests() {
-        return this.tests;
+        return this.tests.get();
     }
 
     /**
@@ -318,7 +309,27 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @param usedCache The usedCache to set.
      */
     public void setCacheHits( int usedCache ) {
-        this.cacheHits = usedCache;
+        this.cacheHits.set( usedCache );
+    }
+
+    /**
+     * <p>
+     * Setter for the field <code>correlationTable</code>.
+     * </p>
+     *
+     * @param correlationTable a {@link ubic.erminej.analysis.CorrelationTable} object for the same data; null to
+     *        compute the correlations as needed.
+     */
+    public void setCorrelationTable( CorrelationTable correlationTable ) {
+        if ( correlationTable != null && correlationTable.rows() != data.rows() ) {
+            throw new IllegalArgumentException( "Correlation table is not for this data" );
+        }
+        this.correlationTable = correlationTable;
+        if ( correlationTable != null ) {
+            standardizedRows = null; // not needed.
+        } else if ( standardizedRows == null ) {
+            standardizedRows = new StandardizedRows( data, singlePrecision );
+        }
     }
 
     /**
@@ -351,7 +362,19 @@ public class CorrelationPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @param tests The tests to set.
      */
     public void setTests( int tests ) {
-        this.tests = tests;
+        this.tests.set( tests );
+    }
+
+    /**
+     * @param i
+     * @param j
+     * @return the absolute correlation between two rows of the data, from the table if there is one.
+     */
+    private double absCorrelation( int i, int j ) {
+        if ( correlationTable != null ) {
+            return correlationTable.get( i, j );
+        }
+        return Math.abs( standardizedRows.correlation( i, j ) );
     }
 
 }
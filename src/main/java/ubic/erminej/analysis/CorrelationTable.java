@@ -0,0 +1,362 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.erminej.SettingsHolder;
+import ubic.erminej.data.HistogramCache;
+
+/**
+ * The absolute correlations between all pairs of rows of a data matrix, computed once (in parallel) so the correlation
+ * analysis can look them up instead of recomputing them for every random gene set. Only the upper triangle is stored,
+ * as floats. Small matrices are kept in memory; large ones in a memory-mapped file in the data directory, which is
+ * reused by later runs on the same data. The least recently used files are removed when they take more than
+ * {@link ubic.erminej.SettingsHolder#getDataCacheMB()}.
+ * <p>
+ * Safe to share between threads once created.
+ *
+ * @version $Id$
+ */
+public class CorrelationTable {
+
+    /** Constant <code>CACHE_DIRECTORY_NAME="correlationMatrices"</code> */
+    public static final String CACHE_DIRECTORY_NAME = "correlationMatrices";
+
+    /**
+     * Matrices with more rows than this are kept in a file (this many rows takes 128 Mb).
+     */
+    public static final int MAX_ROWS_IN_MEMORY = 8192;
+
+    private static final String FILE_SUFFIX = ".corr";
+
+    private static final Log log = LogFactory.getLog( CorrelationTable.class );
+
+    /**
+     * Rows per unit of work when computing.
+     */
+    private static final int ROWS_PER_BLOCK = 16;
+
+    /**
+     * Each mapped segment of the file holds 2^SEGMENT_BITS values (1 Gb).
+     */
+    private static final int SEGMENT_BITS = 28;
+
+    /**
+     * <p>
+     * Compute the table for the data, in memory or in a file in the data directory as appropriate.
+     * </p>
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @param data a {@link ubic.basecode.dataStructure.matrix.DoubleMatrix} object.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object; its token stops the computation.
+     * @return a {@link ubic.erminej.analysis.CorrelationTable} object.
+     * @throws java.io.IOException if the file could not be created or read.
+     */
+    public static CorrelationTable fromSettings( SettingsHolder settings, DoubleMatrix<?, ?> data,
+            ExecutionPolicy executionPolicy ) throws IOException {
+        StandardizedRows rows = new StandardizedRows( data, settings.getUseSinglePrecision() );
+        if ( data.rows() <= MAX_ROWS_IN_MEMORY ) {
+            return compute( rows, settings.getNumThreads(), executionPolicy );
+        }
+
+        HistogramCache.KeyBuilder key = new HistogramCache.KeyBuilder( CorrelationTable.class.getName() )
+                .add( rows.isSinglePrecision() ).add( data.rows() ).add( data.columns() );
+        for ( int i = 0; i < data.rows(); i++ ) {
+            key.add( data.getRow( i ) );
+        }
+        File dir = new File( settings.getDataDirectory(), CACHE_DIRECTORY_NAME );
+        File file = new File( dir, key.build() + FILE_SUFFIX );
+        CorrelationTable table = compute( rows, file, settings.getNumThreads(), executionPolicy );
+        HistogramCache.evict( dir, FILE_SUFFIX, settings.getDataCacheMB() * 1024L * 1024L, file );
+        return table;
+    }
+
+    /**
+     * Compute the table in memory.
+     *
+     * @param rows a {@link ubic.erminej.analysis.StandardizedRows} object.
+     * @param numThreads a int.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object; its token stops the computation.
+     * @return a {@link ubic.erminej.analysis.CorrelationTable} object.
+     */
+    public static CorrelationTable compute( StandardizedRows rows, int numThreads,
+            ExecutionPolicy executionPolicy ) {
+        long numPairs = numPairs( rows.rows() );
+        if ( numPairs > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many rows to keep the correlations in memory: " + rows.rows() );
+        }
+        CorrelationTable table = new CorrelationTable( rows.rows(), new float[( int ) numPairs], null );
+        table.fill( rows, numThreads, null, executionPolicy );
+        return table;
+    }
+
+    /**
+     * Use the table in the file, or compute it and save it there if it does not exist yet. The values are written to a
+     * temporary file, which is closed and then moved into place before the file is mapped (read-only), as a mapped
+     * file cannot be moved on all platforms.
+     *
+     * @param rows a {@link ubic.erminej.analysis.StandardizedRows} object.
+     * @param file a {@link java.io.File} object.
+     * @param numThreads a int.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object; its token stops the computation.
+     * @return a {@link ubic.erminej.analysis.CorrelationTable} object.
+     * @throws java.io.IOException if any.
+     */
+    public static CorrelationTable compute( StandardizedRows rows, File file, int numThreads,
+            ExecutionPolicy executionPolicy ) throws IOException {
+        int n = rows.rows();
+        long numBytes = numPairs( n ) * 4L;
+
+        if ( file.canRead() && file.length() == numBytes ) {
+            log.info( "Using saved correlations " + file.getName() );
+            file.setLastModified( System.currentTimeMillis() ); // mark as recently used.
+            return new CorrelationTable( n, null, map( file, numBytes ) );
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException( "Could not create " + dir );
+        }
+        File tmp = File.createTempFile( "corr", ".tmp", dir );
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ); FileChannel channel = raf.getChannel()) {
+                // has no values of its own; only used to compute them.
+                new CorrelationTable( n, null, null ).fill( rows, numThreads, channel, executionPolicy );
+                channel.force( false );
+            } catch ( UncheckedIOException e ) {
+                throw e.getCause();
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+            log.info( "Saved correlations to " + file );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                tmp.deleteOnExit();
+            }
+        }
+        return new CorrelationTable( n, null, map( file, numBytes ) );
+    }
+
+    /**
+     * @param n
+     * @return number of pairs of rows
+     */
+    private static long numPairs( int n ) {
+        return ( long ) n * ( n - 1 ) / 2;
+    }
+
+    /**
+     * Map the file, read-only, in segments.
+     *
+     * @param file
+     * @param numBytes
+     * @return buffers
+     * @throws IOException
+     */
+    private static MappedByteBuffer[] map( File file, long numBytes ) throws IOException {
+        long segmentBytes = 4L << SEGMENT_BITS;
+        int numSegments = ( int ) ( ( numBytes + segmentBytes - 1 ) / segmentBytes );
+        MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            for ( int s = 0; s < numSegments; s++ ) {
+                long start = s * segmentBytes;
+                long size = Math.min( segmentBytes, numBytes - start );
+                segments[s] = channel.map( FileChannel.MapMode.READ_ONLY, start, size );
+            }
+        }
+        return segments;
+    }
+
+    private final int numRows;
+
+    private final float[] values;
+
+    /**
+     * Float views of the mapped buffers.
+     */
+    private final FloatBuffer[] segments;
+
+    private CorrelationTable( int numRows, float[] values, MappedByteBuffer[] mapped ) {
+        this.numRows = numRows;
+        this.values = values;
+        if ( mapped == null ) {
+            this.segments = null;
+        } else {
+            this.segments = new FloatBuffer[mapped.length];
+            for ( int s = 0; s < mapped.length; s++ ) {
+                segments[s] = mapped[s].order( ByteOrder.nativeOrder() ).asFloatBuffer();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * get.
+     * </p>
+     *
+     * @param i a int.
+     * @param j a int; not the same as i, as the diagonal is not stored.
+     * @return the absolute correlation between the rows; NaN if it is not defined.
+     */
+    public float get( int i, int j ) {
+        assert i != j : "The diagonal is not stored";
+        long index = i < j ? index( i, j ) : index( j, i );
+        if ( values != null ) {
+            return values[( int ) index];
+        }
+        return segments[( int ) ( index >>> SEGMENT_BITS )].get( ( int ) ( index & ( ( 1 << SEGMENT_BITS ) - 1 ) ) );
+    }
+
+    /**
+     * <p>
+     * isMapped.
+     * </p>
+     *
+     * @return true if the values are in a file rather than in memory.
+     */
+    public boolean isMapped() {
+        return segments != null;
+    }
+
+    /**
+     * <p>
+     * rows.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int rows() {
+        return numRows;
+    }
+
+    /**
+     * Compute all the values, spreading the rows over several threads.
+     *
+     * @param rows
+     * @param numThreads
+     * @param channel if not null, the values are written there instead of to the values array; the rows of each block
+     *        are contiguous, so each block is written at once.
+     * @param executionPolicy checked for cancellation before each row; the workers are not the threads that get
+     *        interrupted.
+     */
+    private void fill( final StandardizedRows rows, int numThreads, final FileChannel channel,
+            final ExecutionPolicy executionPolicy ) {
+        List<Callable<Object>> blocks = new ArrayList<>();
+        for ( int start = 0; start < numRows; start += ROWS_PER_BLOCK ) {
+            final int first = start;
+            final int last = Math.min( numRows, start + ROWS_PER_BLOCK );
+            blocks.add( new Callable<Object>() {
+                @Override
+                public Object call() {
+                    if ( channel == null ) {
+                        for ( int i = first; i < last; i++ ) {
+                            executionPolicy.checkCancelled();
+                            for ( int j = i + 1; j < numRows; j++ ) {
+                                values[( int ) index( i, j )] = ( float ) Math.abs( rows.correlation( i, j ) );
+                            }
+                        }
+                        return null;
+                    }
+
+                    long offset = rowStart( first );
+                    ByteBuffer block = ByteBuffer.allocate( ( int ) ( ( rowStart( last ) - offset ) * 4 ) )
+                            .order( ByteOrder.nativeOrder() );
+                    FloatBuffer blockValues = block.asFloatBuffer();
+                    for ( int i = first; i < last; i++ ) {
+                        executionPolicy.checkCancelled();
+                        for ( int j = i + 1; j < numRows; j++ ) {
+                            blockValues.put( ( float ) Math.abs( rows.correlation( i, j ) ) );
+                        }
+                    }
+                    try {
+                        long position = offset * 4;
+                        while ( block.hasRemaining() ) {
+                            position += channel.write( block, position );
+                        }
+                    } catch ( IOException e ) {
+                        throw new UncheckedIOException( e );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+        try {
+            List<Future<Object>> done = new ArrayList<>();
+            for ( Callable<Object> block : blocks ) {
+                done.add( pool.submit( block ) );
+            }
+            for ( Future<Object> f : done ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            throw new CancellationException( "Cancelled" );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Position of the pair in the upper triangle, row by row.
+     *
+     * @param i
+     * @param j greater than i
+     * @return index
+     */
+    private long index( int i, int j ) {
+        return rowStart( i ) + ( j - i - 1 );
+    }
+
+    /**
+     * @param i a row, or the number of rows
+     * @return position of the first pair of the row in the upper triangle; the number of pairs for the end.
+     */
+    private long rowStart( int i ) {
+        return ( long ) i * ( 2L * numRows - i - 1 ) / 2;
+    }
+
+}
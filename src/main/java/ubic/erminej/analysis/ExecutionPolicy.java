@@ -0,0 +1,146 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Decides how long-running tasks ({@link AbstractLongTask}) share the processor and how they notice they should stop.
+ * Tasks call {@link #checkpoint()} often and {@link #pause()} every so often in their main loops.
+ * <p>
+ * In the GUI, the tasks should be cooperative: they yield at each checkpoint and sleep briefly at each pause, so the
+ * interface stays responsive. From the command line or when ermineJ is embedded, the tasks should run at full speed:
+ * checkpoints only check for cancellation, and pauses do nothing more. Subclasses can implement other strategies.
+ * <p>
+ * In all cases a task stops, with a {@link java.util.concurrent.CancellationException}, if its thread was interrupted
+ * or the {@link CancellationToken} of the policy was cancelled.
+ *
+ * @version $Id$
+ */
+public class ExecutionPolicy {
+
+    /**
+     * How long cooperative tasks sleep at each pause, in milliseconds.
+     */
+    private static final long COOPERATIVE_PAUSE_MILLIS = 10;
+
+    /**
+     * Yield at each checkpoint and sleep briefly at each pause; suitable for the GUI. This is the default.
+     *
+     * @return a new {@link ubic.erminej.analysis.ExecutionPolicy} object, with its own cancellation token.
+     */
+    public static ExecutionPolicy cooperative() {
+        return new ExecutionPolicy( new CancellationToken(), true, COOPERATIVE_PAUSE_MILLIS );
+    }
+
+    /**
+     * Never yield or sleep; only check for cancellation. Suitable for command line and server use.
+     *
+     * @return a new {@link ubic.erminej.analysis.ExecutionPolicy} object, with its own cancellation token.
+     */
+    public static ExecutionPolicy fullSpeed() {
+        return new ExecutionPolicy( new CancellationToken(), false, 0 );
+    }
+
+    /**
+     * The policy for tasks that were not given one: {@link #cooperative()}. Each call returns a new policy, so
+     * cancelling one task does not cancel others; tasks that should be cancelled together must be given the same
+     * policy.
+     *
+     * @return a new {@link ubic.erminej.analysis.ExecutionPolicy} object, with its own cancellation token.
+     */
+    public static ExecutionPolicy getDefault() {
+        return cooperative();
+    }
+
+    private final CancellationToken cancellationToken;
+
+    private final long pauseMillis;
+
+    private final boolean yield;
+
+    /**
+     * <p>
+     * Constructor for ExecutionPolicy.
+     * </p>
+     *
+     * @param cancellationToken a {@link ubic.erminej.analysis.CancellationToken} object.
+     * @param yield whether to yield to other threads at each checkpoint.
+     * @param pauseMillis how long to sleep at each pause; zero for no sleep.
+     */
+    public ExecutionPolicy( CancellationToken cancellationToken, boolean yield, long pauseMillis ) {
+        if ( cancellationToken == null ) throw new IllegalArgumentException( "Cancellation token cannot be null" );
+        if ( pauseMillis < 0 ) throw new IllegalArgumentException( "Pause cannot be negative" );
+        this.cancellationToken = cancellationToken;
+        this.yield = yield;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Stop if cancelled, without yielding or sleeping. For the worker threads of a task, e.g. in a
+     * {@link java.util.concurrent.ForkJoinPool}, which are not the ones that need to share the processor.
+     *
+     * @throws java.util.concurrent.CancellationException if the task should stop.
+     */
+    public void checkCancelled() {
+        if ( cancellationToken.isCancelled() || Thread.currentThread().isInterrupted() ) {
+            throw new CancellationException( "Cancelled" );
+        }
+    }
+
+    /**
+     * Called often by tasks; stop if cancelled.
+     *
+     * @throws java.util.concurrent.CancellationException if the task should stop.
+     */
+    public void checkpoint() {
+        if ( yield ) {
+            Thread.yield(); // let another thread have some time perhaps to stop this one.
+        }
+        checkCancelled();
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>cancellationToken</code>.
+     * </p>
+     *
+     * @return a {@link ubic.erminej.analysis.CancellationToken} object.
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Called every so often by tasks, e.g. every few hundred iterations of a main loop, to let other threads run.
+     *
+     * @throws java.util.concurrent.CancellationException if the task should stop.
+     */
+    public void pause() {
+        checkpoint();
+        if ( pauseMillis <= 0 ) return;
+        try {
+            Thread.sleep( pauseMillis );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException( "Cancelled" );
+        }
+    }
+
+}
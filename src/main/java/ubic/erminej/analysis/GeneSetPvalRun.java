@@ -20,7 +20,9 @@ package ubic.erminej.analysis;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,6 +39,7 @@ import ubic.basecode.util.StatusViewer;
 import ubic.erminej.Settings;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
 import ubic.erminej.data.DataIOUtils;
 import ubic.erminej.data.Element;
 import ubic.erminej.data.EmptyGeneSetResult;
@@ -125,6 +128,56 @@ public class GeneSetPvalRun {
 
     }
 
+    /**
+     * ORA at several thresholds. The gene scores are read and the annotations pruned once, and the hits in each gene
+     * set are counted cumulatively from the most to the least stringent threshold, so this costs about as much as a
+     * single run.
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object; the threshold in it is not used.
+     * @param originalAnnots - original!!! Will be pruned as necessary.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object.
+     * @param thresholds a {@link java.util.List} object.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object.
+     * @return one run per threshold, in the order given; each has its own copy of the settings, with the threshold
+     *         that was applied (for a top-N threshold, the score of the last gene included).
+     * @throws java.io.IOException if any.
+     */
+    public static List<GeneSetPvalRun> oraSweep( SettingsHolder settings, GeneAnnotations originalAnnots,
+            StatusViewer messenger, final List<OraThreshold> thresholds, ExecutionPolicy executionPolicy )
+            throws IOException {
+        if ( !settings.getClassScoreMethod().equals( SettingsHolder.Method.ORA ) ) {
+            throw new IllegalArgumentException( "Threshold sweeps are only available for ORA" );
+        }
+        if ( thresholds.isEmpty() ) {
+            throw new IllegalArgumentException( "No thresholds were given" );
+        }
+
+        GeneScores geneScores = new GeneScores( settings.getScoreFile(), settings, messenger, originalAnnots );
+        GeneAnnotations geneData = geneScores.getPrunedGeneAnnotations();
+        final OraPvalGenerator pvg = new OraPvalGenerator( settings, geneScores, geneData, messenger );
+        pvg.setExecutionPolicy( executionPolicy );
+
+        List<Integer> order = new ArrayList<>();
+        for ( int i = 0; i < thresholds.size(); i++ ) {
+            order.add( i );
+        }
+        Collections.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer o1, Integer o2 ) {
+                return Integer.compare( pvg.getNumGenesOverThreshold( thresholds.get( o1 ) ),
+                        pvg.getNumGenesOverThreshold( thresholds.get( o2 ) ) );
+            }
+        } );
+
+        GeneSetPvalRun[] runs = new GeneSetPvalRun[thresholds.size()];
+        for ( int i : order ) {
+            executionPolicy.checkpoint();
+            runs[i] = new GeneSetPvalRun( settings, geneData, geneScores, pvg, thresholds.get( i ), messenger,
+                    executionPolicy );
+        }
+        return Arrays.asList( runs );
+    }
+
     /**
      * Fill in the ranks
      *
@@ -156,6 +209,11 @@ public class GeneSetPvalRun {
 
     private StatusViewer messenger = new StatusStderr();
 
+    /**
+     * Given to the tasks of the analysis; cancelling its token stops them.
+     */
+    private ExecutionPolicy executionPolicy = ExecutionPolicy.getDefault();
+
     private double multifunctionalityCorrelation = -1;
     private double multifunctionalityEnrichment = -1;
     private double multifunctionalityEnrichmentPvalue = 1.0;
@@ -176,7 +234,21 @@ public class GeneSetPvalRun {
      * @param messenger a {@link ubic.basecode.util.StatusViewer} object.
      */
     public GeneSetPvalRun( SettingsHolder settings, GeneAnnotations originalAnnots, StatusViewer messenger ) {
+        this( settings, originalAnnots, messenger, ExecutionPolicy.getDefault() );
+    }
+
+    /**
+     * Do a new analysis, with the given policy for its tasks.
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @param originalAnnots - original!!! Will be pruned as necessary.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object.
+     */
+    public GeneSetPvalRun( SettingsHolder settings, GeneAnnotations originalAnnots, StatusViewer messenger,
+            ExecutionPolicy executionPolicy ) {
         this.settings = settings;
+        this.executionPolicy = executionPolicy;
 
         if ( messenger != null ) this.messenger = messenger;
         this.settings = settings;
@@ -221,19 +293,19 @@ public class GeneSetPvalRun {
         if ( messenger != null ) this.messenger = messenger;
         this.name = name;
 
-        DoubleMatrix<Element, String> rawData = null;
+        Set<Element> dataElements = null;
         GeneScores geneScores = null;
 
         if ( settings.getClassScoreMethod().equals( SettingsHolder.Method.CORR ) ) {
-            // this is quite wasteful -- we really just need to know the probe names
-            rawData = DataIOUtils.readDataMatrixForAnalysis( originalAnnots, settings );
+            // we just need to know the probe names, not the data.
+            dataElements = DataIOUtils.readDataMatrixElements( originalAnnots, settings );
         } else {
             // this is wasteful, but not as big a deal.
             geneScores = new GeneScores( settings.getScoreFile(), settings, messenger, originalAnnots );
             this.geneScoreColumnName = geneScores.getScoreColumnName();
         }
 
-        Set<Element> activeProbes = getActiveElements( rawData, geneScores );
+        Set<Element> activeProbes = getActiveElements( dataElements, geneScores );
         this.geneData = getPrunedAnnotations( activeProbes, originalAnnots );
         populateRanks( results );
 
@@ -247,11 +319,68 @@ public class GeneSetPvalRun {
      * @param geneScores a {@link ubic.erminej.data.GeneScores} object.
      */
     public GeneSetPvalRun( SettingsHolder settings, GeneScores geneScores ) {
+        this( settings, geneScores, ExecutionPolicy.getDefault() );
+    }
+
+    /**
+     * Do a new analysis, starting from the bare essentials (correlation method not available) (simple API), with the
+     * given policy for its tasks.
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @param geneScores a {@link ubic.erminej.data.GeneScores} object.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object.
+     */
+    public GeneSetPvalRun( SettingsHolder settings, GeneScores geneScores, ExecutionPolicy executionPolicy ) {
         this.settings = settings;
+        this.executionPolicy = executionPolicy;
         this.geneData = geneScores.getPrunedGeneAnnotations();
         runAnalysis( null, geneScores );
     }
 
+    /**
+     * One step of an ORA threshold sweep.
+     *
+     * @param masterSettings
+     * @param geneData already pruned
+     * @param geneScores
+     * @param pvg shared by the steps of the sweep
+     * @param threshold
+     * @param messenger
+     * @param executionPolicy
+     */
+    private GeneSetPvalRun( SettingsHolder masterSettings, GeneAnnotations geneData, GeneScores geneScores,
+            OraPvalGenerator pvg, OraThreshold threshold, StatusViewer messenger, ExecutionPolicy executionPolicy ) {
+        if ( messenger != null ) this.messenger = messenger;
+        this.executionPolicy = executionPolicy;
+        this.geneData = geneData;
+        this.geneScoreColumnName = geneScores.getScoreColumnName();
+
+        this.messenger.showStatus( "Starting ORA analysis at threshold " + threshold );
+        this.results = pvg.generateGeneSetResults( threshold );
+        this.numAboveThreshold = pvg.getNumGenesOverThreshold();
+
+        Settings runSettings = new Settings( masterSettings );
+        runSettings.setGeneScoreThreshold( pvg.untransformThreshold( pvg.getGeneScoreThreshold() ) );
+        this.settings = runSettings;
+
+        setName( settings.getClassScoreMethodName() + " run "
+                + ( StringUtils.isNotBlank( geneScoreColumnName ) ? "on '" + geneScoreColumnName + "' " : "" )
+                + "at " + threshold );
+
+        if ( numAboveThreshold == 0 ) {
+            this.messenger.showError( "No genes selected at threshold " + threshold );
+            return;
+        }
+
+        this.messenger.showStatus( "Finished with ORA computations: " + numAboveThreshold
+                + " elements passed the threshold " + threshold );
+
+        if ( results.isEmpty() ) return;
+
+        multipleTestCorrect( geneScores, null );
+        setMultifunctionalities( geneScores, pvg.getGenesAboveThreshold() );
+    }
+
     /**
      * <p>
      * Getter for the field <code>geneData</code>.
@@ -456,10 +585,10 @@ public class GeneSetPvalRun {
 
     /* private methods */
 
-    private Set<Element> getActiveElements( DoubleMatrix<Element, String> rawData, GeneScores geneScores ) {
+    private Set<Element> getActiveElements( Set<Element> dataElements, GeneScores geneScores ) {
         Set<Element> activeProbes = null;
-        if ( settings.getClassScoreMethod().equals( SettingsHolder.Method.CORR ) && rawData != null ) {
-            activeProbes = new HashSet<>( rawData.getRowNames() );
+        if ( settings.getClassScoreMethod().equals( SettingsHolder.Method.CORR ) && dataElements != null ) {
+            activeProbes = dataElements;
         } else {
             assert geneScores != null;
             activeProbes = geneScores.getProbeToScoreMap().keySet();
@@ -480,26 +609,29 @@ public class GeneSetPvalRun {
     }
 
     /**
-     * @param csc
+     * @param geneScores
+     * @param gsrPvalGenerator the generator used for the gene set resampling method, if that was used; needed for
+     *        Westfall-Young.
      */
-    private void multipleTestCorrect( GeneScores geneScores ) {
+    private void multipleTestCorrect( GeneScores geneScores, GeneSetResamplingPvalGenerator gsrPvalGenerator ) {
         List<GeneSetTerm> sortedClasses = getSortedClasses( results );
 
         messenger.showStatus( "Multiple test correction for " + sortedClasses.size() + " scored sets." );
 
         MultipleTestCorrector mt = new MultipleTestCorrector( settings, sortedClasses, geneData, geneScores, results,
                 messenger );
+        mt.setExecutionPolicy( executionPolicy );
 
         Settings.MultiTestCorrMethod multipleTestCorrMethod = settings.getMtc();
         if ( multipleTestCorrMethod == SettingsHolder.MultiTestCorrMethod.FWE ) {
             mt.bonferroni();
         } else if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.FDR ) ) {
             mt.benjaminihochberg();
-            //        } else if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG ) ) {
-            //            if ( !( settings.getClassScoreMethod().equals( SettingsHolder.Method.GSR ) ) )
-            //                throw new UnsupportedOperationException(
-            //                        "Westfall-Young correction is not supported for this analysis method" );
-            //            mt.westfallyoung();
+        } else if ( multipleTestCorrMethod.equals( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG ) ) {
+            if ( gsrPvalGenerator == null )
+                throw new UnsupportedOperationException(
+                        "Westfall-Young correction is not supported for this analysis method" );
+            mt.westfallyoung( gsrPvalGenerator );
         } else {
             throw new IllegalArgumentException( "Unknown multiple test correction method: " + multipleTestCorrMethod );
         }
@@ -516,9 +648,19 @@ public class GeneSetPvalRun {
         // only used for ORA
         Collection<Gene> genesAboveThreshold = new HashSet<>();
 
+        // only used for GSR
+        GeneSetResamplingPvalGenerator gsrPvalGenerator = null;
+
         switch ( settings.getClassScoreMethod() ) {
             case GSR: {
 
+                // Westfall-Young reuses the shared null distribution, which sequential resampling does not build
+                if ( settings.getNullDistributionMethod().equals( NullDistributionMethod.SEQUENTIAL )
+                        && settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG ) ) {
+                    throw new IllegalArgumentException( "Westfall-Young correction cannot be used with the "
+                            + NullDistributionMethod.SEQUENTIAL + " null distribution method" );
+                }
+
                 if ( settings.getGeneSetResamplingScoreMethod().equals( GeneScoreMethod.PRECISIONRECALL ) ) {
                     messenger.showStatus( "Starting precision-recall analysis" );
                 } else {
@@ -531,10 +673,11 @@ public class GeneSetPvalRun {
                 geneToScoreMap = geneScores.getGeneToScoreMap();
 
                 GeneSetResamplingPvalGenerator pvg = new GeneSetResamplingPvalGenerator( settings, geneData,
-                        geneToScoreMap, messenger );
+                        geneToScoreMap, messenger, executionPolicy );
                 if ( Thread.currentThread().isInterrupted() ) return;
 
                 results = pvg.generateGeneSetResults();
+                gsrPvalGenerator = pvg;
                 break;
             }
             case ORA: {
@@ -542,6 +685,7 @@ public class GeneSetPvalRun {
                 messenger.showStatus( "Starting ORA analysis" );
                 assert geneScores != null;
                 OraPvalGenerator pvg = new OraPvalGenerator( settings, geneScores, geneData, messenger );
+                pvg.setExecutionPolicy( executionPolicy );
 
                 numAboveThreshold = pvg.getNumGenesOverThreshold();
 
@@ -563,7 +707,23 @@ public class GeneSetPvalRun {
 
                 messenger.showStatus( "Starting correlation resampling in " + Thread.currentThread().getName() );
 
-                NullDistributionGenerator probePvalMapper = new ResamplingCorrelationGeneSetScore( settings, rawData );
+                CorrelationTable correlationTable = null;
+                if ( settings.getPrecomputeCorrelations() ) {
+                    messenger.showStatus( "Computing correlations for " + rawData.rows() + " elements" );
+                    try {
+                        correlationTable = CorrelationTable.fromSettings( settings, rawData, executionPolicy );
+                    } catch ( IOException e ) {
+                        messenger.showStatus( "Could not precompute the correlations, they will be computed as needed: "
+                                + e.getMessage() );
+                    }
+                }
+
+                ResamplingCorrelationGeneSetScore probePvalMapper = new ResamplingCorrelationGeneSetScore( settings,
+                        rawData );
+                probePvalMapper.setExecutionPolicy( executionPolicy );
+                probePvalMapper.setCorrelationTable( correlationTable );
+                probePvalMapper.setGeneSetSizes( geneData.getUsableGeneSetSizes( settings.getMinClassSize(),
+                        settings.getMaxClassSize() ) );
 
                 hist = probePvalMapper.generateNullDistribution( messenger );
 
@@ -571,6 +731,8 @@ public class GeneSetPvalRun {
 
                 CorrelationPvalGenerator pvg = new CorrelationPvalGenerator( settings, geneData, rawData, hist,
                         messenger );
+                pvg.setExecutionPolicy( executionPolicy );
+                pvg.setCorrelationTable( correlationTable );
 
                 messenger.showStatus( "Finished resampling, computing for gene sets" );
 
@@ -588,6 +750,7 @@ public class GeneSetPvalRun {
                 geneToScoreMap = geneScores.getGeneToScoreMap();
 
                 RocPvalGenerator rpg = new RocPvalGenerator( settings, geneData, geneToScoreMap, messenger );
+                rpg.setExecutionPolicy( executionPolicy );
 
                 assert geneScores != null;
 
@@ -607,7 +770,7 @@ public class GeneSetPvalRun {
             return;
         }
 
-        multipleTestCorrect( geneScores );
+        multipleTestCorrect( geneScores, gsrPvalGenerator );
 
         setMultifunctionalities( geneScores, genesAboveThreshold );
 
@@ -18,25 +18,33 @@
  */
 package ubic.erminej.analysis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.ArrayUtils;
 
 import cern.colt.list.DoubleArrayList;
 import cern.jet.stat.Descriptive;
-import ubic.basecode.math.PrecisionRecall;
-import ubic.basecode.math.RandomChooser;
 import ubic.basecode.math.Rank;
 import ubic.basecode.math.Stats;
 import ubic.basecode.util.StatusViewer;
 import ubic.erminej.Settings;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
 import ubic.erminej.data.Gene;
 import ubic.erminej.data.Histogram;
+import ubic.erminej.data.HistogramCache;
+import ubic.erminej.data.RandomSource;
+import ubic.erminej.data.SplittableRandomSource;
 
 /**
  * Calculates a background distribution for class scores derived from randomly selected individual gene scores. This is
@@ -49,9 +57,9 @@ import ubic.erminej.data.Histogram;
  */
 public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSetScore {
 
-    private static int quantile = 50;
+    private int quantile = 50;
 
-    private static double quantfract = 0.5;
+    private double quantfract = 0.5;
 
     // after this size, switch to doing it by normal approximation.
     private static final int MIN_SET_SIZE_FOR_ESTIMATION = 30;
@@ -64,6 +72,11 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
      */
     private Double[] geneScores = null;
 
+    /**
+     * The geneScores as primitives; created when first needed.
+     */
+    private volatile double[] primitiveGeneScores = null;
+
     /**
      * Ranks for all the genes.
      */
@@ -71,6 +84,20 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
 
     private Settings.GeneScoreMethod method;
 
+    private NullDistributionMethod nullDistributionMethod = NullDistributionMethod.RESAMPLING;
+
+    /**
+     * Used by {@link #sequentialPvalue(double, int, boolean, int, RandomSource)}; one per thread, as they keep state
+     * between draws. Each call resets its sampler, so which thread runs it does not change the result.
+     */
+    private final ThreadLocal<SubsetSampler> samplers = new ThreadLocal<SubsetSampler>() {
+        @Override
+        protected SubsetSampler initialValue() {
+            return new SubsetSampler( method.equals( GeneScoreMethod.PRECISIONRECALL ) ? geneRanks.size()
+                    : geneScores.length );
+        }
+    };
+
     /**
      * <p>
      * Constructor for GeneSetResamplingBkgDistGenerator.
@@ -84,15 +111,17 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
         this.classMinSize = settings.getMinClassSize();
         this.numRuns = settings.getIterations();
 
-        Long randomSeed = settings.getSeed();
-        if ( randomSeed != null ) {
-            RandomChooser.init( randomSeed );
-        }
+        this.randomSeed = settings.getSeed();
+        this.randomSource = SplittableRandomSource.fromSettings( settings );
+        this.convergencePolicy = ConvergencePolicy.fromSettings( settings,
+                new ConvergencePolicy( TOLERANCE, 1, 4 * NORMAL_APPROX_SAMPLE_FREQUENCY ) ); // less frequent checking.
+        this.setNumThreads( settings.getNumThreads() );
 
         if ( numRuns <= 0 ) throw new IllegalArgumentException( "Number of iterations must be greater than zero" );
 
         this.setQuantile( settings.getQuantile() );
         this.setMethod( settings.getGeneSetResamplingScoreMethod() );
+        this.setNullDistributionMethod( settings.getNullDistributionMethod() );
         this.setUseNormalApprox( !settings.getAlwaysUseEmpirical() );
 
         // this.setUseSpeedUp( !settings.getAlwaysUseEmpirical() );
@@ -139,7 +168,11 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
     public double computeRawScore( double[] genevalues, Collection<Gene> genesInSet ) {
 
         if ( method.equals( Settings.GeneScoreMethod.MEAN ) ) {
-            return Descriptive.mean( new DoubleArrayList( genevalues ) );
+            double sum = 0.0;
+            for ( double v : genevalues ) {
+                sum += v;
+            }
+            return sum / genevalues.length;
         } else if ( method.equals( Settings.GeneScoreMethod.PRECISIONRECALL ) ) {
             assert genesInSet != null;
             return averagePrecision( genesInSet );
@@ -161,95 +194,228 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
      * {@inheritDoc}
      *
      * Used for methods which require randomly sampling classes to generate a null distribution of scores based on
-     * gene-by-gene scores.
+     * gene-by-gene scores. Each gene set size is simulated independently with its own random stream, so the sizes can
+     * be spread over several threads (see {@link #setNumThreads(int)}); because the streams are split off in a fixed
+     * order, the results for a given seed do not depend on the number of threads used.
      */
     @Override
     public Histogram generateNullDistribution( StatusViewer m ) {
 
-        int numGenes = geneScores.length;
-        List<Gene> genes = new Vector<>( geneRanks.keySet() );
         assert hist != null;
-        //     assert numGenes >= classMaxSize;
 
-        // // we use this throughout.
-        // int[] deck = new int[numGenes];
-        // for ( int i = 0; i < numGenes; i++ ) {
-        // deck[i] = i;
-        // }
+        if ( method.equals( GeneScoreMethod.MEAN ) && ( nullDistributionMethod.equals( NullDistributionMethod.NORMAL )
+                || nullDistributionMethod.equals( NullDistributionMethod.EDGEWORTH ) ) ) {
+            return generateAnalyticNullDistribution( m );
+        }
 
-        boolean usingPrecisionRecall = method.equals( SettingsHolder.GeneScoreMethod.PRECISIONRECALL );
+        final double[] primGeneScores = getPrimitiveGeneScores();
 
-        for ( int geneSetSize = classMinSize; geneSetSize <= classMaxSize && geneSetSize <= numGenes; geneSetSize++ ) {
+        List<Integer> sizesToSample = getGeneSetSizesToSample( geneScores.length );
+        RandomSource random = randomSource.split();
 
-            DoubleArrayList values = new DoubleArrayList();
-            double oldmean = Double.MAX_VALUE;
-            double oldvar = Double.MAX_VALUE;
+        if ( numThreads <= 1 || sizesToSample.size() < 2 ) {
+            for ( int geneSetSize : sizesToSample ) {
+                ifInterruptedStop();
+                hist.merge( sampleGeneSetSize( geneSetSize, random.split(), primGeneScores ) );
+                showProgress( m, geneSetSize );
+            }
+            hist.tocdf();
+            return hist;
+        }
 
-            double[] primGeneScores = ArrayUtils.toPrimitive( geneScores );
+        ForkJoinPool pool = new ForkJoinPool( Math.min( numThreads, sizesToSample.size() ) );
+        try {
+            List<Future<Histogram>> partials = new ArrayList<>();
+            for ( final int geneSetSize : sizesToSample ) {
+                final RandomSource stream = random.split();
+                partials.add( pool.submit( new Callable<Histogram>() {
+                    @Override
+                    public Histogram call() {
+                        return sampleGeneSetSize( geneSetSize, stream, primGeneScores );
+                    }
+                } ) );
+            }
 
-            for ( int k = 0; k < numRuns; k++ ) {
+            for ( int i = 0; i < sizesToSample.size(); i++ ) {
+                hist.merge( partials.get( i ).get() );
+                showProgress( m, sizesToSample.get( i ) );
+            }
+        } catch ( InterruptedException e ) {
+            throw new CancellationException( "Cancelled" );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
 
-                double rawScore = 0;
+        hist.tocdf();
+        return hist;
+    }
 
-                /*
-                 * Depending on the method, we need either random gene scores or a list of genes.
-                 */
-                if ( usingPrecisionRecall ) {
-                    List<Gene> randomClass = ( List<Gene> ) RandomChooser.chooserandom( genes, geneSetSize );
-                    rawScore = computeRawScore( null, randomClass );
-                } else {
-                    double[] randomClassScores = RandomChooser.chooserandom( primGeneScores, geneSetSize );
-                    rawScore = computeRawScore( randomClassScores, null );
-                }
+    /**
+     * Compute the null distribution for the mean score without resampling. The mean of k scores drawn without
+     * replacement from the N gene scores has the mean of the population and variance (sigma^2 / k)(N - k)/(N - 1),
+     * where sigma^2 is the population variance; this is used for a normal approximation, optionally corrected for the
+     * skewness of the sample mean, which is mu3 (N - k)(N - 2k) / (k^2 (N - 1)(N - 2)) / variance^1.5 where mu3 is the
+     * third central moment of the population.
+     *
+     * @param m
+     * @return
+     */
+    private Histogram generateAnalyticNullDistribution( StatusViewer m ) {
+        assert method.equals( GeneScoreMethod.MEAN );
 
-                values.add( rawScore );
-                hist.update( geneSetSize, rawScore );
+        if ( m != null ) m.showProgress( "Computing analytic null distribution" );
 
-                // check convergence. Not using this for precision-recall at the moment
-                if ( !usingPrecisionRecall && useNormalApprox && k > MIN_ITERATIONS_FOR_ESTIMATION
-                        && geneSetSize > MIN_SET_SIZE_FOR_ESTIMATION && k > 0
-                        && k % ( 4 * NORMAL_APPROX_SAMPLE_FREQUENCY ) == 0 ) { // less frequent checking.
+        double[] scores = ArrayUtils.toPrimitive( geneScores );
+        int n = scores.length;
 
-                    double mean = Descriptive.mean( values );
-                    double variance = Descriptive.variance( values.size(), Descriptive.sum( values ),
-                            Descriptive.sumOfSquares( values ) );
+        double mean = 0.0;
+        for ( double v : scores ) {
+            mean += v;
+        }
+        mean /= n;
+
+        double m2 = 0.0;
+        double m3 = 0.0;
+        for ( double v : scores ) {
+            double d = v - mean;
+            m2 += d * d;
+            m3 += d * d * d;
+        }
+        m2 /= n;
+        m3 /= n;
 
-                    if ( Math.abs( oldvar - variance ) <= TOLERANCE && Math.abs( oldmean - mean ) <= TOLERANCE ) {
-                        hist.addExactNormalProbabilityComputer( geneSetSize, mean, variance );
-                        if ( log.isDebugEnabled() )
-                            log.debug( "Class size: " + geneSetSize + " - Reached convergence to normal after " + k
-                                    + " iterations." );
-                        break;
-                    }
+        boolean edgeworth = nullDistributionMethod.equals( NullDistributionMethod.EDGEWORTH );
 
-                    oldmean = mean;
-                    oldvar = variance;
-                }
+        Collection<Integer> sizes = geneSetSizes;
+        if ( sizes == null ) {
+            sizes = new ArrayList<>();
+            for ( int k = classMinSize; k <= classMaxSize; k++ ) {
+                sizes.add( k );
+            }
+        }
 
-                if ( k % 1000 == 0 ) {
-                    ifInterruptedStop();
-                }
+        for ( int k : sizes ) {
+            if ( k < classMinSize || k > classMaxSize || k >= n ) continue; // when k == n there is no variance.
 
-            }
+            double variance = m2 / k * ( n - k ) / ( n - 1.0 );
+            if ( variance <= 0.0 ) continue;
 
-            if ( m != null ) {
-                m.showProgress( "Generating background distribution for class size " + geneSetSize + " [maxiters = "
-                        + numRuns + "]" );
+            double skewness = 0.0;
+            if ( edgeworth && n > 2 ) {
+                double thirdMoment = m3 / ( ( double ) k * k ) * ( n - k ) * ( n - 2.0 * k )
+                        / ( ( n - 1.0 ) * ( n - 2.0 ) );
+                skewness = thirdMoment / Math.pow( variance, 1.5 );
             }
 
-            /*
-             * To improve performance, after a certain gene set size has been surpassed, don't do every size. The
-             * distributions are very similar.
-             */
-            if ( useSpeedUp && geneSetSize >= SPEEDUPSIZECUT ) {
-                geneSetSize += Math.floor( SPEDUPSIZEEXTRASTEP * geneSetSize );
-            }
+            hist.addEdgeworthProbabilityComputer( k, mean, variance, skewness );
         }
 
         hist.tocdf();
         return hist;
     }
 
+    /**
+     * The ranks of the genes, as used for precision-recall.
+     *
+     * @return a {@link java.util.Map} object.
+     */
+    protected Map<Gene, Double> getGeneRanks() {
+        return geneRanks;
+    }
+
+    /**
+     * Identifies the null distribution this generates, for use with a {@link HistogramCache}. The distribution does
+     * not depend on which gene has which score, so only the sorted scores are used; for precision-recall it depends
+     * only on the number of genes, so it is shared by all score sets of the same size.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getNullDistributionKey() {
+        HistogramCache.KeyBuilder key = nullDistributionKey().add( method );
+        if ( method.equals( GeneScoreMethod.PRECISIONRECALL ) ) {
+            return key.add( geneRanks.size() ).build();
+        }
+        double[] values = ArrayUtils.toPrimitive( geneScores );
+        Arrays.sort( values );
+        return key.add( nullDistributionMethod ).add( quantile ).add( values ).build();
+    }
+
+    /**
+     * A random stream for the sequential p-value of one gene set. When a seed was set, the stream depends only on the
+     * seed and the key, so the p-value for a gene set does not depend on which other gene sets are analyzed, or in
+     * which order.
+     *
+     * @param key identifies the gene set, e.g. its id.
+     * @return a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public RandomSource getRandomSource( String key ) {
+        if ( randomSeed == null ) {
+            return new SplittableRandomSource();
+        }
+        return new SplittableRandomSource( 31 * randomSeed + key.hashCode() );
+    }
+
+    /**
+     * Compute the p-value for one gene set by sequential resampling (Besag and Clifford, 1991), instead of looking it
+     * up in a null distribution shared by all gene sets of the same size. Random gene sets of the same size are scored
+     * until maxExceedances of them have scored at least as well as the observed score, or the number of iterations is
+     * used up. In the first case the p-value is maxExceedances divided by the number of random sets scored, otherwise
+     * it is (exceedances + 1) / (iterations + 1). Gene sets that are clearly not significant thus stop after a few
+     * dozen random sets, and only the ones with small p-values use the full number of iterations.
+     * <p>
+     * This is safe to call from multiple threads at once, as long as each call gets its own random stream.
+     *
+     * @param observedScore the raw score of the gene set, from {@link #computeRawScore(double[], Collection)}.
+     * @param geneSetSize a int.
+     * @param upperTail a boolean.
+     * @param maxExceedances a int; how many random sets must score at least as well before stopping.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     * @return a double.
+     */
+    public double sequentialPvalue( double observedScore, int geneSetSize, boolean upperTail, int maxExceedances,
+            RandomSource random ) {
+        if ( maxExceedances < 1 ) {
+            throw new IllegalArgumentException( "The number of exceedances must be at least 1" );
+        }
+
+        boolean usingPrecisionRecall = method.equals( SettingsHolder.GeneScoreMethod.PRECISIONRECALL );
+        SubsetSampler sampler = samplers.get();
+        sampler.reset();
+        double[] primGeneScores = usingPrecisionRecall ? null : getPrimitiveGeneScores();
+        double[] randomClassScores = new double[geneSetSize];
+        int[] randomClassRanks = new int[geneSetSize];
+
+        int exceedances = 0;
+        for ( int k = 1; k <= numRuns; k++ ) {
+
+            double rawScore;
+            if ( usingPrecisionRecall ) {
+                sampler.sampleIndices( randomClassRanks, random );
+                rawScore = averagePrecision( randomClassRanks );
+            } else {
+                sampler.sample( primGeneScores, randomClassScores, random );
+                rawScore = computeRawScore( randomClassScores, null );
+            }
+
+            if ( upperTail ? rawScore >= observedScore : rawScore <= observedScore ) {
+                if ( ++exceedances == maxExceedances ) {
+                    return ( double ) exceedances / k;
+                }
+            }
+
+            if ( k % 1000 == 0 ) {
+                ifCancelledStop();
+            }
+        }
+
+        return ( exceedances + 1.0 ) / ( numRuns + 1.0 );
+    }
+
     /**
      * Figure out the limits that should be used for the histogram.
      */
@@ -282,6 +448,18 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
         }
     }
 
+    /**
+     * Choose how the null distribution is obtained. The analytic methods are only used for the
+     * {@link GeneScoreMethod#MEAN} score. Resampling remains available, e.g. for checking the analytic methods. For
+     * {@link NullDistributionMethod#SEQUENTIAL}, p-values are computed per gene set with
+     * {@link #sequentialPvalue(double, int, boolean, int, RandomSource)} rather than from the null distribution.
+     *
+     * @param nullDistributionMethod a {@link ubic.erminej.SettingsHolder.NullDistributionMethod} object.
+     */
+    public void setNullDistributionMethod( NullDistributionMethod nullDistributionMethod ) {
+        this.nullDistributionMethod = nullDistributionMethod;
+    }
+
     /**
      * <p>
      * Setter for the field <code>quantile</code>.
@@ -294,6 +472,38 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
         quantfract = quantile / 100.0;
     }
 
+    /**
+     * Average precision for a set of genes whose 0-based ranks are given: the mean, over the genes, of the precision
+     * at each gene's position, which is i / (rank + 1) for the i-th best gene in the set.
+     *
+     * @param ranks a array of double; sorted in place.
+     * @param n how many of the ranks to use.
+     * @return a double.
+     */
+    protected static double averagePrecision( double[] ranks, int n ) {
+        Arrays.sort( ranks, 0, n );
+        double sum = 0.0;
+        for ( int i = 0; i < n; i++ ) {
+            sum += ( i + 1 ) / ( ranks[i] + 1.0 );
+        }
+        return sum / n;
+    }
+
+    /**
+     * As {@link #averagePrecision(double[], int)}, for integer ranks.
+     *
+     * @param ranks a array of int; sorted in place.
+     * @return a double.
+     */
+    protected static double averagePrecision( int[] ranks ) {
+        Arrays.sort( ranks );
+        double sum = 0.0;
+        for ( int i = 0; i < ranks.length; i++ ) {
+            sum += ( i + 1 ) / ( ranks[i] + 1.0 );
+        }
+        return sum / ranks.length;
+    }
+
     /**
      * <p>
      * averagePrecision.
@@ -305,18 +515,102 @@ public class GeneSetResamplingBkgDistGenerator extends AbstractResamplingGeneSet
     protected double averagePrecision( Collection<Gene> genesInSet ) {
         assert geneRanks.size() >= genesInSet.size();
 
-        List<Double> ranksOfPositives = new Vector<>();
+        double[] ranksOfPositives = new double[genesInSet.size()];
+        int n = 0;
         for ( Gene gene : genesInSet ) {
-            if ( geneRanks.containsKey( gene ) ) {
-                Double rank = geneRanks.get( gene );
-                ranksOfPositives.add( rank );
+            Double rank = geneRanks.get( gene );
+            if ( rank != null ) {
+                ranksOfPositives[n++] = rank;
             } else {
                 log.warn( "Missing rank for " + gene );
             }
         }
 
-        return PrecisionRecall.averagePrecision( ranksOfPositives );
+        return averagePrecision( ranksOfPositives, n );
+
+    }
+
+    /**
+     * Simulate the null distribution for one gene set size. This is safe to call from multiple threads at once, as
+     * long as each call gets its own random stream.
+     *
+     * @param geneSetSize
+     * @param random stream to be used only by this call.
+     * @param primGeneScores all the gene scores
+     * @return a partial histogram holding only the given gene set size.
+     */
+    private Histogram sampleGeneSetSize( int geneSetSize, RandomSource random, double[] primGeneScores ) {
+
+        Histogram partial = new Histogram( 1, geneSetSize, numRuns, histogramMax, histogramMin );
+
+        boolean usingPrecisionRecall = method.equals( SettingsHolder.GeneScoreMethod.PRECISIONRECALL );
+
+        /*
+         * Buffers reused for every iteration.
+         */
+        SubsetSampler sampler = new SubsetSampler( usingPrecisionRecall ? geneRanks.size() : primGeneScores.length );
+        double[] randomClassScores = new double[geneSetSize];
+        int[] randomClassRanks = new int[geneSetSize];
+
+        RunningMoments moments = new RunningMoments();
+
+        for ( int k = 0; k < numRuns; k++ ) {
+
+            double rawScore = 0;
+
+            /*
+             * Depending on the method, we need either random gene scores or random ranks. Which genes have the ranks
+             * doesn't matter.
+             */
+            if ( usingPrecisionRecall ) {
+                sampler.sampleIndices( randomClassRanks, random );
+                rawScore = averagePrecision( randomClassRanks );
+            } else {
+                sampler.sample( primGeneScores, randomClassScores, random );
+                rawScore = computeRawScore( randomClassScores, null );
+            }
+
+            moments.add( rawScore );
+            partial.update( geneSetSize, rawScore );
+
+            // check convergence. Not using this for precision-recall at the moment
+            if ( !usingPrecisionRecall && useNormalApprox && k > MIN_ITERATIONS_FOR_ESTIMATION
+                    && geneSetSize > MIN_SET_SIZE_FOR_ESTIMATION && convergencePolicy.isCheckPoint( k )
+                    && moments.checkConvergence( convergencePolicy ) ) {
+                partial.addExactNormalProbabilityComputer( geneSetSize, moments.getMean(), moments.getVariance() );
+                if ( log.isDebugEnabled() )
+                    log.debug( "Class size: " + geneSetSize + " - Reached convergence to normal after " + k
+                            + " iterations." );
+                break;
+            }
+
+            if ( k % 1000 == 0 ) {
+                ifCancelledStop();
+            }
+
+        }
+        return partial;
+    }
+
+    /**
+     * @return the scores of all the genes.
+     */
+    private double[] getPrimitiveGeneScores() {
+        if ( primitiveGeneScores == null ) {
+            primitiveGeneScores = ArrayUtils.toPrimitive( geneScores );
+        }
+        return primitiveGeneScores;
+    }
 
+    /**
+     * @param m
+     * @param geneSetSize
+     */
+    private void showProgress( StatusViewer m, int geneSetSize ) {
+        if ( m != null ) {
+            m.showProgress( "Generating background distribution for class size " + geneSetSize + " [maxiters = "
+                    + numRuns + "]" );
+        }
     }
 
     /**
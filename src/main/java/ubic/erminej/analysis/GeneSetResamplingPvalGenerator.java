@@ -27,15 +27,19 @@ import java.util.Map;
 import ubic.basecode.util.StatusViewer;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
 import ubic.erminej.data.Gene;
 import ubic.erminej.data.GeneAnnotations;
 import ubic.erminej.data.GeneSetResult;
 import ubic.erminej.data.GeneSetTerm;
 import ubic.erminej.data.Histogram;
+import ubic.erminej.data.HistogramCache;
 
 /**
  * Generates gene set p values using the resampling-based 'experiment score' method of Pavlidis et al. 2002, or by using
- * precision-recall curves (which are also calibrated by using resampling).
+ * precision-recall curves (which are also calibrated by using resampling). With
+ * {@link NullDistributionMethod#SEQUENTIAL}, each gene set gets its own sequential resampling instead of sharing a
+ * null distribution with the other sets of the same size.
  *
  * @author Paul Pavlidis
  */
@@ -45,6 +49,11 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
 
     protected GeneSetResamplingBkgDistGenerator generator;
 
+    /**
+     * If true, p-values are computed for each gene set separately by sequential resampling, and there is no histogram.
+     */
+    private boolean sequential = false;
+
     /**
      * <p>
      * Constructor for GeneSetResamplingPvalGenerator.
@@ -57,9 +66,41 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
      */
     public GeneSetResamplingPvalGenerator( SettingsHolder settings, GeneAnnotations a,
             Map<Gene, Double> geneToScoreMap, StatusViewer messenger ) {
+        this( settings, a, geneToScoreMap, messenger, ExecutionPolicy.getDefault() );
+    }
+
+    /**
+     * Like {@link #GeneSetResamplingPvalGenerator(SettingsHolder, GeneAnnotations, Map, StatusViewer)}, with the
+     * policy to use already while generating the null distribution, which is done here.
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @param a a {@link ubic.erminej.data.GeneAnnotations} object.
+     * @param geneToScoreMap already log-transformed, if requested.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object.
+     * @param executionPolicy a {@link ubic.erminej.analysis.ExecutionPolicy} object.
+     */
+    public GeneSetResamplingPvalGenerator( SettingsHolder settings, GeneAnnotations a,
+            Map<Gene, Double> geneToScoreMap, StatusViewer messenger, ExecutionPolicy executionPolicy ) {
         super( settings, a, geneToScoreMap, messenger );
         this.generator = new GeneSetResamplingBkgDistGenerator( settings, geneToScoreMap );
-        this.hist = generator.generateNullDistribution( messenger );
+        this.setExecutionPolicy( executionPolicy );
+
+        this.sequential = settings.getNullDistributionMethod().equals( NullDistributionMethod.SEQUENTIAL );
+        if ( sequential ) {
+            return;
+        }
+
+        generator.setGeneSetSizes( a.getUsableGeneSetSizes( settings.getMinClassSize(), settings.getMaxClassSize() ) );
+
+        HistogramCache cache = HistogramCache.fromSettings( settings );
+        String key = generator.getNullDistributionKey();
+        this.hist = cache.get( key );
+        if ( hist == null ) {
+            this.hist = generator.generateNullDistribution( messenger );
+            cache.put( key, hist );
+        } else if ( messenger != null ) {
+            messenger.showStatus( "Using previously computed null distribution" );
+        }
     }
 
     /**
@@ -97,7 +138,13 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
         // get raw score and pvalue.
         double rawscore = generator.computeRawScore( groupGeneScores, genesInSet );
 
-        double pval = scoreToPval( numGenesInSet, rawscore );
+        double pval;
+        if ( sequential ) {
+            pval = generator.sequentialPvalue( rawscore, numGenesInSet, settings.upperTail(),
+                    settings.getSequentialExceedances(), generator.getRandomSource( geneSetName.getId() ) );
+        } else {
+            pval = scoreToPval( numGenesInSet, rawscore );
+        }
 
         if ( pval < 0.0 ) {
             throw new IllegalStateException( "A raw score (" + rawscore + ") yielded an invalid pvalue: Classname: "
@@ -124,6 +171,7 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
 
         ExperimentScoreQuickPvalGenerator cpv = new ExperimentScoreQuickPvalGenerator( settings, geneAnnots,
                 geneToScoreMap, getMessenger() );
+        cpv.setExecutionPolicy( getExecutionPolicy() );
 
         for ( Iterator<GeneSetTerm> iter = geneAnnots.getGeneSetTerms().iterator(); iter.hasNext(); ) {
             GeneSetTerm className = iter.next();
@@ -150,6 +198,17 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
         return results;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The policy is also used for generating the null distribution and the sequential p-values.
+     */
+    @Override
+    public void setExecutionPolicy( ExecutionPolicy executionPolicy ) {
+        super.setExecutionPolicy( executionPolicy );
+        if ( generator != null ) generator.setExecutionPolicy( executionPolicy );
+    }
+
     /**
      * <p>
      * generateGeneSetResults.
@@ -159,20 +218,12 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
      * @return a {@link java.util.Map} object.
      */
     protected Map<GeneSetTerm, GeneSetResult> generateGeneSetResults( boolean useMultifunctionalityCorrection ) {
-        Map<GeneSetTerm, GeneSetResult> results;
-        results = new HashMap<>();
-
-        int i = 0;
-        for ( GeneSetTerm className : geneAnnots.getGeneSetTerms() ) {
-            ifInterruptedStop();
-            GeneSetResult res = this.classPval( className );
-            if ( res != null ) {
-                results.put( className, res );
-                if ( ++i % ALERT_UPDATE_FREQUENCY == 0 ) {
-                    getMessenger().showProgress( i + " gene sets analyzed" );
-                }
+        Map<GeneSetTerm, GeneSetResult> results = scoreGeneSets( new GeneSetScorer() {
+            @Override
+            public GeneSetResult score( GeneSetTerm geneSet ) {
+                return classPval( geneSet );
             }
-        }
+        }, false );
         if ( results.isEmpty() ) return results;
         GeneSetPvalRun.populateRanks( results );
 
@@ -185,7 +236,7 @@ public class GeneSetResamplingPvalGenerator extends AbstractGeneSetPvalGenerator
 
             /* compute new results */
             GeneSetResamplingPvalGenerator pvg = new GeneSetResamplingPvalGenerator( this.settings, this.geneAnnots,
-                    adjustScores, this.messenger );
+                    adjustScores, this.messenger, getExecutionPolicy() );
 
             Map<GeneSetTerm, GeneSetResult> mfCorrectedResults = pvg.generateGeneSetResults( false );
             List<GeneSetTerm> sortedClasses = GeneSetPvalRun.getSortedClasses( mfCorrectedResults );
@@ -0,0 +1,185 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Upper tail probabilities of the hypergeometric distribution for a fixed population and number of draws, as needed
+ * for over-representation analysis: N genes, n of which are "hits", and a gene set of size K with k hits. The
+ * probability is P(X &ge; k) for X hypergeometric.
+ * <p>
+ * Log-factorials up to N are tabulated once. The first time a set size K is seen, the probabilities of every possible
+ * number of hits are computed from the one at the mode using the ratio of successive terms,
+ * <code>p(i+1)/p(i) = (K-i)(n-i) / ((i+1)(N-K-n+i+1))</code>, and summed from the top down; after that every tail
+ * for that K is a lookup. Gene set sizes repeat a lot, so scoring each set costs O(1) on average. Safe for use by
+ * several threads.
+ *
+ * @version $Id$
+ */
+public class HypergeometricTail {
+
+    private final int numGenes;
+
+    private final int numHits;
+
+    /**
+     * logFactorial[i] = log(i!)
+     */
+    private final double[] logFactorial;
+
+    /**
+     * For each set size, the upper tails for all numbers of successes, once computed.
+     */
+    private final AtomicReferenceArray<double[]> tails;
+
+    /**
+     * <p>
+     * Constructor for HypergeometricTail.
+     * </p>
+     *
+     * @param numGenes N, the total number of genes.
+     * @param numHits n, how many of them are hits.
+     */
+    public HypergeometricTail( int numGenes, int numHits ) {
+        if ( numGenes < 0 || numHits < 0 || numHits > numGenes ) {
+            throw new IllegalArgumentException( "Invalid number of genes (" + numGenes + ") or hits (" + numHits
+                    + ")" );
+        }
+        this.numGenes = numGenes;
+        this.numHits = numHits;
+        this.logFactorial = new double[numGenes + 1];
+        for ( int i = 2; i <= numGenes; i++ ) {
+            logFactorial[i] = logFactorial[i - 1] + Math.log( i );
+        }
+        this.tails = new AtomicReferenceArray<>( numGenes + 1 );
+    }
+
+    /**
+     * For the same number of genes as another instance but a different number of hits, reusing its table of
+     * log-factorials.
+     *
+     * @param other a {@link ubic.erminej.analysis.HypergeometricTail} object.
+     * @param numHits n, how many of the genes are hits.
+     */
+    HypergeometricTail( HypergeometricTail other, int numHits ) {
+        if ( numHits < 0 || numHits > other.numGenes ) {
+            throw new IllegalArgumentException( "Invalid number of hits (" + numHits + ") for " + other.numGenes
+                    + " genes" );
+        }
+        this.numGenes = other.numGenes;
+        this.numHits = numHits;
+        this.logFactorial = other.logFactorial;
+        this.tails = new AtomicReferenceArray<>( numGenes + 1 );
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>numGenes</code>.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int getNumGenes() {
+        return numGenes;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>numHits</code>.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * The probability of seeing at least the given number of hits in a gene set of the given size.
+     *
+     * @param setSize K, the number of genes in the set.
+     * @param successes k, how many of them are hits.
+     * @return P(X &ge; k); 1 if k &le; 0 and 0 if k is more than possible.
+     */
+    public double upperTail( int setSize, int successes ) {
+        if ( setSize < 0 || setSize > numGenes ) {
+            throw new IllegalArgumentException( "Set size must be between 0 and " + numGenes + ", was " + setSize );
+        }
+        if ( successes <= 0 ) return 1.0;
+
+        double[] t = tails.get( setSize );
+        if ( t == null ) {
+            t = computeTails( setSize );
+            tails.compareAndSet( setSize, null, t );
+        }
+        if ( successes >= t.length ) return 0.0;
+        return t[successes];
+    }
+
+    /**
+     * @param setSize
+     * @return upper tails for 0 .. min(setSize, numHits) successes.
+     */
+    private double[] computeTails( int setSize ) {
+        int lo = Math.max( 0, numHits - ( numGenes - setSize ) );
+        int hi = Math.min( setSize, numHits );
+
+        // the individual probabilities, starting from the mode, where they are largest.
+        double[] p = new double[hi + 1];
+        int mode = ( int ) Math.floor( ( numHits + 1.0 ) * ( setSize + 1.0 ) / ( numGenes + 2.0 ) );
+        mode = Math.max( lo, Math.min( hi, mode ) );
+        p[mode] = Math.exp( logChoose( setSize, mode ) + logChoose( numGenes - setSize, numHits - mode )
+                - logChoose( numGenes, numHits ) );
+        for ( int i = mode; i < hi; i++ ) {
+            p[i + 1] = p[i] * ratio( setSize, i );
+        }
+        for ( int i = mode; i > lo; i-- ) {
+            p[i - 1] = p[i] / ratio( setSize, i - 1 );
+        }
+
+        double[] t = new double[hi + 1];
+        double sum = 0.0;
+        for ( int i = hi; i >= 0; i-- ) {
+            sum += p[i];
+            t[i] = Math.min( 1.0, sum );
+        }
+        return t;
+    }
+
+    /**
+     * @param n
+     * @param k
+     * @return log of n choose k
+     */
+    private double logChoose( int n, int k ) {
+        return logFactorial[n] - logFactorial[k] - logFactorial[n - k];
+    }
+
+    /**
+     * @param setSize
+     * @param i
+     * @return p(i + 1) / p(i)
+     */
+    private double ratio( int setSize, int i ) {
+        return ( ( double ) ( setSize - i ) * ( numHits - i ) )
+                / ( ( i + 1.0 ) * ( numGenes - setSize - numHits + i + 1.0 ) );
+    }
+
+}
@@ -40,6 +40,7 @@ import ubic.erminej.data.GeneScores;
 import ubic.erminej.data.GeneSet;
 import ubic.erminej.data.GeneSetResult;
 import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.SplittableRandomSource;
 
 /**
  * Perform multiple test correction on class scores. Multiple test correction is based on the non-redundant set of gene
@@ -177,176 +178,48 @@ public class MultipleTestCorrector extends AbstractLongTask {
     /**
      * Run WY with a default number of trials.
      *
+     * @param pvg the generator that produced the results, for the gene set resampling method.
      */
-    public void westfallyoung() {
-        if ( geneScores == null )
-            throw new UnsupportedOperationException( "Can't run WY correction on correlated method results." );
-        westfallyoung( DEFAULT_WY_TRIALS ); // default number of trials.
+    public void westfallyoung( GeneSetResamplingPvalGenerator pvg ) {
+        westfallyoung( pvg, DEFAULT_WY_TRIALS );
     }
 
     /**
-     * Westfall-Young pvalue correction. Based on algorithm 2.8, pg 66 of 'Resampling-based Multiple Testing'.
-     * <ol>
-     * <li>Sort the pvalues for the real data (assume worst pvalue is first)
-     * <li>Make an array of count variables, one for each class, intialize to zero. loop: (n=10,000).
-     * <li>Generate class pvalues for randomized values (see above); 3. Iterate over this in the same order as the
-     * actual order.
-     * <li>Define successive minima: (q is the trial; p is real, already ranked)
-     * <ol>
-     * <li>a. qk = pk (class with worst pvalue)
-     * <li>b. qk-1 = min (qk, pk-1) ...
-     * </ol>
-     * <li>at each step a.... if qi &lt;= pi, count_i++ end loop.
-     * <li>p_i* = count_i/n 7. enforce monotonicity by using successive maximization.
-     * </ol>
+     * Westfall-Young pvalue correction. Based on algorithm 2.8, pg 66 of 'Resampling-based Multiple Testing'; see
+     * {@link WestfallYoungEngine}. The null distribution already computed by the generator is reused for the permuted
+     * data.
      * 
      * todo get this working with the other types of scoring methods (ORA, ROC for example)
      *
+     * @param pvg the generator that produced the results, for the gene set resampling method.
      * @param trials How many random trials to do. According to W-Y, it should be &gt;=10,000.
-     * 
      */
-    public void westfallyoung( int trials ) {
-
-        int[] counts = new int[toUseForMTC.size()];
-        for ( int i = 0; i < toUseForMTC.size(); i++ ) {
-            counts[i] = 0;
-        }
-
-        Collections.reverse( toUseForMTC ); // start from the worst class.
-        Map<GeneSetTerm, Double> permscores;
-
-        ExperimentScoreQuickPvalGenerator cver = new ExperimentScoreQuickPvalGenerator( settings, geneData,
-                geneScores.getGeneToScoreMap(), messenger );
-
-        for ( int i = 0; i < trials; i++ ) {
-            // System.err.println("Trial: " + i );
-
-            // shuffle the association of pvalues to genes.
-            // these should be multifunctionality corrected!!
-            // Map<Gene, Double> scgroup_pval_map = geneScores.getGeneToScoreMap( true );
-
-            // / permscores contains a list of the p values for the shuffled data.
-            permscores = cver.classPvalGeneratorRaw(); // end of step 1.
-
-            int j = 0;
-            double permp = 0.0;
-            Double m = new Double( 1.0 );
-            // Double m = (Double)permscores.get(j); // first sim value (for worst
-            // class in real data)
-            double q = m.doubleValue(); // pvalue for the previous permutation,
-            // initialized here.
-            double qprev = q;
-            double actual_p = 0.0;
-            GeneSetTerm nextclass = null;
-
-            // successive minima of step 2, pg 66. Also does step 3.
-            for ( Iterator<GeneSetTerm> it = toUseForMTC.iterator(); it.hasNext(); ) {
-
-                ifInterruptedStop();
-
-                /*
-                 * going in the correct order for the 'real' data, starting from the worst class.
-                 */
-                if ( Thread.currentThread().isInterrupted() ) {
-                    throw new CancellationException();
-                }
-                nextclass = it.next();
-
-                GeneSetResult res = results.get( nextclass );
-                actual_p = res.getPvalue(); // pvalue for this class on real data.
-
-                m = permscores.get( nextclass );
-                permp = m.doubleValue(); // randomized pvalue for this class.
-
-                /*
-                 * The best values for permp for this trial bubbles up. The way this works is that if two classes are
-                 * highly correlated, their permuted pvalues will tend to be the same. Then, whatever decision is made
-                 * here will tend to be the same decision made for the next (correlated class). That is how the
-                 * resulting corrected p values for correlated classes are correlated.
-                 */
-                q = Math.min( qprev, permp );
-
-                /* step 3 */
-                if ( q <= actual_p ) { // for bad classes, this will often be true.
-                    // Otherwise we see it less.
-                    counts[j]++;
-                }
-
-                /*
-                 * the following tests two classes which are very similar. Their permutation p values should be
-                 * correlated
-                 */
-                /*
-                 * if (nextclass.equals("GO:0006956")) { System.err.print("\tGO:0006956\t" + nf.format(permp) + "\n"); }
-                 * if (nextclass.equals("GO:0006958")) { System.err.print("\tGO:0006958\t" + nf.format(permp)); }
-                 */
-
-                if ( log.isDebugEnabled() && j == toUseForMTC.size() - 1 ) {
-                    /*
-                     * monitor what happens to the best class.
-                     */
-                    System.err.println( "Sim " + i + " class# " + j + " " + nextclass + " size=" + res.getNumGenes()
-                            + " q=" + nf.format( q ) + " qprev=" + nf.format( qprev ) + " pperm=" + nf.format( permp )
-                            + " actp=" + nf.format( actual_p ) + " countj=" + counts[j] + " currentp="
-                            + ( double ) counts[j] / ( i + 1 ) );
-
-                }
-                j++;
-                qprev = q;
-            }
-
-            if ( i % 100 == 0 ) {
-                ifInterruptedStop();
-                try {
-                    Thread.sleep( 10 );
-                } catch ( InterruptedException e ) {
-                    log.debug( "Interrupted" );
-                    throw new CancellationException();
-                }
-            }
-
-            if ( 0 == i % 100 ) {
-                if ( messenger != null )
-                    messenger.showStatus( i + " Westfall-Young trials, " + ( trials - i ) + " to go." );
-            }
-
-        }
-
-        // now the best class is first.
-        Collections.reverse( toUseForMTC );
-
-        // index of the best class (last one
-        // tested above).
-        int j = toUseForMTC.size() - 1;
-
-        /*
-         * pvalue for the best class.
-         */
-        double corrected_p = counts[toUseForMTC.size() - 1] / trials;
+    public void westfallyoung( GeneSetResamplingPvalGenerator pvg, int trials ) {
+        if ( geneScores == null )
+            throw new UnsupportedOperationException( "Can't run WY correction on correlated method results." );
 
-        double previous_p = corrected_p;
+        WestfallYoungEngine engine = new WestfallYoungEngine( pvg, toUseForMTC, results );
+        engine.setExecutionPolicy( getExecutionPolicy() );
+        double[] corrected = engine.correct( trials, settings.getNumThreads(),
+                SplittableRandomSource.fromSettings( settings ), messenger );
 
-        /*
-         * Step 4 and enforce monotonicity, pg 67 (step 5) starting from the best class.
-         */
-        for ( Iterator<GeneSetTerm> it = toUseForMTC.iterator(); it.hasNext(); ) {
+        for ( int j = 0; j < toUseForMTC.size(); j++ ) {
             if ( Thread.currentThread().isInterrupted() ) throw new CancellationException();
-            GeneSetResult res = results.get( it.next() );
-            corrected_p = Math.max( ( double ) counts[j] / ( double ) trials, previous_p ); // first iteration, these
-            // are the same.
+            GeneSetTerm nextclass = toUseForMTC.get( j );
+            GeneSetResult res = results.get( nextclass );
 
-            if ( log.isDebugEnabled() ) log.debug( j + " " + counts[j] + " " + trials + " " + corrected_p );
+            if ( log.isDebugEnabled() ) log.debug( j + " " + nextclass + " " + nf.format( corrected[j] ) );
 
-            res.setCorrectedPvalue( corrected_p );
+            res.setCorrectedPvalue( corrected[j] );
 
             // fill in the redundant ones.
-            for ( GeneSetTerm redund : usedToSkipped.get( res.getGeneSetId() ) ) {
-                res = results.get( redund );
-                res.setCorrectedPvalue( corrected_p );
+            if ( usedToSkipped.containsKey( nextclass ) ) {
+                for ( GeneSetTerm redund : usedToSkipped.get( nextclass ) ) {
+                    res = results.get( redund );
+                    if ( res == null ) continue;
+                    res.setCorrectedPvalue( corrected[j] );
+                }
             }
-
-            previous_p = corrected_p;
-            j--;
         }
     }
 
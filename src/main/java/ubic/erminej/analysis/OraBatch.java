@@ -0,0 +1,542 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ubic.basecode.util.StatusStderr;
+import ubic.basecode.util.StatusViewer;
+import ubic.erminej.SettingsHolder;
+import ubic.erminej.data.Element;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.GeneAnnotations;
+import ubic.erminej.data.GeneSet;
+import ubic.erminej.data.GeneSetMembership;
+import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
+
+/**
+ * Over-representation analysis of many gene lists against the same annotations, for example the modules of a
+ * co-expression network. The gene sets to score, their members and the hypergeometric log-factorial table are set up
+ * once; scoring a list then only touches the gene sets its genes belong to. Lists are scored in parallel and the
+ * results written out as they are done, in the order the lists were given.
+ * <p>
+ * The background is all the genes that have at least one annotation; genes outside it are ignored. To use a
+ * different background, restrict the annotations first (see {@link GeneAnnotations#subClone(Collection)}). Gene sets
+ * are selected by aspect and size as for a normal ORA run. Multiple test correction is done separately for each list,
+ * in the same way as {@link MultipleTestCorrector} does for a normal ORA run: redundant gene sets are counted once and
+ * get the corrected p-value of the set they are redundant with. Only Bonferroni and Benjamini-Hochberg are available.
+ * There is no multifunctionality correction, since for thousands of lists it would cost far more than the scoring
+ * itself.
+ *
+ * @version $Id$
+ */
+public class OraBatch extends AbstractLongTask {
+
+    /**
+     * How often progress is reported, in lists.
+     */
+    private static final int ALERT_UPDATE_FREQUENCY = 100;
+
+    /**
+     * How many lists each thread may have scored but not yet written; this bounds the memory used for results.
+     */
+    private static final int LISTS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final String SYMBOL_SEPARATOR = "|";
+
+    /**
+     * Read gene lists from a file. Each line is one list: its name followed by the gene symbols or element
+     * identifiers, tab-delimited. Lines starting with "#" are skipped, as are identifiers that are not in the
+     * annotations.
+     *
+     * @param fileName a {@link java.lang.String} object.
+     * @param annots a {@link ubic.erminej.data.GeneAnnotations} object.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object, can be null.
+     * @return map of list names to genes, in the order they were read.
+     * @throws java.io.IOException if any.
+     */
+    public static Map<String, Collection<Gene>> readGeneLists( String fileName, GeneAnnotations annots,
+            StatusViewer messenger ) throws IOException {
+        Map<String, Collection<Gene>> lists = new LinkedHashMap<>();
+        int numNotFound = 0;
+        try (BufferedReader in = new BufferedReader( new FileReader( fileName ) )) {
+            String line;
+            while ( ( line = in.readLine() ) != null ) {
+                if ( StringUtils.isBlank( line ) || line.startsWith( "#" ) ) continue;
+
+                String[] fields = StringUtils.splitPreserveAllTokens( line, '\t' );
+                String name = StringUtils.strip( fields[0] );
+                if ( lists.containsKey( name ) ) {
+                    throw new IllegalArgumentException( "Gene list " + name + " appears more than once in "
+                            + fileName );
+                }
+
+                Collection<Gene> genes = new HashSet<>();
+                for ( int i = 1; i < fields.length; i++ ) {
+                    String id = StringUtils.strip( fields[i] );
+                    if ( id.isEmpty() ) continue;
+                    Gene g = annots.findGene( id );
+                    if ( g == null ) {
+                        Element p = annots.findElement( id );
+                        if ( p == null ) {
+                            numNotFound++;
+                            continue;
+                        }
+                        g = p.getGene();
+                    }
+                    genes.add( g );
+                }
+                lists.put( name, genes );
+            }
+        }
+
+        if ( numNotFound > 0 && messenger != null ) {
+            messenger.showWarning( numNotFound + " identifiers in " + fileName
+                    + " had no match in the annotations and were ignored" );
+        }
+        return lists;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return the ids that are set in both, in increasing order.
+     */
+    private static List<Integer> intersection( long[] a, long[] b ) {
+        List<Integer> ids = new ArrayList<>();
+        int n = Math.min( a.length, b.length );
+        for ( int k = 0; k < n; k++ ) {
+            long w = a[k] & b[k];
+            while ( w != 0L ) {
+                ids.add( ( k << 6 ) + Long.numberOfTrailingZeros( w ) );
+                w &= w - 1;
+            }
+        }
+        return ids;
+    }
+
+    private final SettingsHolder settings;
+
+    private final GeneSetMembership membership;
+
+    /**
+     * The gene sets that are scored, sorted.
+     */
+    private final GeneSetTerm[] terms;
+
+    private final Map<GeneSetTerm, Integer> termIndex = new HashMap<>();
+
+    private final int[] setSizes;
+
+    private final int[] numElements;
+
+    /**
+     * For each gene set, the indices of the other gene sets that are redundant with it.
+     */
+    private final int[][] redundantWith;
+
+    private final int numTests;
+
+    /**
+     * The genes with at least one annotation, by gene id.
+     */
+    private final long[] background;
+
+    private final int numGenes;
+
+    /**
+     * Indexed by gene id: the indices in terms of the sets that contain the gene.
+     */
+    private final int[][] setsForGene;
+
+    /**
+     * Indexed by the number of hits, made when first needed; they all share one table of log-factorials.
+     */
+    private final AtomicReferenceArray<HypergeometricTail> tails;
+
+    private final HypergeometricTail firstTail;
+
+    private StatusViewer messenger = new StatusStderr();
+
+    private int numThreads;
+
+    /**
+     * <p>
+     * Constructor for OraBatch.
+     * </p>
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object; the gene set selection (aspects and sizes), the
+     *        multiple test correction method, the number of threads and whether the genes are written out are used.
+     * @param annots a {@link ubic.erminej.data.GeneAnnotations} object, which defines the background.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object, can be null.
+     * @throws java.lang.IllegalArgumentException if the multiple test correction method is not Bonferroni or
+     *         Benjamini-Hochberg.
+     */
+    public OraBatch( SettingsHolder settings, GeneAnnotations annots, StatusViewer messenger ) {
+        if ( !settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.FWE )
+                && !settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.FDR ) ) {
+            throw new IllegalArgumentException( settings.getMtc() + " is not supported for batches of gene lists" );
+        }
+        this.settings = settings;
+        this.numThreads = Math.max( 1, settings.getNumThreads() );
+        if ( messenger != null ) this.messenger = messenger;
+
+        this.membership = annots.getGeneSetMembership();
+
+        long[] annotated = new long[( membership.numGenes() + 63 ) >>> 6];
+        List<GeneSetTerm> scorable = new ArrayList<>();
+        for ( GeneSetTerm t : annots.getGeneSetTerms() ) {
+            long[] bits = membership.getGeneSetGenes( t );
+            for ( int k = 0; k < bits.length; k++ ) {
+                annotated[k] |= bits[k];
+            }
+            int size = GeneSetMembership.cardinality( bits );
+            if ( size == 0 || size < settings.getMinClassSize() || size > settings.getMaxClassSize() ) continue;
+            if ( !annots.hasUsableAspect( t, false ) ) continue;
+            scorable.add( t );
+        }
+        Collections.sort( scorable );
+
+        this.background = annotated;
+        this.numGenes = GeneSetMembership.cardinality( annotated );
+        this.terms = scorable.toArray( new GeneSetTerm[scorable.size()] );
+        this.setSizes = new int[terms.length];
+        this.numElements = new int[terms.length];
+
+        // gene sets that are redundant with one earlier in terms are not counted as separate tests.
+        Set<GeneSetTerm> counted = new HashSet<>();
+        int tests = 0;
+        int[] numSets = new int[membership.numGenes()];
+        for ( int i = 0; i < terms.length; i++ ) {
+            long[] bits = membership.getGeneSetGenes( terms[i] );
+            setSizes[i] = GeneSetMembership.cardinality( bits );
+            numElements[i] = GeneSetMembership.cardinality( membership.getGeneSetElements( terms[i] ) );
+            for ( int id = GeneSetMembership.nextSetBit( bits, 0 ); id >= 0; id = GeneSetMembership.nextSetBit( bits,
+                    id + 1 ) ) {
+                numSets[id]++;
+            }
+
+            boolean redundant = false;
+            GeneSet gs = annots.getGeneSet( terms[i] );
+            if ( gs != null ) {
+                for ( GeneSet r : gs.getRedundantGroups() ) {
+                    if ( counted.contains( r.getTerm() ) ) redundant = true;
+                }
+            }
+            if ( !redundant ) tests++;
+            counted.add( terms[i] );
+            termIndex.put( terms[i], i );
+        }
+        this.numTests = tests;
+
+        this.redundantWith = new int[terms.length][];
+        for ( int i = 0; i < terms.length; i++ ) {
+            List<Integer> others = new ArrayList<>();
+            GeneSet gs = annots.getGeneSet( terms[i] );
+            if ( gs != null ) {
+                for ( GeneSet r : gs.getRedundantGroups() ) {
+                    Integer j = termIndex.get( r.getTerm() );
+                    if ( j != null && j != i ) others.add( j );
+                }
+            }
+            redundantWith[i] = new int[others.size()];
+            for ( int k = 0; k < others.size(); k++ ) {
+                redundantWith[i][k] = others.get( k );
+            }
+        }
+
+        this.setsForGene = new int[numSets.length][];
+        for ( int id = 0; id < numSets.length; id++ ) {
+            setsForGene[id] = new int[numSets[id]];
+            numSets[id] = 0;
+        }
+        for ( int i = 0; i < terms.length; i++ ) {
+            long[] bits = membership.getGeneSetGenes( terms[i] );
+            for ( int id = GeneSetMembership.nextSetBit( bits, 0 ); id >= 0; id = GeneSetMembership.nextSetBit( bits,
+                    id + 1 ) ) {
+                setsForGene[id][numSets[id]++] = i;
+            }
+        }
+
+        this.firstTail = new HypergeometricTail( numGenes, 0 );
+        this.tails = new AtomicReferenceArray<>( numGenes + 1 );
+    }
+
+    /**
+     * <p>
+     * getNumGenes.
+     * </p>
+     *
+     * @return the number of genes in the background.
+     */
+    public int getNumGenes() {
+        return numGenes;
+    }
+
+    /**
+     * <p>
+     * getNumGeneSets.
+     * </p>
+     *
+     * @return how many gene sets are scored for each list.
+     */
+    public int getNumGeneSets() {
+        return terms.length;
+    }
+
+    /**
+     * Score one gene list. Only the gene sets that contain at least one of the genes are returned, as the others have
+     * a p-value of 1; they are still counted for the multiple test correction. The score of each result is the number
+     * of genes in the list that are in the set. Safe to call from several threads at once.
+     *
+     * @param genes a {@link java.util.Collection} object; genes outside the background are ignored.
+     * @return map of gene sets to results, ranked; empty if none of the genes is in the background.
+     */
+    public Map<GeneSetTerm, GeneSetResult> score( Collection<Gene> genes ) {
+        return score( hitBits( genes ) );
+    }
+
+    /**
+     * Set how many lists are scored at once by {@link #write(Map, Writer)}. Results do not depend on this value.
+     *
+     * @param numThreads a int.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
+    /**
+     * Score each of the gene lists and write the results as they are done. The output is tab-delimited with a
+     * heading line, one row for each gene set that contains at least one gene of the list; rows for a list are
+     * sorted by p-value and the lists are written in the order of the map.
+     *
+     * @param geneLists map of list names to genes.
+     * @param out a {@link java.io.Writer} object; it is not closed.
+     * @return the number of lists written.
+     * @throws java.io.IOException if any.
+     */
+    public int write( Map<String, ? extends Collection<Gene>> geneLists, Writer out ) throws IOException {
+        final boolean saveGenes = settings.getSaveAllGenesInOutput();
+        out.write( "List\tListSize\tName\tID\tNumProbes\tNumGenes\tNumHits\tPval\tCorrectedPvalue"
+                + ( saveGenes ? "\tHitGenes" : "" ) + "\n" );
+
+        messenger.showStatus( "Scoring " + geneLists.size() + " gene lists against " + terms.length
+                + " gene sets, background of " + numGenes + " genes" );
+
+        int count = 0;
+        if ( numThreads <= 1 || geneLists.size() < 2 ) {
+            for ( Map.Entry<String, ? extends Collection<Gene>> e : geneLists.entrySet() ) {
+                ifInterruptedStop();
+                out.write( format( e.getKey(), e.getValue(), saveGenes ) );
+                showProgress( ++count );
+            }
+            out.flush();
+            return count;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( numThreads );
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        Iterator<? extends Map.Entry<String, ? extends Collection<Gene>>> it = geneLists.entrySet().iterator();
+        try {
+            while ( it.hasNext() || !pending.isEmpty() ) {
+                while ( it.hasNext() && pending.size() < numThreads * LISTS_IN_FLIGHT_PER_THREAD ) {
+                    final Map.Entry<String, ? extends Collection<Gene>> e = it.next();
+                    pending.add( pool.submit( new Callable<String>() {
+                        @Override
+                        public String call() {
+                            ifCancelledStop();
+                            return format( e.getKey(), e.getValue(), saveGenes );
+                        }
+                    } ) );
+                }
+                out.write( pending.removeFirst().get() );
+                showProgress( ++count );
+            }
+        } catch ( InterruptedException e ) {
+            throw new CancellationException( "Cancelled" );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * @param listName
+     * @param genes
+     * @param saveGenes
+     * @return the rows for one list.
+     */
+    private String format( String listName, Collection<Gene> genes, boolean saveGenes ) {
+        long[] hits = hitBits( genes );
+        int listSize = GeneSetMembership.cardinality( hits );
+        Map<GeneSetTerm, GeneSetResult> results = score( hits );
+
+        List<GeneSetResult> sorted = new ArrayList<>( results.values() );
+        Collections.sort( sorted );
+
+        StringBuilder buf = new StringBuilder();
+        for ( GeneSetResult r : sorted ) {
+            GeneSetTerm t = r.getGeneSetId();
+            buf.append( listName ).append( '\t' ).append( listSize ).append( '\t' ).append( t.getName() )
+                    .append( '\t' ).append( t.getId() ).append( '\t' ).append( r.getNumProbes() ).append( '\t' )
+                    .append( r.getNumGenes() ).append( '\t' ).append( ( int ) r.getScore() ).append( '\t' )
+                    .append( String.format( "%.3g", r.getPvalue() ) ).append( '\t' )
+                    .append( String.format( "%.3g", r.getCorrectedPvalue() ) );
+            if ( saveGenes ) {
+                List<Gene> members = new ArrayList<>();
+                for ( int id : intersection( membership.getGeneSetGenes( t ), hits ) ) {
+                    members.add( membership.getGene( id ) );
+                }
+                Collections.sort( members );
+                buf.append( '\t' );
+                for ( Gene g : members ) {
+                    buf.append( g.getSymbol() ).append( SYMBOL_SEPARATOR );
+                }
+            }
+            buf.append( '\n' );
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @param numHits
+     * @return tail calculator for the background and the given number of hits.
+     */
+    private HypergeometricTail getTail( int numHits ) {
+        HypergeometricTail h = tails.get( numHits );
+        if ( h == null ) {
+            tails.compareAndSet( numHits, null, new HypergeometricTail( firstTail, numHits ) );
+            h = tails.get( numHits );
+        }
+        return h;
+    }
+
+    /**
+     * @param genes
+     * @return the genes that are in the background, as a bitset over the gene ids.
+     */
+    private long[] hitBits( Collection<Gene> genes ) {
+        long[] bits = membership.toGeneBits( genes );
+        for ( int k = 0; k < bits.length; k++ ) {
+            bits[k] &= background[k];
+        }
+        return bits;
+    }
+
+    /**
+     * Multiple test correction over the results, which are sorted by p-value, as done by
+     * {@link MultipleTestCorrector#bonferroni()} and {@link MultipleTestCorrector#benjaminihochberg()}. The gene sets
+     * without results all have a p-value of 1 and would come last, so they only count towards the number of tests.
+     *
+     * @param sorted
+     * @param results
+     */
+    private void multipleTestCorrect( List<GeneSetTerm> sorted, Map<GeneSetTerm, GeneSetResult> results ) {
+        boolean bonferroni = settings.getMtc().equals( SettingsHolder.MultiTestCorrMethod.FWE );
+        Set<Integer> skip = new HashSet<>();
+        int rank = 0;
+        for ( GeneSetTerm t : sorted ) {
+            int i = termIndex.get( t );
+            if ( skip.contains( i ) ) continue; // already done, with the set it is redundant with.
+            rank++;
+
+            GeneSetResult r = results.get( t );
+            double corrected = bonferroni ? r.getPvalue() * numTests : r.getPvalue() * numTests / rank;
+            corrected = Math.min( 1.0, corrected );
+            r.setCorrectedPvalue( corrected );
+
+            for ( int j : redundantWith[i] ) {
+                skip.add( j );
+                GeneSetResult other = results.get( terms[j] );
+                if ( other != null ) other.setCorrectedPvalue( corrected );
+            }
+        }
+    }
+
+    /**
+     * @param hits
+     * @return results for the sets with at least one hit.
+     */
+    private Map<GeneSetTerm, GeneSetResult> score( long[] hits ) {
+        Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
+        int numHits = GeneSetMembership.cardinality( hits );
+        if ( numHits == 0 ) return results;
+
+        int[] successes = new int[terms.length];
+        for ( int id = GeneSetMembership.nextSetBit( hits, 0 ); id >= 0; id = GeneSetMembership.nextSetBit( hits,
+                id + 1 ) ) {
+            for ( int i : setsForGene[id] ) {
+                successes[i]++;
+            }
+        }
+
+        HypergeometricTail tail = getTail( numHits );
+        for ( int i = 0; i < terms.length; i++ ) {
+            if ( successes[i] == 0 ) continue;
+            GeneSetResult res = new GeneSetResult( terms[i], numElements[i], setSizes[i], settings );
+            res.setScore( successes[i] );
+            res.setPValue( tail.upperTail( setSizes[i], successes[i] ) );
+            results.put( terms[i], res );
+        }
+
+        List<GeneSetTerm> sorted = GeneSetPvalRun.populateRanks( results );
+        multipleTestCorrect( sorted, results );
+        return results;
+    }
+
+    /**
+     * @param count
+     */
+    private void showProgress( int count ) {
+        if ( count % ALERT_UPDATE_FREQUENCY == 0 ) {
+            messenger.showProgress( count + " gene lists scored" );
+        }
+    }
+
+}
@@ -19,7 +19,10 @@
 package ubic.erminej.analysis;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -32,14 +35,15 @@ import org.apache.commons.lang3.StringUtils;
 import cern.colt.list.DoubleArrayList;
 import cern.jet.math.Arithmetic;
 import cern.jet.stat.Descriptive;
-import ubic.basecode.math.SpecFunc;
 import ubic.basecode.util.StatusViewer;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.data.Gene;
 import ubic.erminej.data.GeneAnnotations;
 import ubic.erminej.data.GeneScores;
+import ubic.erminej.data.GeneSetMembership;
 import ubic.erminej.data.GeneSetResult;
 import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.Multifunctionality;
 
 /**
  * Compute gene set scores based on over-representation analysis (ORA).
@@ -71,6 +75,16 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
      */
     private final int NUMBER_OF_RANKS_TO_INSPECT_FOR_MF_SENSITIVITY = 20;
 
+    /**
+     * Computes the p-values; kept as long as the number of genes and hits stay the same.
+     */
+    private volatile HypergeometricTail hypergeometricTail = null;
+
+    /**
+     * Hit counts carried between calls to generateGeneSetResults( OraThreshold ); made when first needed.
+     */
+    private ThresholdSweep sweep = null;
+
     /**
      * <p>
      * Constructor for OraPvalGenerator.
@@ -87,11 +101,7 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
 
         this.geneScores = geneScores;
 
-        if ( settings.getUseLog() ) {
-            this.geneScoreThreshold = -Arithmetic.log10( settings.getGeneScoreThreshold() );
-        } else {
-            this.geneScoreThreshold = settings.getGeneScoreThreshold();
-        }
+        this.geneScoreThreshold = transformThreshold( settings.getGeneScoreThreshold() );
 
         computeCounts();
 
@@ -125,35 +135,38 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
 
         this.numGenesUsed = geneToScoreMap.size();
 
-        double hitListMultifunctionalityBiasPvalue = this.geneAnnots.getMultifunctionality()
-                .enrichmentForMultifunctionalityPvalue( genesAboveThreshold );
-
-        this.messenger.showStatus( String.format( "Hit list (%d genes) enrichment for multifunctionality: P = %.3g",
-                genesAboveThreshold.size(), hitListMultifunctionalityBiasPvalue ) );
+        return multifunctionalityCheck( computeResultsForHitList( genesAboveThreshold, false ) );
+    }
 
-        boolean useMultifunctionalityCorrection = hitListMultifunctionalityBiasPvalue < MF_BIAS_TO_TRIGGER_CORRECTION;
+    /**
+     * Results for one step of a threshold sweep. The genes are sorted by score once, and the number of hits in each
+     * gene set is carried over from the previous call, so only the genes that pass this threshold but not the previous
+     * one are counted. Thresholds should therefore be visited from the most to the least stringent; going the other way
+     * is allowed but starts the count over. Afterwards the hit list and threshold reported by this generator are the
+     * ones for the given threshold.
+     *
+     * @param threshold a {@link ubic.erminej.analysis.OraThreshold} object.
+     * @return results, empty if no genes pass the threshold.
+     */
+    public Map<GeneSetTerm, GeneSetResult> generateGeneSetResults( OraThreshold threshold ) {
+        if ( sweep == null ) sweep = new ThresholdSweep();
 
-        Map<GeneSetTerm, GeneSetResult> referenceResults = computeResultsForHitList( genesAboveThreshold, false );
+        int numHits = sweep.numPassing( threshold );
+        sweep.advanceTo( numHits );
 
-        if ( referenceResults.isEmpty() || !useMultifunctionalityCorrection ) {
-            this.messenger
-                    .showStatus( "'Hits' are not significantly multifunctionality-biased, no multifunctionality correction needed" );
-            return referenceResults;
-        }
-
-        List<GeneSetTerm> sortedClasses = GeneSetPvalRun.getSortedClasses( referenceResults );
-        multipleTestCorrect( sortedClasses, referenceResults );
-
-        Map<GeneSetTerm, Double> monitoredRanks = getMFMonitoredSets( referenceResults, sortedClasses );
-
-        if ( monitoredRanks.isEmpty() || monitoredRanks.size() < 2 /* heuristic to avoid problems */ ) {
-            this.messenger.showStatus( "Insufficient enrichment found, skipping multifunctionality correction" );
-            return referenceResults;
+        this.genesAboveThreshold = new HashSet<>( sweep.rankedGenes.subList( 0, numHits ) );
+        if ( !threshold.isTopN() ) {
+            this.geneScoreThreshold = transformThreshold( threshold.getScoreThreshold() );
+        } else if ( numHits > 0 ) {
+            this.geneScoreThreshold = sweep.rankedScores[numHits - 1];
         }
+        this.numGenesUsed = geneToScoreMap.size();
 
-        multifunctionalityCorrect( referenceResults, monitoredRanks );
+        if ( numHits == 0 ) return new HashMap<>();
 
-        return referenceResults;
+        Map<GeneSetTerm, GeneSetResult> referenceResults = sweep.getResults();
+        GeneSetPvalRun.populateRanks( referenceResults );
+        return multifunctionalityCheck( referenceResults );
     }
 
     /**
@@ -187,6 +200,19 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
         return genesAboveThreshold.size();
     }
 
+    /**
+     * <p>
+     * getNumGenesOverThreshold.
+     * </p>
+     *
+     * @param threshold a {@link ubic.erminej.analysis.OraThreshold} object.
+     * @return how many genes are hits at the given threshold.
+     */
+    public int getNumGenesOverThreshold( OraThreshold threshold ) {
+        if ( sweep == null ) sweep = new ThresholdSweep();
+        return sweep.numPassing( threshold );
+    }
+
     /**
      * Always for genes.
      *
@@ -196,6 +222,18 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
         return geneScores.getGeneToScoreMap().size() - getNumGenesOverThreshold();
     }
 
+    /**
+     * <p>
+     * untransformThreshold.
+     * </p>
+     *
+     * @param threshold in the units used internally, as from getGeneScoreThreshold
+     * @return the threshold in the units of the score file, as used in the settings.
+     */
+    public double untransformThreshold( double threshold ) {
+        return settings.getUseLog() ? Math.pow( 10.0, -threshold ) : threshold;
+    }
+
     /**
      * Get results for one class, based on class id. The other arguments are things that are not constant under
      * permutations of the data.
@@ -205,34 +243,24 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @return a {@link ubic.erminej.data.GeneSetResult} object.
      */
     protected GeneSetResult classPval( Collection<Gene> genesAboveThresh, GeneSetTerm className ) {
+        return classPval( geneAnnots.getGeneSetMembership().toGeneBits( genesAboveThresh ), className );
+    }
 
-        if ( !super.checkAspectAndRedundancy( className ) ) {
-            return null;
-        }
+    /**
+     * @param hits the hit list as a bitset over the gene ids of the annotations
+     * @param className
+     * @return result, or null if the set is not to be scored.
+     */
+    private GeneSetResult classPval( long[] hits, GeneSetTerm className ) {
 
-        int numGenesInSet = numGenesInSet( className );
-        if ( numGenesInSet == 0 || numGenesInSet < settings.getMinClassSize()
-                || numGenesInSet > settings.getMaxClassSize() ) {
-            // if ( log.isDebugEnabled() ) log.debug( "Class " + className + " is outside of selected size range" );
+        if ( !isScorable( className ) ) {
             return null;
         }
 
-        Collection<Gene> geneSetGenes = geneAnnots.getGeneSetGenes( className );
-
-        Collection<Gene> seenGenes = new HashSet<>();
-        int geneSuccesses = 0;
-        for ( Gene g : geneSetGenes ) {
-
-            if ( !seenGenes.contains( g ) && genesAboveThresh.contains( g ) ) {
-                geneSuccesses++;
-            }
-            seenGenes.add( g );
-        }
-
-        assert seenGenes.size() == geneSetGenes.size();
-        assert geneSuccesses >= 0;
+        int numGenesInSet = numGenesInSet( className );
 
-        int successes = geneSuccesses;
+        int successes = GeneSetMembership.intersectionSize( geneAnnots.getGeneSetMembership().getGeneSetGenes(
+                className ), hits );
 
         int numGenes = geneScores.getGeneToScoreMap().size();
 
@@ -243,8 +271,7 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
     }
 
     /**
-     * Hypergeometric p value calculation (or binomial approximation) successes=number of genes in class which meet
-     * criteria
+     * Hypergeometric p value calculation; successes=number of genes in class which meet criteria
      *
      * @param clasName
      * @param total number of genes (or elements)
@@ -254,33 +281,7 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
     private GeneSetResult computeResult( GeneSetTerm className, int numGenes, int numGenesInSet, int successes,
             int numOverThreshold ) {
 
-        double oraPval = Double.NaN;
-
-        if ( successes > 0 ) {
-            oraPval = 0.0;
-
-            // sum probs of N or more successes up to max possible.
-            for ( int i = successes; i <= Math.min( numOverThreshold, numGenesInSet ); i++ ) {
-                oraPval += SpecFunc.dhyper( i, numGenesInSet, numGenes - numGenesInSet, numOverThreshold );
-            }
-
-            if ( Double.isNaN( oraPval ) ) {
-                // binomial approximation
-                double pos_prob = ( double ) numGenesInSet / ( double ) numGenes;
-
-                oraPval = 0.0;
-                for ( int i = successes; i <= Math.min( numOverThreshold, numGenesInSet ); i++ ) {
-                    oraPval += SpecFunc.dbinom( i, numOverThreshold, pos_prob );
-                }
-            }
-
-            // if ( log.isDebugEnabled() )
-            // log.debug( className + " ingroupoverthresh=" + successes + " setsize=" + numGenesInSet
-            // + " totalinputsize=" + numGenes + " totaloverthresh=" + numOverThreshold + " oraP="
-            // + String.format( "%.2g", oraPval ) );
-        } else {
-            oraPval = 1.0;
-        }
+        double oraPval = getHypergeometricTail( numGenes, numOverThreshold ).upperTail( numGenesInSet, successes );
 
         GeneSetResult res = new GeneSetResult( className, numElementsInSet( className ), numGenesInSet, settings );
         res.setScore( successes );
@@ -292,21 +293,14 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @param histList
      * @return
      */
-    private Map<GeneSetTerm, GeneSetResult> computeResultsForHitList( Collection<Gene> histList, boolean quiet ) {
-        int count = 0;
-        Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
-        for ( GeneSetTerm geneSetName : geneAnnots.getGeneSetTerms() ) {
-            GeneSetResult res = classPval( histList, geneSetName );
-            if ( res != null ) {
-                results.put( geneSetName, res );
-                if ( ++count % 100 == 0 ) ifInterruptedStop();
-                if ( !quiet ) {
-                    if ( getMessenger() != null && count % ALERT_UPDATE_FREQUENCY == 0 ) {
-                        getMessenger().showProgress( count + " gene sets analyzed" );
-                    }
-                }
+    Map<GeneSetTerm, GeneSetResult> computeResultsForHitList( Collection<Gene> histList, boolean quiet ) {
+        final long[] hits = geneAnnots.getGeneSetMembership().toGeneBits( histList );
+        Map<GeneSetTerm, GeneSetResult> results = scoreGeneSets( new GeneSetScorer() {
+            @Override
+            public GeneSetResult score( GeneSetTerm geneSet ) {
+                return classPval( hits, geneSet );
             }
-        }
+        }, quiet );
 
         if ( results.isEmpty() ) return results;
 
@@ -314,6 +308,20 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
         return results;
     }
 
+    /**
+     * @param numGenes
+     * @param numOverThreshold
+     * @return a tail calculator for the given population, reused if possible.
+     */
+    private HypergeometricTail getHypergeometricTail( int numGenes, int numOverThreshold ) {
+        HypergeometricTail h = hypergeometricTail;
+        if ( h == null || h.getNumGenes() != numGenes || h.getNumHits() != numOverThreshold ) {
+            h = new HypergeometricTail( numGenes, numOverThreshold );
+            hypergeometricTail = h;
+        }
+        return h;
+    }
+
     /**
      * Get the classes we are using as a reference.
      *
@@ -347,6 +355,63 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
         return monitoredRanks;
     }
 
+    /**
+     * @param className
+     * @return true if the set is to be scored at all; this does not depend on the hit list.
+     */
+    private boolean isScorable( GeneSetTerm className ) {
+        if ( !super.checkAspectAndRedundancy( className ) ) {
+            return false;
+        }
+
+        int numGenesInSet = numGenesInSet( className );
+        if ( numGenesInSet == 0 || numGenesInSet < settings.getMinClassSize()
+                || numGenesInSet > settings.getMaxClassSize() ) {
+            // if ( log.isDebugEnabled() ) log.debug( "Class " + className + " is outside of selected size range" );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Apply the multifunctionality correction to the results for the current hit list, if the hits are biased
+     * towards multifunctional genes.
+     *
+     * @param referenceResults ranked results for the current hit list
+     * @return referenceResults, with the corrected values filled in if needed
+     */
+    private Map<GeneSetTerm, GeneSetResult> multifunctionalityCheck(
+            Map<GeneSetTerm, GeneSetResult> referenceResults ) {
+
+        double hitListMultifunctionalityBiasPvalue = this.geneAnnots.getMultifunctionality()
+                .enrichmentForMultifunctionalityPvalue( genesAboveThreshold );
+
+        this.messenger.showStatus( String.format( "Hit list (%d genes) enrichment for multifunctionality: P = %.3g",
+                genesAboveThreshold.size(), hitListMultifunctionalityBiasPvalue ) );
+
+        boolean useMultifunctionalityCorrection = hitListMultifunctionalityBiasPvalue < MF_BIAS_TO_TRIGGER_CORRECTION;
+
+        if ( referenceResults.isEmpty() || !useMultifunctionalityCorrection ) {
+            this.messenger
+                    .showStatus( "'Hits' are not significantly multifunctionality-biased, no multifunctionality correction needed" );
+            return referenceResults;
+        }
+
+        List<GeneSetTerm> sortedClasses = GeneSetPvalRun.getSortedClasses( referenceResults );
+        multipleTestCorrect( sortedClasses, referenceResults );
+
+        Map<GeneSetTerm, Double> monitoredRanks = getMFMonitoredSets( referenceResults, sortedClasses );
+
+        if ( monitoredRanks.isEmpty() || monitoredRanks.size() < 2 /* heuristic to avoid problems */ ) {
+            this.messenger.showStatus( "Insufficient enrichment found, skipping multifunctionality correction" );
+            return referenceResults;
+        }
+
+        multifunctionalityCorrect( referenceResults, monitoredRanks );
+
+        return referenceResults;
+    }
+
     /**
      * Algorithm as described by JG -- the thresholds etc. described are just examples.
      *
@@ -389,14 +454,11 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
             Map<GeneSetTerm, Double> monitoredRanks ) {
         Map<GeneSetTerm, Double> previousRanks = new HashMap<>();
 
-        Collection<Gene> filteredGenes = new HashSet<>();
-        filteredGenes.addAll( genesAboveThreshold );
-
         double smax = -1.0;
         int numMfToRemove = 0;
         previousRanks.putAll( monitoredRanks );
         double hitListMultifunctionalityBiasPvalue = this.geneAnnots.getMultifunctionality()
-                .enrichmentForMultifunctionalityPvalue( filteredGenes );
+                .enrichmentForMultifunctionalityPvalue( genesAboveThreshold );
 
         List<GeneSetTerm> correctedRanking = new ArrayList<>();
 
@@ -411,8 +473,9 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
 
         this.messenger.showStatus( String.format(
                 "Before correction enrichment of hit list (%d genes) for multifunctionality is P=%.3g",
-                filteredGenes.size(), hitListMultifunctionalityBiasPvalue ) );
+                genesAboveThreshold.size(), hitListMultifunctionalityBiasPvalue ) );
 
+        HitRemovalState state = new HitRemovalState( referenceResults.keySet() );
         Collection<Gene> removedGenesAtOptimum = new HashSet<>();
         Map<GeneSetTerm, GeneSetResult> mfCorrectedResults = null;
 
@@ -422,7 +485,8 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
              * Remove most multifunctional gene(s) and recompute
              */
 
-            numMultifunctionalRemoved += removeOneOrMoreMostMfGenes( hitListMultifunctionalityBiasPvalue, filteredGenes );
+            numMultifunctionalRemoved += removeOneOrMoreMostMfGenes( state );
+            Collection<Gene> filteredGenes = state.getRemainingHits();
 
             double fracToBail = 0.5; // make configurable.
             if ( filteredGenes.size() < fracToBail * genesAboveThreshold.size() ) {
@@ -434,13 +498,13 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
                 break;
             }
 
-            // compute new results.
-            mfCorrectedResults = computeResultsForHitList( filteredGenes, true );
+            // compute new results; only the sets which lost a hit are rescored.
+            mfCorrectedResults = state.getResults();
             if ( mfCorrectedResults.isEmpty() ) {
                 // this would be odd.
                 break;
             }
-            List<GeneSetTerm> sortedRevisedClasses = GeneSetPvalRun.getSortedClasses( mfCorrectedResults );
+            List<GeneSetTerm> sortedRevisedClasses = GeneSetPvalRun.populateRanks( mfCorrectedResults );
             multipleTestCorrect( sortedRevisedClasses, mfCorrectedResults );
 
             // get the new ranks for the monitored set of gene sets.
@@ -463,9 +527,7 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
                 smax = s;
                 numMfToRemove = numMultifunctionalRemoved;
                 correctedRanking = sortedRevisedClasses;
-                removedGenesAtOptimum = new HashSet<>();
-                removedGenesAtOptimum.addAll( genesAboveThreshold );
-                removedGenesAtOptimum.removeAll( filteredGenes );
+                removedGenesAtOptimum = new HashSet<>( state.getRemovedHits() );
                 assert removedGenesAtOptimum.size() == numMfToRemove : removedGenesAtOptimum.size() + " != "
                         + numMfToRemove;
             }
@@ -503,11 +565,9 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
              * Do one last computation, where we go back to the maximum effect point, to get the final corrected
              * results.
              */
-            Collection<Gene> finalCorrectedHitList = new HashSet<>();
-            finalCorrectedHitList.addAll( genesAboveThreshold );
-            finalCorrectedHitList.removeAll( removedGenesAtOptimum );
-            mfCorrectedResults = computeResultsForHitList( finalCorrectedHitList, true );
-            List<GeneSetTerm> sortedRevisedClasses = GeneSetPvalRun.getSortedClasses( mfCorrectedResults );
+            state.reset( numMfToRemove );
+            mfCorrectedResults = state.getResults();
+            List<GeneSetTerm> sortedRevisedClasses = GeneSetPvalRun.populateRanks( mfCorrectedResults );
             multipleTestCorrect( sortedRevisedClasses, mfCorrectedResults );
 
             assert correctedRanking != null && !correctedRanking.isEmpty();
@@ -532,12 +592,10 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
      * If the pvalue is really small, and the hit list is not too small, we can remove more than one at a time, to speed
      * things up.
      *
-     * @param numMultifunctionalRemoved
-     * @param hitListMultifunctionalityBiasPvalue
-     * @param filteredGenes
-     * @return
+     * @param state
+     * @return how many were removed
      */
-    private int removeOneOrMoreMostMfGenes( double hitListMultifunctionalityBiasPvalue, Collection<Gene> filteredGenes ) {
+    private int removeOneOrMoreMostMfGenes( HitRemovalState state ) {
         int numToRemove = 1;
 
         int hitListSize = genesAboveThreshold.size();
@@ -546,18 +604,7 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
             numToRemove = ( int ) Math.ceil( 0.02 * hitListSize );
         }
 
-        int numRemoved = numToRemove;
-
-        while ( numRemoved-- > 0 ) {
-            // this is slightly slow because it does an O(N) search each time. Could speed this up by keeping
-            // filteredGenes sorted by MF.
-            Gene mostMultifunctional = geneAnnots.getMultifunctionality().getMostMultifunctional( filteredGenes );
-            // this.messenger.showStatus( "MF correct: Testing removal of " + mostMultifunctional.getSymbol()
-            // + " (most multifunc of hits)" );
-            filteredGenes.remove( mostMultifunctional );
-        }
-
-        return numToRemove;
+        return state.removeMostMultifunctional( numToRemove );
     }
 
     /**
@@ -596,7 +643,312 @@ public class OraPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @return
      */
     private boolean scorePassesThreshold( double geneScore ) {
-        return ( settings.upperTail() && geneScore >= geneScoreThreshold )
-                || ( !settings.upperTail() && geneScore <= geneScoreThreshold );
+        return scorePassesThreshold( geneScore, geneScoreThreshold );
+    }
+
+    /**
+     * @param geneScore
+     * @param threshold in the units used internally
+     * @return
+     */
+    private boolean scorePassesThreshold( double geneScore, double threshold ) {
+        return ( settings.upperTail() && geneScore >= threshold )
+                || ( !settings.upperTail() && geneScore <= threshold );
+    }
+
+    /**
+     * @param threshold as given in the settings
+     * @return the threshold in the units of the gene scores used here, which may have been log-transformed.
+     */
+    private double transformThreshold( double threshold ) {
+        if ( settings.getUseLog() ) {
+            return -Arithmetic.log10( threshold );
+        }
+        return threshold;
+    }
+
+    /**
+     * Hit counts for the scored gene sets while the hits are removed in order of decreasing multifunctionality. The
+     * hits are sorted once, and removing one only touches the sets it belongs to, so only those are rescored. The
+     * number of hits used for the hypergeometric population is not changed by removals, as in classPval. Not private
+     * so it can be checked against {@link OraPvalGenerator#computeResultsForHitList(Collection, boolean)} in tests.
+     */
+    class HitRemovalState {
+
+        private final GeneSetTerm[] terms;
+
+        private final int[] setSizes;
+
+        private final int[] initialHits;
+
+        private final int[] hits;
+
+        /**
+         * For each hit, the indices of the scored sets that contain it.
+         */
+        private final Map<Gene, int[]> setsForHit = new HashMap<>();
+
+        /**
+         * Hits, most multifunctional first.
+         */
+        private final List<Gene> removalOrder;
+
+        private final Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
+
+        private final boolean[] dirty;
+
+        private final int[] dirtySets;
+
+        private int numDirty = 0;
+
+        private int numRemoved = 0;
+
+        private final int numGenes;
+
+        private final int numOverThreshold;
+
+        /**
+         * @param scoredSets the gene sets which get a result for the full hit list
+         */
+        public HitRemovalState( Collection<GeneSetTerm> scoredSets ) {
+            this.numGenes = geneScores.getGeneToScoreMap().size();
+            this.numOverThreshold = getNumGenesOverThreshold();
+            this.terms = scoredSets.toArray( new GeneSetTerm[scoredSets.size()] );
+            this.setSizes = new int[terms.length];
+            this.initialHits = new int[terms.length];
+            this.hits = new int[terms.length];
+            this.dirty = new boolean[terms.length];
+            this.dirtySets = new int[terms.length];
+
+            GeneSetMembership m = geneAnnots.getGeneSetMembership();
+            long[] hitBits = m.toGeneBits( genesAboveThreshold );
+            Map<Gene, List<Integer>> sets = new HashMap<>();
+            for ( int i = 0; i < terms.length; i++ ) {
+                setSizes[i] = numGenesInSet( terms[i] );
+                long[] setBits = m.getGeneSetGenes( terms[i] );
+                for ( int id = GeneSetMembership.nextSetBit( setBits, 0 ); id >= 0; id = GeneSetMembership
+                        .nextSetBit( setBits, id + 1 ) ) {
+                    if ( !GeneSetMembership.contains( hitBits, id ) ) continue;
+                    Gene g = m.getGene( id );
+                    initialHits[i]++;
+                    if ( !sets.containsKey( g ) ) sets.put( g, new ArrayList<Integer>() );
+                    sets.get( g ).add( i );
+                }
+                hits[i] = initialHits[i];
+                results.put( terms[i], computeResult( terms[i], numGenes, setSizes[i], hits[i], numOverThreshold ) );
+            }
+
+            for ( Gene g : sets.keySet() ) {
+                List<Integer> l = sets.get( g );
+                int[] a = new int[l.size()];
+                for ( int j = 0; j < a.length; j++ ) {
+                    a[j] = l.get( j );
+                }
+                setsForHit.put( g, a );
+            }
+
+            final Multifunctionality mf = geneAnnots.getMultifunctionality();
+            final Map<Gene, Double> mfRanks = new HashMap<>();
+            for ( Gene g : genesAboveThreshold ) {
+                mfRanks.put( g, mf.getMultifunctionalityRank( g ) );
+            }
+            this.removalOrder = new ArrayList<>( genesAboveThreshold );
+            Collections.sort( removalOrder, new Comparator<Gene>() {
+                @Override
+                public int compare( Gene o1, Gene o2 ) {
+                    return Double.compare( mfRanks.get( o2 ), mfRanks.get( o1 ) );
+                }
+            } );
+        }
+
+        /**
+         * @return the hits not removed yet
+         */
+        public List<Gene> getRemainingHits() {
+            return Collections.unmodifiableList( removalOrder.subList( numRemoved, removalOrder.size() ) );
+        }
+
+        /**
+         * @return the hits removed so far, most multifunctional first
+         */
+        public List<Gene> getRemovedHits() {
+            return Collections.unmodifiableList( removalOrder.subList( 0, numRemoved ) );
+        }
+
+        /**
+         * Rescore the sets whose hit count changed since the last call.
+         *
+         * @return results for all the scored sets; the map and unchanged results are reused between calls.
+         */
+        public Map<GeneSetTerm, GeneSetResult> getResults() {
+            for ( int d = 0; d < numDirty; d++ ) {
+                int i = dirtySets[d];
+                dirty[i] = false;
+                results.put( terms[i], computeResult( terms[i], numGenes, setSizes[i], hits[i], numOverThreshold ) );
+            }
+            numDirty = 0;
+            return results;
+        }
+
+        /**
+         * @param count how many of the remaining hits to remove
+         * @return how many were actually removed, which is less than count if there were not enough left
+         */
+        public int removeMostMultifunctional( int count ) {
+            int n = Math.min( count, removalOrder.size() - numRemoved );
+            for ( int r = 0; r < n; r++ ) {
+                int[] a = setsForHit.get( removalOrder.get( numRemoved++ ) );
+                if ( a == null ) continue;
+                for ( int i : a ) {
+                    hits[i]--;
+                    assert hits[i] >= 0;
+                    markDirty( i );
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Go back to the full hit list and then remove the given number of hits.
+         *
+         * @param count
+         */
+        public void reset( int count ) {
+            for ( int i = 0; i < hits.length; i++ ) {
+                if ( hits[i] != initialHits[i] ) {
+                    hits[i] = initialHits[i];
+                    markDirty( i );
+                }
+            }
+            numRemoved = 0;
+            removeMostMultifunctional( count );
+        }
+
+        private void markDirty( int i ) {
+            if ( dirty[i] ) return;
+            dirty[i] = true;
+            dirtySets[numDirty++] = i;
+        }
+    }
+
+    /**
+     * State for threshold sweeps: the genes sorted by score, best first, and the number of hits in each scorable set
+     * for the first numHits of them.
+     */
+    private class ThresholdSweep {
+
+        private final List<Gene> rankedGenes;
+
+        private final double[] rankedScores;
+
+        private final GeneSetTerm[] terms;
+
+        private final int[] setSizes;
+
+        private final int[] hits;
+
+        private final GeneSetMembership membership;
+
+        /**
+         * Indexed by gene id: the indices of the scorable sets that contain the gene.
+         */
+        private final int[][] setsForGene;
+
+        private int numHits = 0;
+
+        public ThresholdSweep() {
+            final Map<Gene, Double> scores = geneScores.getGeneToScoreMap();
+            final boolean upperTail = settings.upperTail();
+            this.rankedGenes = new ArrayList<>( scores.keySet() );
+            Collections.sort( rankedGenes, new Comparator<Gene>() {
+                @Override
+                public int compare( Gene o1, Gene o2 ) {
+                    int c = Double.compare( scores.get( o1 ), scores.get( o2 ) );
+                    return upperTail ? -c : c;
+                }
+            } );
+            this.rankedScores = new double[rankedGenes.size()];
+            for ( int i = 0; i < rankedScores.length; i++ ) {
+                rankedScores[i] = scores.get( rankedGenes.get( i ) );
+            }
+
+            List<GeneSetTerm> scorable = new ArrayList<>();
+            for ( GeneSetTerm t : geneAnnots.getGeneSetTerms() ) {
+                if ( isScorable( t ) ) scorable.add( t );
+            }
+            this.terms = scorable.toArray( new GeneSetTerm[scorable.size()] );
+            this.setSizes = new int[terms.length];
+            this.hits = new int[terms.length];
+
+            this.membership = geneAnnots.getGeneSetMembership();
+            int[] numSets = new int[membership.numGenes()];
+            for ( int i = 0; i < terms.length; i++ ) {
+                setSizes[i] = numGenesInSet( terms[i] );
+                long[] bits = membership.getGeneSetGenes( terms[i] );
+                for ( int id = GeneSetMembership.nextSetBit( bits, 0 ); id >= 0; id = GeneSetMembership.nextSetBit(
+                        bits, id + 1 ) ) {
+                    numSets[id]++;
+                }
+            }
+            this.setsForGene = new int[numSets.length][];
+            for ( int id = 0; id < numSets.length; id++ ) {
+                setsForGene[id] = new int[numSets[id]];
+                numSets[id] = 0;
+            }
+            for ( int i = 0; i < terms.length; i++ ) {
+                long[] bits = membership.getGeneSetGenes( terms[i] );
+                for ( int id = GeneSetMembership.nextSetBit( bits, 0 ); id >= 0; id = GeneSetMembership.nextSetBit(
+                        bits, id + 1 ) ) {
+                    setsForGene[id][numSets[id]++] = i;
+                }
+            }
+        }
+
+        /**
+         * Count the hits in the sets for the first n genes, continuing from the current count if n is not smaller.
+         *
+         * @param n
+         */
+        public void advanceTo( int n ) {
+            if ( n < numHits ) {
+                Arrays.fill( hits, 0 );
+                numHits = 0;
+            }
+            for ( ; numHits < n; numHits++ ) {
+                int id = membership.getGeneId( rankedGenes.get( numHits ) );
+                if ( id < 0 ) continue;
+                for ( int i : setsForGene[id] ) {
+                    hits[i]++;
+                }
+            }
+        }
+
+        /**
+         * @return results for the scorable sets at the current number of hits
+         */
+        public Map<GeneSetTerm, GeneSetResult> getResults() {
+            int numGenes = rankedGenes.size();
+            Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
+            for ( int i = 0; i < terms.length; i++ ) {
+                results.put( terms[i], computeResult( terms[i], numGenes, setSizes[i], hits[i], numHits ) );
+            }
+            return results;
+        }
+
+        /**
+         * @param threshold
+         * @return how many genes are hits at the threshold; since the genes are sorted, they are the first ones.
+         */
+        public int numPassing( OraThreshold threshold ) {
+            if ( threshold.isTopN() ) {
+                return Math.min( threshold.getTopN(), rankedGenes.size() );
+            }
+            double t = transformThreshold( threshold.getScoreThreshold() );
+            int n = 0;
+            while ( n < rankedScores.length && scorePassesThreshold( rankedScores[n], t ) ) {
+                n++;
+            }
+            return n;
+        }
     }
 }
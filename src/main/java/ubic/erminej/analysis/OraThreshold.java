@@ -0,0 +1,153 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * One step of an ORA threshold sweep: either a gene score threshold, in the same units as the
+ * <code>geneScoreThreshold</code> setting, or a fixed number of the best scoring genes ("top-N").
+ *
+ * @version $Id$
+ * @see GeneSetPvalRun#oraSweep(ubic.erminej.SettingsHolder, ubic.erminej.data.GeneAnnotations,
+ *      ubic.basecode.util.StatusViewer, List, ExecutionPolicy)
+ */
+public class OraThreshold {
+
+    private static final String TOP_N_PREFIX = "top";
+
+    /**
+     * <p>
+     * parse.
+     * </p>
+     *
+     * @param spec a number, or "top" followed by a number of genes, for example "0.01" or "top200"
+     * @return a {@link ubic.erminej.analysis.OraThreshold} object.
+     * @throws java.lang.IllegalArgumentException if the value cannot be read.
+     */
+    public static OraThreshold parse( String spec ) {
+        String s = StringUtils.strip( spec );
+        try {
+            if ( StringUtils.startsWithIgnoreCase( s, TOP_N_PREFIX ) ) {
+                int n = Integer.parseInt( s.substring( TOP_N_PREFIX.length() ) );
+                if ( n <= 0 ) throw new IllegalArgumentException( "Number of top genes must be positive: " + spec );
+                return topN( n );
+            }
+            return score( Double.parseDouble( s ) );
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException( "Not a valid threshold: '" + spec + "'; use a number, or "
+                    + TOP_N_PREFIX + "N for the N best genes" );
+        }
+    }
+
+    /**
+     * <p>
+     * parseList.
+     * </p>
+     *
+     * @param specs comma-separated, for example "0.001,0.01,0.05,top200"
+     * @return the thresholds, in the order given.
+     */
+    public static List<OraThreshold> parseList( String specs ) {
+        List<OraThreshold> result = new ArrayList<>();
+        for ( String spec : StringUtils.split( specs, ',' ) ) {
+            if ( StringUtils.isBlank( spec ) ) continue;
+            result.add( parse( spec ) );
+        }
+        if ( result.isEmpty() ) throw new IllegalArgumentException( "No thresholds were given" );
+        return result;
+    }
+
+    /**
+     * <p>
+     * score.
+     * </p>
+     *
+     * @param threshold gene score threshold, in the units of the score file
+     * @return a {@link ubic.erminej.analysis.OraThreshold} object.
+     */
+    public static OraThreshold score( double threshold ) {
+        return new OraThreshold( threshold, -1 );
+    }
+
+    /**
+     * <p>
+     * topN.
+     * </p>
+     *
+     * @param n how many of the best scoring genes are hits
+     * @return a {@link ubic.erminej.analysis.OraThreshold} object.
+     */
+    public static OraThreshold topN( int n ) {
+        if ( n <= 0 ) throw new IllegalArgumentException( "Number of top genes must be positive" );
+        return new OraThreshold( Double.NaN, n );
+    }
+
+    private final double scoreThreshold;
+
+    private final int topN;
+
+    private OraThreshold( double scoreThreshold, int topN ) {
+        this.scoreThreshold = scoreThreshold;
+        this.topN = topN;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>scoreThreshold</code>.
+     * </p>
+     *
+     * @return the score threshold; NaN for a top-N threshold.
+     */
+    public double getScoreThreshold() {
+        return scoreThreshold;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>topN</code>.
+     * </p>
+     *
+     * @return the number of genes; -1 if this is a score threshold.
+     */
+    public int getTopN() {
+        return topN;
+    }
+
+    /**
+     * <p>
+     * isTopN.
+     * </p>
+     *
+     * @return a boolean.
+     */
+    public boolean isTopN() {
+        return topN > 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return isTopN() ? TOP_N_PREFIX + topN : Double.toString( scoreThreshold );
+    }
+
+}
@@ -18,18 +18,16 @@
  */
 package ubic.erminej.analysis;
 
-import java.util.concurrent.CancellationException;
+import java.util.List;
 
-import cern.colt.list.DoubleArrayList;
-import cern.jet.stat.Descriptive;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
-import ubic.basecode.math.DescriptiveWithMissing;
-import ubic.basecode.math.MatrixStats;
-import ubic.basecode.math.RandomChooser;
 import ubic.basecode.util.StatusViewer;
 import ubic.erminej.SettingsHolder;
 import ubic.erminej.data.Element;
 import ubic.erminej.data.Histogram;
+import ubic.erminej.data.HistogramCache;
+import ubic.erminej.data.RandomSource;
+import ubic.erminej.data.SplittableRandomSource;
 
 /**
  * <p>
@@ -53,11 +51,28 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
      */
     private static final int MIN_ITERATIONS_FOR_ESTIMATION = 2000;
     private DoubleMatrix<Element, String> data = null;
-    private double[][] dataAsRawMatrix;
 
-    private double[][] selfSquaredMatrix;
+    /**
+     * The data prepared for computing correlations; only kept while the null distribution is being generated.
+     */
+    private StandardizedRows standardizedRows;
+
+    /**
+     * Precomputed correlations, if available; used instead of standardizedRows.
+     */
+    private CorrelationTable correlationTable = null;
+
+    private HistogramCache histogramCache = null;
 
-    private boolean[][] nanStatusMatrix;
+    /**
+     * If true, all sizes are sampled from the same random gene sets, grown one element at a time.
+     */
+    private boolean nestedSampling = false;
+
+    /**
+     * If true, the data are kept in single precision for computing correlations.
+     */
+    private boolean singlePrecision = false;
 
     /**
      * <p>
@@ -72,13 +87,16 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
         this.classMinSize = settings.getMinClassSize();
         this.numRuns = settings.getIterations();
 
-        Long randomSeed = settings.getSeed();
-        if ( randomSeed != null ) {
-            RandomChooser.init( randomSeed );
-        }
+        this.randomSeed = settings.getSeed();
+        this.randomSource = SplittableRandomSource.fromSettings( settings );
+        this.histogramCache = HistogramCache.fromSettings( settings );
+        this.convergencePolicy = ConvergencePolicy.fromSettings( settings,
+                new ConvergencePolicy( TOLERANCE, MIN_STABLE_CHECKS, NORMAL_APPROX_SAMPLE_FREQUENCY ) );
 
         this.setUseNormalApprox( !settings.getAlwaysUseEmpirical() );
         this.setUseSpeedUp( !settings.getAlwaysUseEmpirical() );
+        this.nestedSampling = settings.getNestedCorrelationSampling();
+        this.singlePrecision = settings.getUseSinglePrecision();
         data = dataMatrix;
         int numGeneSetSizes = classMaxSize - classMinSize + 1;
         this.hist = new Histogram( numGeneSetSizes, classMinSize, numRuns, 1.0, 0.0 );
@@ -92,7 +110,8 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
      * @return a {@link ubic.erminej.data.Histogram} object.
      */
     public Histogram generateNulldistribution( StatusViewer m, long randomSeed ) {
-        RandomChooser.init( randomSeed );
+        this.randomSeed = randomSeed;
+        this.setRandomSource( new SplittableRandomSource( randomSeed ) );
         return this.generateNullDistribution( m );
     }
 
@@ -100,87 +119,93 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
      * {@inheritDoc}
      *
      * Build background distributions of within-gene set mean correlations. This requires computing a lot of
-     * correlations.
+     * correlations, so a distribution computed earlier for the same data and settings is reused if available.
      */
     @Override
     public Histogram generateNullDistribution( StatusViewer messenger ) {
 
-        int[] deck = new int[data.rows()];
-
-        dataAsRawMatrix = new double[data.rows()][];
-        for ( int j = 0; j < data.rows(); j++ ) {
-            double[] rowValues = data.getRow( j );
-            dataAsRawMatrix[j] = rowValues;
-
-            deck[j] = j;
+        String key = null;
+        if ( histogramCache != null && histogramCache.isEnabled() ) {
+            key = getNullDistributionKey();
+            Histogram cached = histogramCache.get( key );
+            if ( cached != null ) {
+                if ( messenger != null ) messenger.showStatus( "Using previously computed null distribution" );
+                this.hist = cached;
+                return hist;
+            }
         }
-        selfSquaredMatrix = MatrixStats.selfSquaredMatrix( dataAsRawMatrix );
-        nanStatusMatrix = MatrixStats.nanStatusMatrix( dataAsRawMatrix );
 
-        int stableChecks = 0;
-
-        for ( int geneSetSize = classMinSize; geneSetSize <= classMaxSize; geneSetSize++ ) {
-
-            ifInterruptedStop();
-
-            if ( messenger != null ) {
-                messenger.showProgress( "Currently running class size " + geneSetSize );
-            }
+        if ( correlationTable == null ) {
+            standardizedRows = new StandardizedRows( data, singlePrecision );
+        }
 
-            double oldmean = Double.MAX_VALUE;
-            double oldvar = Double.MAX_VALUE;
+        RandomSource random = randomSource.split();
+        SubsetSampler sampler = new SubsetSampler( data.rows() );
 
-            DoubleArrayList values = new DoubleArrayList();
-            for ( int j = 0; j < numRuns; j++ ) {
+        if ( nestedSampling ) {
+            generateNested( getGeneSetSizesToSample( data.rows() ), sampler, random, messenger );
+        } else {
+            generateIndependent( getGeneSetSizesToSample( data.rows() ), sampler, random, messenger );
+        }
+        hist.tocdf();
+        standardizedRows = null;
 
-                int[] randomnums = RandomChooser.chooserandom( deck, geneSetSize );
-                double avecorrel = geneSetMeanCorrel( randomnums );
-                values.add( avecorrel );
-                hist.update( geneSetSize, avecorrel );
+        if ( key != null ) {
+            histogramCache.put( key, hist );
+        }
+        return hist;
+    }
 
-                if ( useNormalApprox && j > MIN_ITERATIONS_FOR_ESTIMATION && geneSetSize > MIN_SET_SIZE_FOR_ESTIMATION
-                        && j > 0 && j % NORMAL_APPROX_SAMPLE_FREQUENCY == 0 ) {
-                    double mean = Descriptive.mean( values );
-                    double variance = Descriptive.variance( values.size(), Descriptive.sum( values ),
-                            Descriptive.sumOfSquares( values ) );
-
-                    if ( isConverged( oldmean, oldvar, mean, variance ) ) {
-                        stableChecks++; // this is necessary because we are not guaranteed to decrease the error.
-                    } else {
-                        stableChecks = 0;
-                    }
-
-                    if ( stableChecks >= MIN_STABLE_CHECKS ) {
-                        hist.addExactNormalProbabilityComputer( geneSetSize, mean, variance );
-                        log.debug( "Class size: " + geneSetSize + " - Reached convergence to normal after " + j
-                                + " iterations." );
-                        break; // stop simulation of this class size.
-                    }
-
-                    oldmean = mean;
-                    oldvar = variance;
-                }
+    /**
+     * Identifies the null distribution this generates, for use with a {@link HistogramCache}.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getNullDistributionKey() {
+        HistogramCache.KeyBuilder key = nullDistributionKey().add( nestedSampling ).add( singlePrecision )
+                .add( data.rows() ).add( data.columns() );
+        for ( int i = 0; i < data.rows(); i++ ) {
+            key.add( data.getRow( i ) );
+        }
+        return key.build();
+    }
 
-                if ( j % 500 == 0 ) {
-                    takeABreak();
-                }
+    /**
+     * <p>
+     * Setter for the field <code>correlationTable</code>.
+     * </p>
+     *
+     * @param correlationTable a {@link ubic.erminej.analysis.CorrelationTable} object for the same data; null to
+     *        compute the correlations as needed.
+     */
+    public void setCorrelationTable( CorrelationTable correlationTable ) {
+        if ( correlationTable != null && correlationTable.rows() != data.rows() ) {
+            throw new IllegalArgumentException( "Correlation table is not for this data" );
+        }
+        this.correlationTable = correlationTable;
+    }
 
-            }
+    /**
+     * <p>
+     * Setter for the field <code>histogramCache</code>.
+     * </p>
+     *
+     * @param histogramCache a {@link ubic.erminej.data.HistogramCache} object; null to not use a cache.
+     */
+    public void setHistogramCache( HistogramCache histogramCache ) {
+        this.histogramCache = histogramCache;
+    }
 
-            /*
-             * To improve performance, after a certain gene set size has been surpassed, don't do every size. The
-             * distributions are very similar.
-             */
-            if ( useSpeedUp && geneSetSize >= SPEEDUPSIZECUT ) {
-                geneSetSize += Math.floor( SPEDUPSIZEEXTRASTEP * geneSetSize );
-            }
-            takeABreak();
-        }
-        hist.tocdf();
-        nanStatusMatrix = null;
-        selfSquaredMatrix = null;
-        dataAsRawMatrix = null;
-        return hist;
+    /**
+     * Choose between sampling each gene set size separately (the default) and growing the same random gene sets
+     * through all the sizes. Nested sampling only has to add the correlations of each new element to those already
+     * summed, so the cost for all sizes up to k grows with k squared rather than k cubed. The distribution for each
+     * size is the same either way, but with nested sampling those for different sizes are not independent.
+     *
+     * @param nestedSampling a boolean.
+     */
+    public void setNestedSampling( boolean nestedSampling ) {
+        this.nestedSampling = nestedSampling;
     }
 
     /**
@@ -195,14 +220,25 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
         double sumCorrelation = 0.0;
         int nummeas = 0;
 
+        if ( correlationTable != null ) {
+            for ( int i = 0; i < size; i++ ) {
+                int iRowIndex = indicesToSelect[i];
+                for ( int j = i + 1; j < size; j++ ) {
+                    sumCorrelation += correlationTable.get( iRowIndex, indicesToSelect[j] );
+                    nummeas++;
+                }
+            }
+            return sumCorrelation / nummeas;
+        }
+
+        if ( standardizedRows == null ) {
+            standardizedRows = new StandardizedRows( data, singlePrecision );
+        }
+
         for ( int i = 0; i < size; i++ ) {
             int iRowIndex = indicesToSelect[i];
-            double[] irow = dataAsRawMatrix[iRowIndex];
             for ( int j = i + 1; j < size; j++ ) {
-                int jRowIndex = indicesToSelect[j];
-                double[] jrow = dataAsRawMatrix[jRowIndex];
-                double corr = Math.abs( DescriptiveWithMissing.correlation( irow, jrow, selfSquaredMatrix[iRowIndex],
-                        selfSquaredMatrix[jRowIndex], nanStatusMatrix[iRowIndex], nanStatusMatrix[jRowIndex] ) );
+                double corr = Math.abs( standardizedRows.correlation( iRowIndex, indicesToSelect[j] ) );
                 sumCorrelation += corr;
                 nummeas++;
             }
@@ -211,27 +247,138 @@ public class ResamplingCorrelationGeneSetScore extends AbstractResamplingGeneSet
     }
 
     /**
-     * @param oldmean
-     * @param oldvar
-     * @param mean
-     * @param variance
-     * @return
+     * Absolute correlation between two rows, from the table if there is one.
+     *
+     * @param i
+     * @param j
+     * @return |r|
      */
-    private boolean isConverged( double oldmean, double oldvar, double mean, double variance ) {
-        return Math.abs( oldvar - variance ) <= TOLERANCE && Math.abs( oldmean - mean ) <= TOLERANCE;
+    private double absCorrelation( int i, int j ) {
+        if ( correlationTable != null ) {
+            return correlationTable.get( i, j );
+        }
+        return Math.abs( standardizedRows.correlation( i, j ) );
     }
 
     /**
+     * Sample each size separately: every trial draws a new random gene set and computes all of its correlations.
      *
+     * @param sizes
+     * @param sampler
+     * @param random
+     * @param messenger
      */
-    private void takeABreak() {
-        ifInterruptedStop();
+    private void generateIndependent( List<Integer> sizes, SubsetSampler sampler, RandomSource random,
+            StatusViewer messenger ) {
+        for ( int geneSetSize : sizes ) {
 
-        try {
-            Thread.sleep( 10 );
-        } catch ( InterruptedException e ) {
-            throw new CancellationException();
+            ifInterruptedStop();
+
+            if ( messenger != null ) {
+                messenger.showProgress( "Currently running class size " + geneSetSize );
+            }
+
+            RunningMoments moments = new RunningMoments();
+            int[] randomnums = new int[geneSetSize];
+            for ( int j = 0; j < numRuns; j++ ) {
+
+                sampler.sampleIndices( randomnums, random );
+                double avecorrel = geneSetMeanCorrel( randomnums );
+                moments.add( avecorrel );
+                hist.update( geneSetSize, avecorrel );
+
+                if ( useNormalApprox && j > MIN_ITERATIONS_FOR_ESTIMATION && geneSetSize > MIN_SET_SIZE_FOR_ESTIMATION
+                        && convergencePolicy.isCheckPoint( j ) && moments.checkConvergence( convergencePolicy ) ) {
+                    hist.addExactNormalProbabilityComputer( geneSetSize, moments.getMean(), moments.getVariance() );
+                    log.debug( "Class size: " + geneSetSize + " - Reached convergence to normal after " + j
+                            + " iterations." );
+                    break; // stop simulation of this class size.
+                }
+
+                if ( j % 500 == 0 ) {
+                    takeABreak();
+                }
+
+            }
+
+            takeABreak();
+        }
+    }
+
+    /**
+     * Sample all sizes at once. Each trial grows one random gene set up to the largest size still being sampled,
+     * keeping a running sum of the correlations among its members; adding the k+1th member only needs its k
+     * correlations with the members already there. The mean correlation is recorded each time the set reaches one of
+     * the sizes being sampled. Sizes whose distribution has converged to a normal are dropped, and the sets are only
+     * grown as far as the largest size that is left.
+     *
+     * @param sizes in increasing order
+     * @param sampler
+     * @param random
+     * @param messenger
+     */
+    private void generateNested( List<Integer> sizes, SubsetSampler sampler, RandomSource random,
+            StatusViewer messenger ) {
+        if ( sizes.isEmpty() ) return;
+
+        int maxSize = sizes.get( sizes.size() - 1 );
+        boolean[] active = new boolean[maxSize + 1];
+        RunningMoments[] moments = new RunningMoments[maxSize + 1];
+        for ( int size : sizes ) {
+            active[size] = true;
+            moments[size] = new RunningMoments();
+        }
+        int numActive = sizes.size();
+        int largestActive = maxSize;
+
+        int[] members = new int[maxSize];
+        for ( int j = 0; j < numRuns && numActive > 0; j++ ) {
+
+            if ( j % 500 == 0 ) {
+                ifInterruptedStop();
+                if ( messenger != null ) {
+                    messenger.showProgress( "Sampling all class sizes up to " + largestActive + ": " + j + " of "
+                            + numRuns + " iterations" );
+                }
+                takeABreak();
+            }
+
+            double sumCorrelation = 0.0;
+            for ( int k = 0; k < largestActive; k++ ) {
+                int next = sampler.sampleNext( k, random );
+                for ( int m = 0; m < k; m++ ) {
+                    sumCorrelation += absCorrelation( members[m], next );
+                }
+                members[k] = next;
+
+                int geneSetSize = k + 1;
+                if ( !active[geneSetSize] ) continue;
+                double avecorrel = sumCorrelation / ( geneSetSize * ( geneSetSize - 1 ) / 2 );
+                moments[geneSetSize].add( avecorrel );
+                hist.update( geneSetSize, avecorrel );
+            }
+
+            if ( !useNormalApprox || j <= MIN_ITERATIONS_FOR_ESTIMATION || !convergencePolicy.isCheckPoint( j ) ) {
+                continue;
+            }
+
+            for ( int geneSetSize : sizes ) {
+                if ( !active[geneSetSize] || geneSetSize <= MIN_SET_SIZE_FOR_ESTIMATION
+                        || !moments[geneSetSize].checkConvergence( convergencePolicy ) ) {
+                    continue;
+                }
+                hist.addExactNormalProbabilityComputer( geneSetSize, moments[geneSetSize].getMean(),
+                        moments[geneSetSize].getVariance() );
+                log.debug( "Class size: " + geneSetSize + " - Reached convergence to normal after " + j
+                        + " iterations." );
+                active[geneSetSize] = false;
+                numActive--;
+            }
+            while ( largestActive > 0 && !active[largestActive] ) {
+                largestActive--;
+            }
         }
+        takeABreak();
     }
 
 }
@@ -19,8 +19,6 @@
 package ubic.erminej.analysis;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -78,23 +76,14 @@ public class RocPvalGenerator extends AbstractGeneSetPvalGenerator {
      * @return a {@link java.util.Map} object.
      */
     protected Map<GeneSetTerm, GeneSetResult> generateGeneSetResults( boolean useMultifunctionalityCorrection ) {
-        Map<GeneSetTerm, GeneSetResult> results = new HashMap<>();
-        int count = 0;
-
         this.numGenesUsed = geneToScoreMap.size();
 
-        for ( Iterator<GeneSetTerm> iter = geneAnnots.getGeneSetTerms().iterator(); iter.hasNext(); ) {
-            GeneSetTerm className = iter.next();
-            GeneSetResult res = this.classPval( className );
-            if ( res != null ) {
-                results.put( className, res );
-                if ( ++count % ALERT_UPDATE_FREQUENCY == 0 ) {
-                    getMessenger().showProgress( count + " gene sets analyzed" );
-                    ifInterruptedStop();
-
-                }
+        Map<GeneSetTerm, GeneSetResult> results = scoreGeneSets( new GeneSetScorer() {
+            @Override
+            public GeneSetResult score( GeneSetTerm geneSet ) {
+                return classPval( geneSet );
             }
-        }
+        }, false );
         if ( results.isEmpty() ) return results;
         GeneSetPvalRun.populateRanks( results );
 
@@ -102,6 +91,7 @@ public class RocPvalGenerator extends AbstractGeneSetPvalGenerator {
             Map<Gene, Double> adjustScores = this.geneAnnots.getMultifunctionality().adjustScores( geneToScoreMap,
                     false /* ranks */, false /* unweighted regression */ );
             RocPvalGenerator rpg = new RocPvalGenerator( settings, geneAnnots, adjustScores, messenger );
+            rpg.setExecutionPolicy( getExecutionPolicy() );
             Map<GeneSetTerm, GeneSetResult> mfCorrectedResults = rpg.generateGeneSetResults( false );
 
             List<GeneSetTerm> sortedClasses = GeneSetPvalRun.getSortedClasses( mfCorrectedResults );
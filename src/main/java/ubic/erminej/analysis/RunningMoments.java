@@ -0,0 +1,122 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+/**
+ * Mean, variance and skewness of a stream of values, updated in constant time and memory per value (Welford's
+ * method, extended to the third moment). Also remembers the moments seen at the last convergence check, so it can be
+ * used with a {@link ConvergencePolicy}.
+ *
+ * @version $Id$
+ */
+public class RunningMoments {
+
+    private long count = 0;
+    private double mean = 0.0;
+    private double m2 = 0.0;
+    private double m3 = 0.0;
+
+    private double checkedMean = Double.MAX_VALUE;
+    private double checkedVariance = Double.MAX_VALUE;
+    private int stableChecks = 0;
+
+    /**
+     * <p>
+     * add.
+     * </p>
+     *
+     * @param x a double.
+     */
+    public void add( double x ) {
+        long n1 = count;
+        count++;
+        double delta = x - mean;
+        double deltaN = delta / count;
+        double term = delta * deltaN * n1;
+        mean += deltaN;
+        m3 += term * deltaN * ( count - 2 ) - 3.0 * deltaN * m2;
+        m2 += term;
+    }
+
+    /**
+     * Compare the current moments to those at the previous check, and record the current ones for the next check.
+     *
+     * @param policy a {@link ubic.erminej.analysis.ConvergencePolicy} object.
+     * @return true if the policy's required number of consecutive stable checks has been reached.
+     */
+    public boolean checkConvergence( ConvergencePolicy policy ) {
+        double variance = getVariance();
+        if ( policy.isStable( checkedMean, checkedVariance, mean, variance ) ) {
+            stableChecks++; // this is necessary because we are not guaranteed to decrease the error.
+        } else {
+            stableChecks = 0;
+        }
+        checkedMean = mean;
+        checkedVariance = variance;
+        return stableChecks >= policy.getMinStableChecks();
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>count</code>.
+     * </p>
+     *
+     * @return a long.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * <p>
+     * Getter for the field <code>mean</code>.
+     * </p>
+     *
+     * @return a double.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * <p>
+     * getSkewness.
+     * </p>
+     *
+     * @return the sample skewness, m3 / m2^1.5 using the central moments (divided by n); NaN if there are fewer than
+     *         two values or they are all the same.
+     */
+    public double getSkewness() {
+        if ( count < 2 || m2 == 0.0 ) return Double.NaN;
+        return Math.sqrt( count ) * m3 / Math.pow( m2, 1.5 );
+    }
+
+    /**
+     * <p>
+     * getVariance.
+     * </p>
+     *
+     * @return the sample (n - 1) variance; NaN if there are fewer than two values.
+     */
+    public double getVariance() {
+        if ( count < 2 ) return Double.NaN;
+        return m2 / ( count - 1 );
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+
+/**
+ * The rows of a data matrix prepared for computing many Pearson correlations between them. Rows without missing values
+ * are centered and scaled to unit length once, so the correlation of two such rows is just their dot product. Rows
+ * with missing values are kept as they are, and correlations involving them are computed over the columns where both
+ * rows have values, as {@link ubic.basecode.math.DescriptiveWithMissing#correlation} does; which columns those are is
+ * kept as a bitset for each such row.
+ * <p>
+ * All the values are kept in one contiguous array, row by row, in double or, to halve the memory needed for large data
+ * sets, single precision. Sums are always accumulated in double precision. Immutable, so safe to share between
+ * threads.
+ *
+ * @version $Id$
+ */
+public class StandardizedRows {
+
+    private final int numColumns;
+
+    private final int numRows;
+
+    /**
+     * Row-major; standardized values for complete rows, the original values for rows with missing values. Null if
+     * floatValues is used instead.
+     */
+    private final double[] values;
+
+    /**
+     * Same as values, in single precision; null if values is used.
+     */
+    private final float[] floatValues;
+
+    /**
+     * For each row with missing values, a bitset of the columns that have values; null for complete rows.
+     */
+    private final long[][] present;
+
+    /**
+     * <p>
+     * Constructor for StandardizedRows.
+     * </p>
+     *
+     * @param data an array of double; each row must have the same length.
+     */
+    public StandardizedRows( double[][] data ) {
+        this( data, false );
+    }
+
+    /**
+     * <p>
+     * Constructor for StandardizedRows.
+     * </p>
+     *
+     * @param data an array of double; each row must have the same length.
+     * @param singlePrecision if true, the values are stored as floats.
+     */
+    public StandardizedRows( double[][] data, boolean singlePrecision ) {
+        this( data.length, data.length == 0 ? 0 : data[0].length, singlePrecision );
+        for ( int i = 0; i < numRows; i++ ) {
+            setRow( i, data[i] );
+        }
+    }
+
+    /**
+     * <p>
+     * Constructor for StandardizedRows.
+     * </p>
+     *
+     * @param data a {@link ubic.basecode.dataStructure.matrix.DoubleMatrix} object.
+     */
+    public StandardizedRows( DoubleMatrix<?, ?> data ) {
+        this( data, false );
+    }
+
+    /**
+     * <p>
+     * Constructor for StandardizedRows.
+     * </p>
+     *
+     * @param data a {@link ubic.basecode.dataStructure.matrix.DoubleMatrix} object.
+     * @param singlePrecision if true, the values are stored as floats.
+     */
+    public StandardizedRows( DoubleMatrix<?, ?> data, boolean singlePrecision ) {
+        this( data.rows(), data.columns(), singlePrecision );
+        for ( int i = 0; i < numRows; i++ ) {
+            setRow( i, data.getRow( i ) );
+        }
+    }
+
+    private StandardizedRows( int numRows, int numColumns, boolean singlePrecision ) {
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.values = singlePrecision ? null : new double[numRows * numColumns];
+        this.floatValues = singlePrecision ? new float[numRows * numColumns] : null;
+        this.present = new long[numRows][];
+    }
+
+    /**
+     * The Pearson correlation between two rows. Missing values are ignored.
+     *
+     * @param i a int.
+     * @param j a int.
+     * @return a double; NaN if either row is constant or they have fewer than two columns with values in common.
+     */
+    public double correlation( int i, int j ) {
+        if ( present[i] != null || present[j] != null ) {
+            return maskedCorrelation( i, j );
+        }
+        if ( floatValues != null ) {
+            return dotFloat( i * numColumns, j * numColumns );
+        }
+        return dot( i * numColumns, j * numColumns );
+    }
+
+    /**
+     * <p>
+     * columns.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int columns() {
+        return numColumns;
+    }
+
+    /**
+     * <p>
+     * hasMissing.
+     * </p>
+     *
+     * @param i a int.
+     * @return true if the row has missing values.
+     */
+    public boolean hasMissing( int i ) {
+        return present[i] != null;
+    }
+
+    /**
+     * <p>
+     * isSinglePrecision.
+     * </p>
+     *
+     * @return true if the values are stored as floats.
+     */
+    public boolean isSinglePrecision() {
+        return floatValues != null;
+    }
+
+    /**
+     * <p>
+     * rows.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int rows() {
+        return numRows;
+    }
+
+    /**
+     * Dot product of two standardized rows. Several partial sums are used so the additions don't all wait for each
+     * other.
+     *
+     * @param a offset of the first row
+     * @param b offset of the second row
+     * @return the correlation
+     */
+    private double dot( int a, int b ) {
+        double s0 = 0.0;
+        double s1 = 0.0;
+        double s2 = 0.0;
+        double s3 = 0.0;
+        int k = 0;
+        for ( ; k + 3 < numColumns; k += 4 ) {
+            s0 += values[a + k] * values[b + k];
+            s1 += values[a + k + 1] * values[b + k + 1];
+            s2 += values[a + k + 2] * values[b + k + 2];
+            s3 += values[a + k + 3] * values[b + k + 3];
+        }
+        for ( ; k < numColumns; k++ ) {
+            s0 += values[a + k] * values[b + k];
+        }
+        return ( s0 + s1 ) + ( s2 + s3 );
+    }
+
+    /**
+     * As {@link #dot(int, int)}, for single precision values.
+     *
+     * @param a offset of the first row
+     * @param b offset of the second row
+     * @return the correlation
+     */
+    private double dotFloat( int a, int b ) {
+        double s0 = 0.0;
+        double s1 = 0.0;
+        double s2 = 0.0;
+        double s3 = 0.0;
+        int k = 0;
+        for ( ; k + 3 < numColumns; k += 4 ) {
+            s0 += ( double ) floatValues[a + k] * floatValues[b + k];
+            s1 += ( double ) floatValues[a + k + 1] * floatValues[b + k + 1];
+            s2 += ( double ) floatValues[a + k + 2] * floatValues[b + k + 2];
+            s3 += ( double ) floatValues[a + k + 3] * floatValues[b + k + 3];
+        }
+        for ( ; k < numColumns; k++ ) {
+            s0 += ( double ) floatValues[a + k] * floatValues[b + k];
+        }
+        return ( s0 + s1 ) + ( s2 + s3 );
+    }
+
+    /**
+     * Correlation over the columns where both rows have values. Standardizing a complete row does not change its
+     * correlation with anything, so this works whichever of the rows was standardized.
+     *
+     * @param i the first row
+     * @param j the second row
+     * @return the correlation
+     */
+    private double maskedCorrelation( int i, int j ) {
+        long[] maskI = present[i];
+        long[] maskJ = present[j];
+        int a = i * numColumns;
+        int b = j * numColumns;
+        int n = 0;
+        double sx = 0.0;
+        double sy = 0.0;
+        double sxx = 0.0;
+        double syy = 0.0;
+        double sxy = 0.0;
+        for ( int w = 0; w * 64 < numColumns; w++ ) {
+            long both = ( maskI == null ? -1L : maskI[w] ) & ( maskJ == null ? -1L : maskJ[w] );
+            if ( w * 64 + 64 > numColumns ) {
+                both &= ( 1L << ( numColumns - w * 64 ) ) - 1;
+            }
+            while ( both != 0 ) {
+                int k = w * 64 + Long.numberOfTrailingZeros( both );
+                both &= both - 1;
+                double x = value( a + k );
+                double y = value( b + k );
+                n++;
+                sx += x;
+                sy += y;
+                sxx += x * x;
+                syy += y * y;
+                sxy += x * y;
+            }
+        }
+        if ( n < 2 ) return Double.NaN;
+        double numerator = sxy - sx * sy / n;
+        double denominator = Math.sqrt( ( sxx - sx * sx / n ) * ( syy - sy * sy / n ) );
+        return numerator / denominator;
+    }
+
+    /**
+     * @param i
+     * @param row
+     */
+    private void setRow( int i, double[] row ) {
+        if ( row.length != numColumns ) {
+            throw new IllegalArgumentException( "Row " + i + " has " + row.length + " values, expected " + numColumns );
+        }
+        int offset = i * numColumns;
+
+        double mean = 0.0;
+        for ( double v : row ) {
+            if ( Double.isNaN( v ) ) {
+                setRowWithMissing( i, row );
+                return;
+            }
+            mean += v;
+        }
+        mean /= numColumns;
+
+        double sumSquares = 0.0;
+        for ( double v : row ) {
+            sumSquares += ( v - mean ) * ( v - mean );
+        }
+
+        // a constant row has no defined correlation; 0 * infinity gives NaN.
+        double scale = 1.0 / Math.sqrt( sumSquares );
+        for ( int k = 0; k < numColumns; k++ ) {
+            setValue( offset + k, ( row[k] - mean ) * scale );
+        }
+    }
+
+    /**
+     * Keep the values of a row with missing values, and which columns have them. The values are centered, which does
+     * not change any correlation, but keeps the sums in {@link #maskedCorrelation(int, int)} small.
+     *
+     * @param i
+     * @param row
+     */
+    private void setRowWithMissing( int i, double[] row ) {
+        int offset = i * numColumns;
+        long[] mask = new long[( numColumns + 63 ) / 64];
+        double mean = 0.0;
+        int n = 0;
+        for ( int k = 0; k < numColumns; k++ ) {
+            if ( Double.isNaN( row[k] ) ) continue;
+            mask[k >>> 6] |= 1L << k;
+            mean += row[k];
+            n++;
+        }
+        mean = n == 0 ? 0.0 : mean / n;
+        for ( int k = 0; k < numColumns; k++ ) {
+            setValue( offset + k, row[k] - mean );
+        }
+        present[i] = mask;
+    }
+
+    /**
+     * @param index
+     * @param v
+     */
+    private void setValue( int index, double v ) {
+        if ( floatValues != null ) {
+            floatValues[index] = ( float ) v;
+        } else {
+            values[index] = v;
+        }
+    }
+
+    /**
+     * @param index
+     * @return the stored value
+     */
+    private double value( int index ) {
+        return floatValues != null ? floatValues[index] : values[index];
+    }
+
+}
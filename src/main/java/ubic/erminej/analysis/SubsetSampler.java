@@ -0,0 +1,159 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.util.List;
+
+import ubic.erminej.data.RandomSource;
+
+/**
+ * Draws random subsets (without replacement) from a fixed population, using a partial Fisher-Yates shuffle of an index
+ * deck. The deck is kept between draws and the results are written into buffers supplied by the caller, so repeated
+ * sampling does not allocate. Not thread-safe; use one instance per thread.
+ *
+ * @version $Id$
+ */
+public class SubsetSampler {
+
+    private final int[] deck;
+
+    /**
+     * <p>
+     * Constructor for SubsetSampler.
+     * </p>
+     *
+     * @param populationSize a int.
+     */
+    public SubsetSampler( int populationSize ) {
+        if ( populationSize < 1 ) {
+            throw new IllegalArgumentException( "Population must not be empty" );
+        }
+        this.deck = new int[populationSize];
+        reset();
+    }
+
+    /**
+     * <p>
+     * getPopulationSize.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int getPopulationSize() {
+        return deck.length;
+    }
+
+    /**
+     * Put the deck back in its original order. The draws depend on the order the deck was left in by earlier draws, so
+     * call this first when a series of draws must depend only on the random stream, e.g. for reproducible results
+     * when the instance is shared by unrelated tasks.
+     */
+    public void reset() {
+        for ( int i = 0; i < deck.length; i++ ) {
+            deck[i] = i;
+        }
+    }
+
+    /**
+     * Fill the buffer with distinct indices chosen at random from the population.
+     *
+     * @param result buffer; its length is the number of indices chosen.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public void sampleIndices( int[] result, RandomSource random ) {
+        int k = checkSize( result.length );
+        for ( int i = 0; i < k; i++ ) {
+            result[i] = draw( i, random );
+        }
+    }
+
+    /**
+     * Grow the current sample by one index. If the sample of size k was the last thing drawn (by
+     * {@link #sampleIndices(int[], RandomSource)} or by calls to this method for 0 .. k-1), the result is a random
+     * index not already in it, so the sample of size k+1 is again uniformly distributed. Use this to build a series
+     * of nested samples of increasing size.
+     *
+     * @param k the current size of the sample; 0 to start a new one.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     * @return the index added to the sample.
+     */
+    public int sampleNext( int k, RandomSource random ) {
+        checkSize( k + 1 );
+        return draw( k, random );
+    }
+
+    /**
+     * Fill the buffer with the values at randomly chosen distinct positions of the population.
+     *
+     * @param values the population, of length {@link #getPopulationSize()}.
+     * @param result buffer; its length is the number of values chosen.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public void sample( double[] values, double[] result, RandomSource random ) {
+        assert values.length == deck.length;
+        int k = checkSize( result.length );
+        for ( int i = 0; i < k; i++ ) {
+            result[i] = values[draw( i, random )];
+        }
+    }
+
+    /**
+     * Replace the contents of the result list with k distinct items chosen at random from the population.
+     *
+     * @param items the population, of size {@link #getPopulationSize()}.
+     * @param k how many to choose.
+     * @param result list to fill; it is cleared first.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public <T> void sample( List<T> items, int k, List<T> result, RandomSource random ) {
+        assert items.size() == deck.length;
+        checkSize( k );
+        result.clear();
+        for ( int i = 0; i < k; i++ ) {
+            result.add( items.get( draw( i, random ) ) );
+        }
+    }
+
+    /**
+     * @param k
+     * @return k
+     */
+    private int checkSize( int k ) {
+        if ( k > deck.length ) {
+            throw new IllegalArgumentException( "Cannot choose " + k + " items from " + deck.length );
+        }
+        return k;
+    }
+
+    /**
+     * One step of the shuffle: swap a random card from the remaining part of the deck into position i.
+     *
+     * @param i
+     * @param random
+     * @return the index now at position i
+     */
+    private int draw( int i, RandomSource random ) {
+        int j = i + random.nextInt( deck.length - i );
+        int chosen = deck[j];
+        deck[j] = deck[i];
+        deck[i] = chosen;
+        return chosen;
+    }
+
+}
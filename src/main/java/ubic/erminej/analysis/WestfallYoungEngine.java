@@ -0,0 +1,278 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.basecode.util.StatusViewer;
+import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.Histogram;
+import ubic.erminej.data.RandomSource;
+
+/**
+ * Westfall-Young step-down permutation correction for gene set resampling (GSR) results, following algorithm 2.8, pg
+ * 66 of 'Resampling-based Multiple Testing'. In each trial the gene scores are shuffled among the genes (as for
+ * {@link ubic.erminej.data.GeneScores#getGeneToScoreMap(boolean)}), every gene set is rescored and its p-value looked
+ * up in the null distribution that was already computed for the real data. Going from the worst gene set to the best,
+ * the successive minima of the permuted p-values are compared to the real p-values; the corrected p-value of a set is
+ * the fraction of trials in which the minimum was at least as small as its real p-value, made monotone.
+ * <p>
+ * The scores and gene set memberships are held in primitive arrays, and the trials are run in fixed-size blocks that
+ * can be spread over several threads. Each block has its own random stream, split off in a fixed order, so the results
+ * for a given seed do not depend on the number of threads.
+ *
+ * @version $Id$
+ */
+public class WestfallYoungEngine extends AbstractLongTask {
+
+    /**
+     * Number of trials per unit of work.
+     */
+    private static final int TRIALS_PER_BLOCK = 100;
+
+    private static Log log = LogFactory.getLog( WestfallYoungEngine.class );
+
+    private final GeneSetResamplingBkgDistGenerator generator;
+
+    private final Histogram hist;
+
+    private final boolean upperTail;
+
+    private final boolean usingPrecisionRecall;
+
+    /**
+     * The values that are shuffled among the genes: the gene scores, or for precision-recall the ranks.
+     */
+    private final double[] values;
+
+    /**
+     * For each gene set, in order from best to worst: the indices (in values) of its genes.
+     */
+    private final int[][] members;
+
+    /**
+     * For each gene set, the size used to look up its null distribution.
+     */
+    private final int[] sizes;
+
+    /**
+     * For each gene set, the p-value for the real data.
+     */
+    private final double[] actualPvalues;
+
+    /**
+     * <p>
+     * Constructor for WestfallYoungEngine.
+     * </p>
+     *
+     * @param pvg the generator that produced the results; its null distribution is reused.
+     * @param sortedSets the gene sets to correct, from best to worst.
+     * @param results a {@link java.util.Map} object.
+     */
+    public WestfallYoungEngine( GeneSetResamplingPvalGenerator pvg, List<GeneSetTerm> sortedSets,
+            Map<GeneSetTerm, GeneSetResult> results ) {
+        if ( pvg.hist == null ) {
+            throw new UnsupportedOperationException( "Westfall-Young correction needs a null distribution;"
+                    + " it cannot be used with per-gene-set p-values" );
+        }
+
+        this.generator = pvg.generator;
+        this.hist = pvg.hist;
+        this.upperTail = pvg.settings.upperTail();
+        this.usingPrecisionRecall = pvg.settings.getGeneSetResamplingScoreMethod()
+                .equals( GeneScoreMethod.PRECISIONRECALL );
+
+        Map<Gene, Double> geneRanks = generator.getGeneRanks();
+        Map<Gene, Integer> geneIndex = new HashMap<>();
+        this.values = new double[pvg.geneToScoreMap.size()];
+        for ( Gene g : pvg.geneToScoreMap.keySet() ) {
+            int i = geneIndex.size();
+            geneIndex.put( g, i );
+            values[i] = usingPrecisionRecall ? geneRanks.get( g ) : pvg.geneToScoreMap.get( g );
+        }
+
+        int numSets = sortedSets.size();
+        this.members = new int[numSets][];
+        this.sizes = new int[numSets];
+        this.actualPvalues = new double[numSets];
+        for ( int j = 0; j < numSets; j++ ) {
+            GeneSetTerm t = sortedSets.get( j );
+            Set<Gene> genes = pvg.geneAnnots.getGeneSetGenes( t );
+            int[] m = new int[genes.size()];
+            int n = 0;
+            for ( Gene g : genes ) {
+                Integer i = geneIndex.get( g );
+                if ( i != null ) m[n++] = i;
+            }
+            members[j] = n == m.length ? m : Arrays.copyOf( m, n );
+            sizes[j] = pvg.numGenesInSet( t );
+            actualPvalues[j] = results.get( t ).getPvalue();
+        }
+    }
+
+    /**
+     * Run the permutations.
+     *
+     * @param trials how many permutations to do. According to W-Y, it should be &gt;=10,000.
+     * @param numThreads a int.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     * @param messenger a {@link ubic.basecode.util.StatusViewer} object; may be null.
+     * @return the corrected p-values, in the same order as the gene sets given to the constructor.
+     */
+    public double[] correct( int trials, int numThreads, RandomSource random, StatusViewer messenger ) {
+        if ( trials < 1 ) {
+            throw new IllegalArgumentException( "Number of trials must be at least 1" );
+        }
+
+        List<Callable<int[]>> blocks = new ArrayList<>();
+        for ( int start = 0; start < trials; start += TRIALS_PER_BLOCK ) {
+            final int numTrials = Math.min( TRIALS_PER_BLOCK, trials - start );
+            final RandomSource stream = random.split();
+            blocks.add( new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return runTrials( numTrials, stream );
+                }
+            } );
+        }
+
+        int[] counts = new int[members.length];
+        int done = 0;
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, Math.min( numThreads, blocks.size() ) ) );
+        try {
+            List<Future<int[]>> partials = new ArrayList<>();
+            for ( Callable<int[]> block : blocks ) {
+                partials.add( pool.submit( block ) );
+            }
+
+            for ( Future<int[]> partial : partials ) {
+                int[] blockCounts = partial.get();
+                for ( int j = 0; j < counts.length; j++ ) {
+                    counts[j] += blockCounts[j];
+                }
+                done = Math.min( trials, done + TRIALS_PER_BLOCK );
+                if ( messenger != null ) {
+                    messenger.showStatus( done + " Westfall-Young trials, " + ( trials - done ) + " to go." );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            throw new CancellationException( "Cancelled" );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+
+        /*
+         * Step 4 and enforce monotonicity, pg 67 (step 5) starting from the best class.
+         */
+        double[] corrected = new double[counts.length];
+        double previous = 0.0;
+        for ( int j = 0; j < counts.length; j++ ) {
+            corrected[j] = Math.max( ( double ) counts[j] / trials, previous );
+            previous = corrected[j];
+        }
+        return corrected;
+    }
+
+    /**
+     * Run some of the trials. Safe to call from several threads at once, as long as each call gets its own random
+     * stream. This runs in the pool threads, so it only checks for cancellation and leaves sharing the processor to the
+     * pool.
+     *
+     * @param numTrials
+     * @param random
+     * @return for each gene set, the number of trials in which the successive minimum of the permuted p-values was at
+     *         least as small as the real p-value.
+     */
+    private int[] runTrials( int numTrials, RandomSource random ) {
+        int[] counts = new int[members.length];
+        double[] permuted = values.clone();
+
+        /*
+         * Buffers, by gene set size, for the values of the genes in a set.
+         */
+        Map<Integer, double[]> buffers = new HashMap<>();
+        double[][] setBuffers = new double[members.length][];
+        for ( int j = 0; j < members.length; j++ ) {
+            int n = members[j].length;
+            if ( !buffers.containsKey( n ) ) {
+                buffers.put( n, new double[n] );
+            }
+            setBuffers[j] = buffers.get( n );
+        }
+
+        for ( int i = 0; i < numTrials; i++ ) {
+            ifCancelledStop();
+
+            // shuffle the association of values to genes.
+            for ( int k = permuted.length - 1; k > 0; k-- ) {
+                int r = random.nextInt( k + 1 );
+                double tmp = permuted[k];
+                permuted[k] = permuted[r];
+                permuted[r] = tmp;
+            }
+
+            /*
+             * Successive minima of step 2, pg 66, going from the worst class on the real data to the best. Also does
+             * step 3.
+             */
+            double q = 1.0;
+            for ( int j = members.length - 1; j >= 0; j-- ) {
+                int[] m = members[j];
+                double[] buf = setBuffers[j];
+                for ( int k = 0; k < m.length; k++ ) {
+                    buf[k] = permuted[m[k]];
+                }
+
+                double rawScore = usingPrecisionRecall
+                        ? GeneSetResamplingBkgDistGenerator.averagePrecision( buf, buf.length )
+                        : generator.computeRawScore( buf, null );
+
+                double permp = hist.getValue( sizes[j], rawScore, upperTail );
+
+                q = Math.min( q, permp );
+                if ( q <= actualPvalues[j] ) {
+                    counts[j]++;
+                }
+            }
+        }
+        if ( log.isDebugEnabled() ) log.debug( "Finished " + numTrials + " Westfall-Young trials" );
+        return counts;
+    }
+}
@@ -14,13 +14,36 @@
  */
 package ubic.erminej.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.FastRowAccessDoubleMatrix;
-import ubic.basecode.io.reader.DoubleMatrixReader;
+import ubic.basecode.util.FileTools;
 import ubic.erminej.SettingsHolder;
 
 /**
@@ -32,10 +55,33 @@ import ubic.erminej.SettingsHolder;
  * @version $Id$
  */
 public class DataIOUtils {
+
+    /** Constant <code>CACHE_DIRECTORY_NAME="dataMatrices"</code> */
+    public static final String CACHE_DIRECTORY_NAME = "dataMatrices";
+
+    private static final String FILE_SUFFIX = ".data";
+
+    /**
+     * Identifies our binary files ("ERMD").
+     */
+    private static final int MAGIC = 0x45524d44;
+
+    private static final int FORMAT_VERSION = 1;
+
     /**
-     * <p>
-     * readDataMatrixForAnalysis.
-     * </p>
+     * Size of the part of the binary file mapped at once.
+     */
+    private static final long MAX_BYTES_PER_MAPPING = 1L << 30;
+
+    private static final Log log = LogFactory.getLog( DataIOUtils.class );
+
+    /**
+     * Read the expression data for an analysis. Only the rows for elements in the annotations are kept. The file is
+     * read in one pass, straight into the arrays that back the returned matrix. If the data matrix cache is enabled
+     * (see {@link ubic.erminej.SettingsHolder#getUseDataMatrixCache()}) the rows are also saved in a binary file, which
+     * is used instead of the text file by later analyses as long as the text file and the annotations are unchanged.
+     * The least recently used copies are removed when they take more than
+     * {@link ubic.erminej.SettingsHolder#getDataCacheMB()}.
      *
      * @throws java.io.IOException if any.
      * @param geneAnnots a {@link ubic.erminej.data.GeneAnnotations} object.
@@ -44,34 +90,387 @@ public class DataIOUtils {
      */
     public static DoubleMatrix<Element, String> readDataMatrixForAnalysis( GeneAnnotations geneAnnots,
             SettingsHolder settings ) throws IOException {
-        DoubleMatrix<Element, String> rawData;
-        DoubleMatrixReader r = new DoubleMatrixReader();
 
-        Collection<String> usableRowNames = new HashSet<>();
-        for ( Element p : geneAnnots.getProbes() ) {
-            usableRowNames.add( p.getName() );
-        }
+        Set<String> usableRowNames = usableRowNames( geneAnnots );
+        String fileName = settings.getRawDataFileName();
 
         /*
-         * The -2 is because the read method counts from index 0, not counting the label column. So the second column of
-         * the file is index 0 as far as read() is concerned.
+         * The -2 is because we count from index 0, not counting the label column. So the second column of the file is
+         * index 0 as far as reading is concerned.
          */
-        DoubleMatrix<String, String> omatrix = r.read( settings.getRawDataFileName(), usableRowNames,
-                settings.getDataCol() - 2 );
+        int startColumn = settings.getDataCol() - 2;
+
+        List<String> rowNames = new ArrayList<>();
+        List<String> columnNames = new ArrayList<>();
+        double[][] values = null;
+
+        File saved = null;
+        if ( settings.getUseDataMatrixCache() ) {
+            saved = savedMatrixFile( settings, fileName, startColumn, usableRowNames );
+            if ( saved.canRead() ) {
+                try {
+                    values = readBinary( saved, rowNames, columnNames );
+                    saved.setLastModified( System.currentTimeMillis() ); // mark as recently used.
+                    log.info( "Read data from saved copy " + saved );
+                } catch ( IOException e ) {
+                    log.warn( "Could not use saved copy of the data, will read the original file: " + e.getMessage() );
+                    rowNames.clear();
+                    columnNames.clear();
+                }
+            }
+        }
 
-        if ( omatrix.rows() == 0 ) {
+        if ( values == null ) {
+            values = read( fileName, startColumn, usableRowNames, rowNames, columnNames );
+            if ( saved != null && values.length > 0 ) {
+                try {
+                    writeBinary( saved, values, rowNames, columnNames );
+                    HistogramCache.evict( saved.getParentFile(), FILE_SUFFIX, settings.getDataCacheMB() * 1024L * 1024L,
+                            saved );
+                } catch ( IOException e ) {
+                    log.warn( "Could not save a copy of the data: " + e.getMessage() );
+                }
+            }
+        }
+
+        if ( values.length == 0 ) {
             throw new IllegalArgumentException( "No rows were read from the file for the elements in the annotations." );
         }
 
-        rawData = new FastRowAccessDoubleMatrix<>( omatrix.asArray() );
-        rawData.setColumnNames( omatrix.getColNames() );
-        for ( int i = 0; i < omatrix.rows(); i++ ) {
-            String n = omatrix.getRowName( i );
-            Element p = geneAnnots.findElement( n );
+        DoubleMatrix<Element, String> rawData = new FastRowAccessDoubleMatrix<>( values );
+        rawData.setColumnNames( columnNames );
+        for ( int i = 0; i < values.length; i++ ) {
+            Element p = geneAnnots.findElement( rowNames.get( i ) );
             assert p != null;
             rawData.setRowName( p, i );
         }
         return rawData;
     }
 
+    /**
+     * Find which elements have rows in the expression data, without reading the values; this gives the same elements
+     * as the rows of {@link #readDataMatrixForAnalysis(GeneAnnotations, SettingsHolder)}. The names are taken from the
+     * saved binary copy of the data if there is one, and otherwise from the first column of the text file.
+     *
+     * @param geneAnnots a {@link ubic.erminej.data.GeneAnnotations} object.
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @return a {@link java.util.Set} object.
+     * @throws java.io.IOException if any.
+     */
+    public static Set<Element> readDataMatrixElements( GeneAnnotations geneAnnots, SettingsHolder settings )
+            throws IOException {
+        Set<String> usableRowNames = usableRowNames( geneAnnots );
+        String fileName = settings.getRawDataFileName();
+        int startColumn = settings.getDataCol() - 2;
+
+        List<String> rowNames = null;
+        if ( settings.getUseDataMatrixCache() ) {
+            File saved = savedMatrixFile( settings, fileName, startColumn, usableRowNames );
+            if ( saved.canRead() ) {
+                try {
+                    rowNames = new ArrayList<>();
+                    readBinaryNames( saved, rowNames, new ArrayList<String>() );
+                } catch ( IOException e ) {
+                    log.warn( "Could not use saved copy of the data, will read the original file: " + e.getMessage() );
+                    rowNames = null;
+                }
+            }
+        }
+
+        if ( rowNames == null ) {
+            rowNames = readRowNames( fileName, usableRowNames );
+        }
+
+        if ( rowNames.isEmpty() ) {
+            throw new IllegalArgumentException( "No rows were read from the file for the elements in the annotations." );
+        }
+
+        Set<Element> result = new HashSet<>();
+        for ( String n : rowNames ) {
+            Element p = geneAnnots.findElement( n );
+            assert p != null;
+            result.add( p );
+        }
+        return result;
+    }
+
+    /**
+     * Read a tab-delimited data file, keeping only the wanted rows. The first line has the column names; after that
+     * the first field of each line is the row name. Lines starting with '#' are ignored, as are rows after the first
+     * with the same name. Values that are empty or not numbers (e.g. "NA") are read as NaN.
+     *
+     * @param fileName plain or compressed
+     * @param startColumn how many of the data columns (not counting the row names) to skip
+     * @param wantedRows names of the rows to keep
+     * @param rowNames filled in with the names of the rows kept, in the order they appear in the file
+     * @param columnNames filled in with the names of the columns kept
+     * @return the values, one array per row
+     * @throws IOException if the file could not be read or has more values in a row than columns
+     */
+    static double[][] read( String fileName, int startColumn, Set<String> wantedRows, List<String> rowNames,
+            List<String> columnNames ) throws IOException {
+        if ( startColumn < 0 ) {
+            throw new IllegalArgumentException( "Illegal start column " + startColumn );
+        }
+        FileTools.checkPathIsReadableFile( fileName );
+
+        List<double[]> rows = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int numRepeats = 0;
+
+        try (InputStream is = FileTools.getInputStreamFromPlainOrCompressedFile( fileName );
+                BufferedReader dis = new BufferedReader( new InputStreamReader( new BufferedInputStream( is ) ) )) {
+
+            String line = dis.readLine();
+            while ( line != null && line.startsWith( "#" ) ) {
+                line = dis.readLine();
+            }
+            if ( line == null ) {
+                throw new IOException( "File is empty: " + fileName );
+            }
+
+            String[] headings = line.split( "\t", -1 );
+            for ( int i = startColumn + 1; i < headings.length; i++ ) {
+                columnNames.add( headings[i].trim() );
+            }
+            int numColumns = columnNames.size();
+
+            int lineNumber = 1;
+            while ( ( line = dis.readLine() ) != null ) {
+                lineNumber++;
+                if ( line.isEmpty() || line.startsWith( "#" ) ) continue;
+
+                int tab = line.indexOf( '\t' );
+                String name = ( tab < 0 ? line : line.substring( 0, tab ) ).trim();
+                if ( !wantedRows.contains( name ) ) continue;
+                if ( !seen.add( name ) ) {
+                    numRepeats++;
+                    continue;
+                }
+
+                double[] row = new double[numColumns];
+                int column = -1; // index of the data column that starts after 'tab'
+                int c = 0;
+                while ( tab >= 0 ) {
+                    int start = tab + 1;
+                    tab = line.indexOf( '\t', start );
+                    column++;
+                    if ( column < startColumn ) continue;
+                    if ( c == numColumns ) {
+                        throw new IOException( "Too many values on line " + lineNumber + " of " + fileName );
+                    }
+                    row[c++] = parseValue( tab < 0 ? line.substring( start ) : line.substring( start, tab ) );
+                }
+                for ( ; c < numColumns; c++ ) {
+                    row[c] = Double.NaN;
+                }
+
+                rows.add( row );
+                rowNames.add( name );
+            }
+        }
+
+        if ( numRepeats > 0 ) {
+            log.warn( numRepeats + " rows had the same name as an earlier row and were ignored" );
+        }
+        return rows.toArray( new double[rows.size()][] );
+    }
+
+    /**
+     * Read a matrix saved by {@link #writeBinary(File, double[][], List, List)}. The values are read from a memory map
+     * of the file rather than through a stream.
+     *
+     * @param file
+     * @param rowNames filled in
+     * @param columnNames filled in
+     * @return the values, one array per row
+     * @throws IOException if the file could not be read or is not in the expected format
+     */
+    static double[][] readBinary( File file, List<String> rowNames, List<String> columnNames ) throws IOException {
+        long dataOffset = readBinaryNames( file, rowNames, columnNames );
+        int numRows = rowNames.size();
+        int numColumns = columnNames.size();
+
+        double[][] values = new double[numRows][numColumns];
+        if ( numColumns == 0 ) return values;
+        int rowsPerMapping = ( int ) Math.max( 1, Math.min( numRows, MAX_BYTES_PER_MAPPING / ( 8L * numColumns ) ) );
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            for ( int first = 0; first < numRows; first += rowsPerMapping ) {
+                int last = Math.min( numRows, first + rowsPerMapping );
+                DoubleBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY,
+                        dataOffset + 8L * first * numColumns, 8L * ( last - first ) * numColumns ).asDoubleBuffer();
+                for ( int i = first; i < last; i++ ) {
+                    buf.get( values[i] );
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Read just the names from a matrix saved by {@link #writeBinary(File, double[][], List, List)}.
+     *
+     * @param file
+     * @param rowNames filled in
+     * @param columnNames filled in
+     * @return where the values start in the file
+     * @throws IOException if the file could not be read or is not in the expected format
+     */
+    static long readBinaryNames( File file, List<String> rowNames, List<String> columnNames ) throws IOException {
+        long dataOffset;
+        int numRows;
+        int numColumns;
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) )) {
+            if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ) {
+                throw new IOException( "Not a saved data matrix, or from another version: " + file );
+            }
+            dataOffset = in.readLong();
+            numRows = in.readInt();
+            numColumns = in.readInt();
+            for ( int j = 0; j < numColumns; j++ ) {
+                columnNames.add( in.readUTF() );
+            }
+            for ( int i = 0; i < numRows; i++ ) {
+                rowNames.add( in.readUTF() );
+            }
+        }
+
+        if ( file.length() != dataOffset + 8L * numRows * numColumns ) {
+            throw new IOException( "Saved data matrix is incomplete: " + file );
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Read only the names of the wanted rows of a data file, using the same rules as
+     * {@link #read(String, int, Set, List, List)}. The rest of each line is not looked at.
+     *
+     * @param fileName plain or compressed
+     * @param wantedRows
+     * @return the names of the rows, in the order they appear in the file
+     * @throws IOException
+     */
+    static List<String> readRowNames( String fileName, Set<String> wantedRows ) throws IOException {
+        FileTools.checkPathIsReadableFile( fileName );
+        List<String> rowNames = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        try (InputStream is = FileTools.getInputStreamFromPlainOrCompressedFile( fileName );
+                BufferedReader dis = new BufferedReader( new InputStreamReader( new BufferedInputStream( is ) ) )) {
+            String line = dis.readLine();
+            while ( line != null && line.startsWith( "#" ) ) {
+                line = dis.readLine();
+            }
+            while ( line != null && ( line = dis.readLine() ) != null ) {
+                if ( line.isEmpty() || line.startsWith( "#" ) ) continue;
+                int tab = line.indexOf( '\t' );
+                String name = ( tab < 0 ? line : line.substring( 0, tab ) ).trim();
+                if ( wantedRows.contains( name ) && seen.add( name ) ) {
+                    rowNames.add( name );
+                }
+            }
+        }
+        return rowNames;
+    }
+
+    /**
+     * Save a matrix in our binary format: a header giving the offset of the values and the dimensions, then the column
+     * and row names, then the values row by row. The file is written under a temporary name and then moved into
+     * place, so an interrupted write does not leave a partial file behind.
+     *
+     * @param file
+     * @param values
+     * @param rowNames
+     * @param columnNames
+     * @throws IOException
+     */
+    static void writeBinary( File file, double[][] values, List<String> rowNames, List<String> columnNames )
+            throws IOException {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream( names )) {
+            for ( String c : columnNames ) {
+                out.writeUTF( c );
+            }
+            for ( String r : rowNames ) {
+                out.writeUTF( r );
+            }
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException( "Could not create " + dir );
+        }
+        File tmp = File.createTempFile( "data", ".tmp", dir );
+        try {
+            try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ),
+                    1 << 16 ) )) {
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeLong( 4 + 4 + 8 + 4 + 4 + names.size() );
+                out.writeInt( values.length );
+                out.writeInt( columnNames.size() );
+                names.writeTo( out );
+                for ( double[] row : values ) {
+                    for ( double v : row ) {
+                        out.writeDouble( v );
+                    }
+                }
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+            log.info( "Saved a copy of the data to " + file );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                log.warn( "Could not delete " + tmp );
+            }
+        }
+    }
+
+    /**
+     * @param s
+     * @return the value, or NaN if it is missing or not a number.
+     */
+    private static double parseValue( String s ) {
+        if ( s.isEmpty() ) return Double.NaN;
+        try {
+            return Double.parseDouble( s );
+        } catch ( NumberFormatException e ) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @param geneAnnots
+     * @return the names of all the elements in the annotations.
+     */
+    private static Set<String> usableRowNames( GeneAnnotations geneAnnots ) {
+        Set<String> usableRowNames = new HashSet<>();
+        for ( Element p : geneAnnots.getProbes() ) {
+            usableRowNames.add( p.getName() );
+        }
+        return usableRowNames;
+    }
+
+    /**
+     * Where the binary copy of the data is kept. The name depends on the data file, its size and modification time,
+     * the columns used and the rows wanted, so a changed file or different annotations lead to a new copy.
+     *
+     * @param settings
+     * @param fileName
+     * @param startColumn
+     * @param usableRowNames
+     * @return the file
+     * @throws IOException
+     */
+    private static File savedMatrixFile( SettingsHolder settings, String fileName, int startColumn,
+            Collection<String> usableRowNames ) throws IOException {
+        File source = new File( fileName );
+        HistogramCache.KeyBuilder key = new HistogramCache.KeyBuilder( DataIOUtils.class.getName() )
+                .add( source.getCanonicalPath() ).add( source.length() ).add( source.lastModified() )
+                .add( startColumn ).add( usableRowNames.size() );
+        for ( String name : new TreeSet<>( usableRowNames ) ) {
+            key.add( name );
+        }
+        return new File( new File( settings.getDataDirectory(), CACHE_DIRECTORY_NAME ), key.build() + FILE_SUFFIX );
+    }
+
 }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -31,6 +32,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
@@ -88,6 +91,11 @@ public class GeneAnnotations {
 
     private Multifunctionality multifunctionality;
 
+    /**
+     * Dense ids and membership bitsets; made when first needed and discarded whenever the gene sets change.
+     */
+    private volatile GeneSetMembership membership = null;
+
     /**
      * This includes all gene set terms, including ones which are redundant.
      */
@@ -332,6 +340,7 @@ public class GeneAnnotations {
             assert t != null;
             if ( gene.addGeneSet( t ) ) i++;
         }
+        this.membership = null;
         return i;
     }
 
@@ -388,6 +397,7 @@ public class GeneAnnotations {
 
         geneSets.put( geneSetId, newSet );
 
+        this.membership = null;
         if ( this.multifunctionality != null ) this.multifunctionality.setStale( true );
 
         if ( log.isDebugEnabled() )
@@ -415,6 +425,7 @@ public class GeneAnnotations {
         }
 
         geneSets.remove( id );
+        this.membership = null;
 
         if ( id.isUserDefined() ) geneSetTerms.removeUserDefined( id );
     }
@@ -667,6 +678,26 @@ public class GeneAnnotations {
         return this.geneSetTerms.getGraph();
     }
 
+    /**
+     * Dense ids for the genes and elements, and the gene sets as bitsets over them, for the analyses that count
+     * overlaps. Made when first needed and kept until the gene sets change.
+     *
+     * @return a {@link ubic.erminej.data.GeneSetMembership} object.
+     */
+    public GeneSetMembership getGeneSetMembership() {
+        GeneSetMembership m = this.membership;
+        if ( m == null ) {
+            synchronized ( this ) {
+                m = this.membership;
+                if ( m == null ) {
+                    m = new GeneSetMembership( this.genes.values(), this.geneSets.values() );
+                    this.membership = m;
+                }
+            }
+        }
+        return m;
+    }
+
     /**
      * <p>
      * Getter for the field <code>geneSets</code>.
@@ -765,6 +796,26 @@ public class GeneAnnotations {
         return settings;
     }
 
+    /**
+     * The distinct numbers of genes in the gene sets that would be analyzed: those with a usable aspect and within the
+     * given size range.
+     *
+     * @param minSize a int.
+     * @param maxSize a int.
+     * @return a {@link java.util.SortedSet} object.
+     */
+    public SortedSet<Integer> getUsableGeneSetSizes( int minSize, int maxSize ) {
+        SortedSet<Integer> result = new TreeSet<>();
+        for ( GeneSetTerm term : geneSets.keySet() ) {
+            if ( !hasUsableAspect( term, false ) ) continue;
+            int size = geneSets.get( term ).getGenes().size();
+            if ( size >= minSize && size <= maxSize ) {
+                result.add( size );
+            }
+        }
+        return result;
+    }
+
     /**
      * <p>
      * getUserDefinedGeneSets.
@@ -1061,6 +1112,7 @@ public class GeneAnnotations {
         }
 
         this.userDefinedGeneSetManager.saveGeneSet( toSave );
+        this.membership = null;
         if ( this.multifunctionality != null ) this.multifunctionality.setStale( true );
 
         refreshRedundancyCheck( toSave );
@@ -1302,6 +1354,7 @@ public class GeneAnnotations {
      */
     private void formGeneSets() {
         this.geneSets = new HashMap<>();
+        this.membership = null;
         for ( Gene g : this.genes.values() ) {
             for ( GeneSetTerm term : g.getGeneSets() ) {
                 assert term != null;
@@ -1407,6 +1460,7 @@ public class GeneAnnotations {
         }
 
         geneSets.remove( id );
+        this.membership = null;
 
         // when subcloning do not remove it from the tree, this is not for display purposes.
         if ( !subCloning && id.isUserDefined() ) geneSetTerms.removeUserDefined( id );
@@ -1432,24 +1486,26 @@ public class GeneAnnotations {
             }
         } );
 
+        GeneSetMembership m = getGeneSetMembership();
+
         int numRedundant = 0;
         for ( int i = 0; i < bySize.size(); i++ ) {
 
             GeneSet gs1 = bySize.get( i );
-            Collection<Gene> genes1 = gs1.getGenes();
+            int size1 = gs1.getGenes().size();
+            long[] genes1 = m.getGeneSetGenes( gs1.getTerm() );
 
-            gs: for ( int j = i + 1; j < bySize.size(); j++ ) {
+            for ( int j = i + 1; j < bySize.size(); j++ ) {
 
                 GeneSet gs2 = bySize.get( j );
-                Collection<Gene> genes2 = gs2.getGenes();
+                int size2 = gs2.getGenes().size();
 
-                assert genes2.size() <= genes1.size();
+                assert size2 <= size1;
 
-                if ( genes2.size() < genes1.size() ) break;
+                if ( size2 < size1 ) break;
 
-                for ( Gene g1 : genes1 ) {
-                    if ( !genes2.contains( g1 ) ) continue gs; // not redundant.
-                }
+                // same size, so redundant only if the members are identical.
+                if ( !Arrays.equals( genes1, m.getGeneSetGenes( gs2.getTerm() ) ) ) continue;
 
                 gs1.addRedundantGroup( gs2 );
                 gs2.addRedundantGroup( gs1 );
@@ -1500,25 +1556,19 @@ public class GeneAnnotations {
     private void refreshRedundancyCheck( GeneSet toSave ) {
         this.messenger.showProgress( "Updating redundancy information ..." );
         toSave.clearRedundancy(); // reset it completely.
+        GeneSetMembership m = getGeneSetMembership();
         Collection<Gene> genes1 = toSave.getGenes();
-        sets: for ( GeneSet gs2 : this.geneSets.values() ) {
+        long[] bits1 = m.toGeneBits( genes1 );
+        for ( GeneSet gs2 : this.geneSets.values() ) {
 
             if ( toSave.equals( gs2 ) ) continue;
 
-            Collection<Gene> genes2 = gs2.getGenes();
-
-            if ( genes1.size() != genes2.size() ) {
+            if ( genes1.size() != gs2.getGenes().size()
+                    || !Arrays.equals( bits1, m.getGeneSetGenes( gs2.getTerm() ) ) ) {
                 gs2.clearRedundancy( toSave );
                 continue;
             } // not identical.
 
-            for ( Gene g1 : genes1 ) {
-                if ( !genes2.contains( g1 ) ) {
-                    gs2.clearRedundancy( toSave );
-                    continue sets;
-                } // not redundant.
-            }
-
             // If we get here, it means the groups are the same.
             toSave.addRedundantGroup( gs2 );
             gs2.addRedundantGroup( toSave );
@@ -1611,6 +1661,7 @@ public class GeneAnnotations {
             }
             clone.geneSetTerms.addUserDefinedTerm( newSet.getTerm() );
             clone.geneSets.put( newSet.getTerm(), newSet );
+            clone.membership = null;
             if ( clone.multifunctionality != null ) clone.multifunctionality.setStale( true );
         }
     }
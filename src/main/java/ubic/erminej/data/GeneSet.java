@@ -221,11 +221,12 @@ public class GeneSet {
     }
 
     /**
-     * FIXME this should return only the *active* Elements? - those which have Scores.
+     * FIXME this should return only the *active* Elements? - those which have Scores. Synchronized as the set is
+     * filled in the first time it is needed, possibly while gene sets are being scored in parallel.
      *
      * @return a {@link java.util.Set} object.
      */
-    public Set<Element> getProbes() {
+    public synchronized Set<Element> getProbes() {
         if ( this.elements.isEmpty() ) {
             for ( Gene g : genes ) {
                 elements.addAll( g.getProbes() );
@@ -20,10 +20,12 @@ package ubic.erminej.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
@@ -32,7 +34,6 @@ import org.apache.commons.logging.LogFactory;
 
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.FastRowAccessDoubleMatrix;
-import ubic.basecode.io.reader.DoubleMatrixReader;
 import ubic.basecode.util.StatusStderr;
 import ubic.basecode.util.StatusViewer;
 import ubic.erminej.Settings;
@@ -278,21 +279,19 @@ public class GeneSetDetails {
             }
             SettingsHolder s = getSettingsToUse();
 
-            DoubleMatrixReader matrixReader = new DoubleMatrixReader();
-
             /*
              * The -2 is because the read method counts from index 0, not counting the label column. So the second
-             * column of the file is index 0 as far as read() is concerned.
+             * column of the file is index 0 as far as read() is concerned. Only the rows for this gene set are read.
              */
-            DoubleMatrix<String, String> omatrix = matrixReader
-                    .read( filename, probeNames.keySet(), s.getDataCol() - 2 );
-
-            this.dataMatrix = new FastRowAccessDoubleMatrix<>( omatrix.asArray() );
-            dataMatrix.setColumnNames( omatrix.getColNames() );
-            int i = 0;
-            for ( String r : omatrix.getRowNames() ) {
-                dataMatrix.setRowName( probeNames.get( r ), i );
-                i++;
+            List<String> rowNames = new ArrayList<>();
+            List<String> columnNames = new ArrayList<>();
+            double[][] values = DataIOUtils.read( filename, s.getDataCol() - 2, probeNames.keySet(), rowNames,
+                    columnNames );
+
+            this.dataMatrix = new FastRowAccessDoubleMatrix<>( values );
+            dataMatrix.setColumnNames( columnNames );
+            for ( int i = 0; i < rowNames.size(); i++ ) {
+                dataMatrix.setRowName( probeNames.get( rowNames.get( i ) ), i );
             }
 
         } catch ( IOException e ) {
@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -88,6 +87,26 @@ public class GeneSetMapTools {
      */
     public static void ignoreSimilar( double fractionSameThreshold, GeneAnnotations ga, StatusViewer messenger,
             int maxClassSize, int minClassSize, double bigClassPenalty ) {
+        ignoreSimilar( fractionSameThreshold, ga, messenger, maxClassSize, minClassSize, bigClassPenalty,
+                new SplittableRandomSource() );
+    }
+
+    /**
+     * As {@link #ignoreSimilar(double, GeneAnnotations, StatusViewer, int, int, double)}, but the order in which gene
+     * sets are considered is randomized using the given source, so the outcome can be reproduced.
+     *
+     * @param fractionSameThreshold A value between 0 and 1, indicating how similar a class must be before it gets
+     *        ditched.
+     * @param ga a {@link ubic.erminej.data.GeneAnnotations} object.
+     * @param messenger For updating a log.
+     * @param maxClassSize Large class considered. (that doesn't mean they are removed)
+     * @param minClassSize Smallest class considered. (that doesn't mean they are removed)
+     * @param bigClassPenalty A value greater or equal to one, indicating the cost of retaining a larger class in favor
+     *        of a smaller one.
+     * @param random a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public static void ignoreSimilar( double fractionSameThreshold, GeneAnnotations ga, StatusViewer messenger,
+            int maxClassSize, int minClassSize, double bigClassPenalty, RandomSource random ) {
 
         Map<GeneSetTerm, Collection<GeneSetTerm>> classesToSimilarMap = new LinkedHashMap<>();
         Collection<GeneSetTerm> seenit = new HashSet<>();
@@ -101,14 +120,18 @@ public class GeneSetMapTools {
         // iterate over all the classes, starting from the smallest one.
         // List sortedList = ga.sortGeneSetsBySize();
         List<GeneSetTerm> sortedList = new ArrayList<>( ga.getGeneSetTerms() );
-        Collections.shuffle( sortedList );
+        Collections.sort( sortedList ); // a fixed starting order, so the shuffle depends only on the random source
+        shuffle( sortedList, random );
+
+        // nothing is deleted until the end, so the membership stays valid.
+        GeneSetMembership membership = ga.getGeneSetMembership();
 
         // OUTER - compare all classes to each other.
 
         for ( GeneSetTerm queryClassId : sortedList ) {
-            Collection<Gene> queryClassMembers = ga.getGeneSetGenes( queryClassId );
+            long[] queryClassMembers = membership.getGeneSetGenes( queryClassId );
 
-            int querySize = queryClassMembers.size();
+            int querySize = ga.getGeneSetGenes( queryClassId ).size();
 
             if ( seenit.contains( queryClassId ) || querySize > maxClassSize || querySize < minClassSize ) {
                 continue;
@@ -124,19 +147,17 @@ public class GeneSetMapTools {
                     continue;
                 }
 
-                Collection<Gene> targetClass = ga.getGeneSetGenes( targetClassId );
-
-                int targetSize = targetClass.size();
+                int targetSize = ga.getGeneSetGenes( targetClassId ).size();
                 if ( targetSize < querySize || targetSize > maxClassSize || targetSize < minClassSize ) {
                     continue;
                 }
 
                 double sizeScore;
 
-                if ( areSimilarClasses( targetClass, queryClassMembers, fractionSameThreshold ) ) {
+                if ( areSimilarClasses( membership.getGeneSetGenes( targetClassId ), targetSize, queryClassMembers,
+                        querySize, fractionSameThreshold ) ) {
 
-                    sizeScore = ( ( double ) targetClass.size() / ( double ) queryClassMembers.size() )
-                            / bigClassPenalty;
+                    sizeScore = ( ( double ) targetSize / ( double ) querySize ) / bigClassPenalty;
 
                     if ( sizeScore < 1.0 ) { // delete the larget class.
                         deleteUs.add( targetClassId );
@@ -235,47 +256,37 @@ public class GeneSetMapTools {
     }
 
     /**
-     * Helper function for ignoreSimilar.
+     * Fisher-Yates shuffle, in place.
+     *
+     * @param list
+     * @param random
      */
-    private static boolean areSimilarClasses( Collection<Gene> biggerClass, Collection<Gene> smallerClass,
-            double fractionSameThreshold ) {
-
-        if ( biggerClass.size() < smallerClass.size() ) {
-            throw new IllegalArgumentException( "Invalid sizes" );
+    private static <T> void shuffle( List<T> list, RandomSource random ) {
+        for ( int i = list.size() - 1; i > 0; i-- ) {
+            Collections.swap( list, i, random.nextInt( i + 1 ) );
         }
+    }
 
-        /*
-         * Threshold of how many items from the smaller class must NOT be in the bigger class, before we consider the
-         * classes different.
-         */
-        int notInThresh = ( int ) Math.ceil( fractionSameThreshold * smallerClass.size() );
-
-        int notin = 0;
-
-        int overlap = 0;
-        for ( Iterator<Gene> iter = smallerClass.iterator(); iter.hasNext(); ) {
+    /**
+     * Helper function for ignoreSimilar.
+     *
+     * @param biggerClass members, as a bitset
+     * @param biggerSize
+     * @param smallerClass members, as a bitset
+     * @param smallerSize
+     * @param fractionSameThreshold
+     */
+    private static boolean areSimilarClasses( long[] biggerClass, int biggerSize, long[] smallerClass,
+            int smallerSize, double fractionSameThreshold ) {
 
-            Gene gene = iter.next();
-            if ( !biggerClass.contains( gene ) ) {
-                notin++;
-            } else {
-                overlap++;
-            }
-            if ( notin > notInThresh ) {
-                // return false;
-            }
+        if ( biggerSize < smallerSize ) {
+            throw new IllegalArgumentException( "Invalid sizes" );
         }
 
-        if ( ( double ) overlap / ( double ) smallerClass.size() > fractionSameThreshold ) {
-            // log.warn( "Small class of size " + smallerClass.size()
-            // + " too much contained (overlap = " + overlap
-            // + ") in large class of size " + biggerClass.size() );
-            return true;
-        }
+        int overlap = GeneSetMembership.intersectionSize( biggerClass, smallerClass );
 
         /* return true is the count is high enough */
-        // return true;
-        return false;
+        return ( double ) overlap / ( double ) smallerSize > fractionSameThreshold;
     }
 
     /**
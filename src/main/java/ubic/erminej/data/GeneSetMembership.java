@@ -0,0 +1,314 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dense integer ids for the genes and elements of a {@link GeneAnnotations}, and the membership of each gene set as a
+ * bitset over those ids. Overlaps between sets, or between a set and a hit list, are then counted with
+ * <code>Long.bitCount</code> instead of a hash lookup per gene. The bitsets are <code>long[]</code>s in which bit
+ * <code>i</code> of word <code>i / 64</code> is set for member <code>i</code>; trailing empty words are left off, so
+ * they can be of different lengths.
+ * <p>
+ * This is a snapshot: it is not updated if the genes or sets change; get a new one from
+ * {@link GeneAnnotations#getGeneSetMembership()}. The arrays returned must not be modified.
+ *
+ * @version $Id$
+ */
+public class GeneSetMembership {
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * <p>
+     * cardinality.
+     * </p>
+     *
+     * @param bits a bitset
+     * @return the number of bits set
+     */
+    public static int cardinality( long[] bits ) {
+        int c = 0;
+        for ( long w : bits ) {
+            c += Long.bitCount( w );
+        }
+        return c;
+    }
+
+    /**
+     * <p>
+     * contains.
+     * </p>
+     *
+     * @param bits a bitset
+     * @param id a int.
+     * @return true if the bit for the id is set
+     */
+    public static boolean contains( long[] bits, int id ) {
+        if ( id < 0 ) return false;
+        int w = id >>> 6;
+        return w < bits.length && ( bits[w] & ( 1L << id ) ) != 0;
+    }
+
+    /**
+     * <p>
+     * intersectionSize.
+     * </p>
+     *
+     * @param a a bitset
+     * @param b a bitset
+     * @return the number of ids in both
+     */
+    public static int intersectionSize( long[] a, long[] b ) {
+        int n = Math.min( a.length, b.length );
+        int c = 0;
+        for ( int i = 0; i < n; i++ ) {
+            c += Long.bitCount( a[i] & b[i] );
+        }
+        return c;
+    }
+
+    /**
+     * For iterating over the members: <code>for ( int i = nextSetBit( bits, 0 ); i &gt;= 0; i = nextSetBit( bits,
+     * i + 1 ) )</code>
+     *
+     * @param bits a bitset
+     * @param fromIndex where to start looking
+     * @return the first id at or after fromIndex that is set, or -1 if there is none
+     */
+    public static int nextSetBit( long[] bits, int fromIndex ) {
+        if ( fromIndex < 0 ) throw new IllegalArgumentException( "fromIndex < 0: " + fromIndex );
+        int w = fromIndex >>> 6;
+        if ( w >= bits.length ) return -1;
+        long word = bits[w] & ( -1L << fromIndex );
+        while ( true ) {
+            if ( word != 0 ) return ( w << 6 ) + Long.numberOfTrailingZeros( word );
+            if ( ++w == bits.length ) return -1;
+            word = bits[w];
+        }
+    }
+
+    private static void set( long[] bits, int id ) {
+        bits[id >>> 6] |= 1L << id;
+    }
+
+    private static long[] trim( long[] bits ) {
+        int n = bits.length;
+        while ( n > 0 && bits[n - 1] == 0L ) {
+            n--;
+        }
+        if ( n == 0 ) return EMPTY;
+        return n == bits.length ? bits : Arrays.copyOf( bits, n );
+    }
+
+    private final Map<Gene, Integer> geneIds = new HashMap<>();
+
+    private final Gene[] genes;
+
+    private final Map<Element, Integer> elementIds = new HashMap<>();
+
+    private final Element[] elements;
+
+    private final Map<GeneSetTerm, long[]> geneSetGenes = new HashMap<>();
+
+    private final Map<GeneSetTerm, long[]> geneSetElements = new HashMap<>();
+
+    /**
+     * Genes are numbered in the order given, followed by any gene only found in a set; elements likewise.
+     *
+     * @param allGenes
+     * @param geneSets
+     */
+    GeneSetMembership( Collection<Gene> allGenes, Collection<GeneSet> geneSets ) {
+        for ( Gene g : allGenes ) {
+            addGene( g );
+        }
+        for ( GeneSet gs : geneSets ) {
+            for ( Gene g : gs.getGenes() ) {
+                addGene( g );
+            }
+            for ( Element e : gs.getProbes() ) {
+                addElement( e );
+            }
+        }
+
+        this.genes = new Gene[geneIds.size()];
+        for ( Gene g : geneIds.keySet() ) {
+            genes[geneIds.get( g )] = g;
+        }
+        this.elements = new Element[elementIds.size()];
+        for ( Element e : elementIds.keySet() ) {
+            elements[elementIds.get( e )] = e;
+        }
+
+        for ( GeneSet gs : geneSets ) {
+            geneSetGenes.put( gs.getTerm(), toGeneBits( gs.getGenes() ) );
+            geneSetElements.put( gs.getTerm(), toElementBits( gs.getProbes() ) );
+        }
+    }
+
+    /**
+     * <p>
+     * getElement.
+     * </p>
+     *
+     * @param id a int.
+     * @return a {@link ubic.erminej.data.Element} object.
+     */
+    public Element getElement( int id ) {
+        return elements[id];
+    }
+
+    /**
+     * <p>
+     * getElementId.
+     * </p>
+     *
+     * @param e a {@link ubic.erminej.data.Element} object.
+     * @return the id, or -1 if the element is not known.
+     */
+    public int getElementId( Element e ) {
+        Integer id = elementIds.get( e );
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * <p>
+     * getGene.
+     * </p>
+     *
+     * @param id a int.
+     * @return a {@link ubic.erminej.data.Gene} object.
+     */
+    public Gene getGene( int id ) {
+        return genes[id];
+    }
+
+    /**
+     * <p>
+     * getGeneId.
+     * </p>
+     *
+     * @param g a {@link ubic.erminej.data.Gene} object.
+     * @return the id, or -1 if the gene is not known.
+     */
+    public int getGeneId( Gene g ) {
+        Integer id = geneIds.get( g );
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * <p>
+     * getGeneSetElements.
+     * </p>
+     *
+     * @param term a {@link ubic.erminej.data.GeneSetTerm} object.
+     * @return the elements of the set as a bitset; empty if the set is not known. Do not modify.
+     */
+    public long[] getGeneSetElements( GeneSetTerm term ) {
+        long[] bits = geneSetElements.get( term );
+        return bits == null ? EMPTY : bits;
+    }
+
+    /**
+     * <p>
+     * getGeneSetGenes.
+     * </p>
+     *
+     * @param term a {@link ubic.erminej.data.GeneSetTerm} object.
+     * @return the genes of the set as a bitset; empty if the set is not known. Do not modify.
+     */
+    public long[] getGeneSetGenes( GeneSetTerm term ) {
+        long[] bits = geneSetGenes.get( term );
+        return bits == null ? EMPTY : bits;
+    }
+
+    /**
+     * <p>
+     * numElements.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int numElements() {
+        return elements.length;
+    }
+
+    /**
+     * <p>
+     * numGenes.
+     * </p>
+     *
+     * @return a int.
+     */
+    public int numGenes() {
+        return genes.length;
+    }
+
+    /**
+     * <p>
+     * toElementBits.
+     * </p>
+     *
+     * @param es a {@link java.util.Collection} object.
+     * @return the elements as a bitset; elements that are not known are left out.
+     */
+    public long[] toElementBits( Collection<Element> es ) {
+        long[] bits = new long[( elements.length + 63 ) >>> 6];
+        for ( Element e : es ) {
+            Integer id = elementIds.get( e );
+            if ( id != null ) set( bits, id );
+        }
+        return trim( bits );
+    }
+
+    /**
+     * <p>
+     * toGeneBits.
+     * </p>
+     *
+     * @param gs a {@link java.util.Collection} object.
+     * @return the genes as a bitset; genes that are not known are left out.
+     */
+    public long[] toGeneBits( Collection<Gene> gs ) {
+        long[] bits = new long[( genes.length + 63 ) >>> 6];
+        for ( Gene g : gs ) {
+            Integer id = geneIds.get( g );
+            if ( id != null ) set( bits, id );
+        }
+        return trim( bits );
+    }
+
+    private void addElement( Element e ) {
+        if ( !elementIds.containsKey( e ) ) elementIds.put( e, elementIds.size() );
+    }
+
+    private void addGene( Gene g ) {
+        if ( geneIds.containsKey( g ) ) return;
+        geneIds.put( g, geneIds.size() );
+        for ( Element e : g.getProbes() ) {
+            addElement( e );
+        }
+    }
+
+}
@@ -18,26 +18,23 @@
  */
 package ubic.erminej.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import cern.colt.list.DoubleArrayList;
-import cern.colt.list.IntArrayList;
-import cern.colt.map.OpenIntObjectHashMap;
-import cern.colt.matrix.DoubleMatrix1D;
-import cern.colt.matrix.impl.DenseDoubleMatrix1D;
-import cern.jet.stat.Descriptive;
-import ubic.basecode.math.Stats;
 import ubic.basecode.math.distribution.NormalProbabilityComputer;
-import ubic.basecode.math.distribution.ProbabilityComputer;
 
 /**
  * Stores distributions for geneSets ( a series of histograms). For generic histograms, use hep.aida.
+ * <p>
+ * The histograms for all the gene set sizes are kept in one contiguous block, one row of numBins per size. While the
+ * histogram is being filled the rows hold integer counts; {@link #tocdf()} replaces them with the cumulative
+ * distributions, so lookups are plain array accesses.
  *
  * @author Shahmil Merchant, Paul Pavlidis
  */
@@ -46,18 +43,60 @@ public class Histogram {
     private static final double BINSPERUNIT = 5000;
     private static final int MINBINS = 1000;
 
+    /**
+     * Identifies the binary format written by {@link #write(DataOutput)}; change if the format changes.
+     */
+    private static final int SERIALIZATION_VERSION = 3;
+
     /** Constant <code>log</code> */
     protected static final Log log = LogFactory.getLog( Histogram.class );
     private int minimumGeneSetSize = 0;
+    private int numGeneSetSizes = 0;
     private double binSize = 0.002;
     private double minimum = 0.0;
     private double maximum = 5.0;
     private int numBins = 0;
     private int numItemsPerHistogram = 0;
     private double minPval; // the smallest possible pvalue: used when a requested score is out of the top of the range.
-    private Map<Integer, NormalProbabilityComputer> analyticDistributions;
 
-    private OpenIntObjectHashMap empiricalDistributions;
+    /**
+     * Counts, row-major by gene set size; null once converted to a CDF.
+     */
+    private int[] counts;
+
+    /**
+     * Upper-tail cumulative distributions of the sizes that have counts, row-major in order of size; null until
+     * converted. Sizes without counts take no space, as usually only a fraction of the sizes are sampled.
+     */
+    private double[] cdf;
+
+    /**
+     * For each size, its row in the cdf; -1 if it has no empirical distribution. Filled in by tocdf.
+     */
+    private int[] cdfRow;
+
+    /**
+     * For each size, whether it has an empirical distribution (i.e., any counts).
+     */
+    private boolean[] hasEmpirical;
+
+    /**
+     * For each size, the analytic distribution, if any.
+     */
+    private NormalProbabilityComputer[] analyticDistributions;
+
+    /**
+     * Mean, variance and skewness for each of the analyticDistributions. The skewness is used for an Edgeworth
+     * correction to the normal; it is zero for plain normal distributions.
+     */
+    private double[][] analyticParameters;
+
+    /**
+     * For each size, the row to use for it: itself or the nearest smaller size that has a distribution; -1 if none.
+     * Filled in by tocdf.
+     */
+    private int[] usableRow;
+
     private boolean isCDF = false;
 
     /**
@@ -65,16 +104,11 @@ public class Histogram {
      * Constructor for Histogram.
      * </p>
      *
-     * @param minGeneSetSize a int.
+     * @param numGeneSetSizes a int.
      * @param minGeneSetSize a int.
      * @param numRuns a int.
      * @param max a double.
-     * @param minGeneSetSize a int.
-     * @param minGeneSetSize a int.
-     * @param minGeneSetSize a int.
-     * @param minGeneSetSize
      * @param min a double.
-     * @param numGeneSetSizes a int.
      */
     public Histogram( int numGeneSetSizes, int minGeneSetSize, int numRuns, double max, double min ) {
 
@@ -91,15 +125,91 @@ public class Histogram {
 
         this.binSize = ( max - min ) / BINSPERUNIT;
         this.minimumGeneSetSize = minGeneSetSize;
+        this.numGeneSetSizes = numGeneSetSizes;
         setNumRuns( numRuns );
         calcNumOfBins();
-        analyticDistributions = new HashMap<>();
-        empiricalDistributions = new OpenIntObjectHashMap();
+        allocate();
+        this.counts = new int[numGeneSetSizes * numBins];
+    }
+
+    /**
+     * Used when reading a saved histogram.
+     */
+    private Histogram() {
+    }
+
+    /**
+     * Read a histogram saved with {@link #write(DataOutput)}.
+     *
+     * @param in a {@link java.io.DataInput} object.
+     * @return a {@link ubic.erminej.data.Histogram} object.
+     * @throws java.io.IOException if the data could not be read or are not a saved histogram.
+     */
+    public static Histogram read( DataInput in ) throws IOException {
+        int version = in.readInt();
+        if ( version != SERIALIZATION_VERSION ) {
+            throw new IOException( "Unsupported histogram format version: " + version );
+        }
+
+        Histogram h = new Histogram();
+        h.minimumGeneSetSize = in.readInt();
+        h.numGeneSetSizes = in.readInt();
+        h.binSize = in.readDouble();
+        h.minimum = in.readDouble();
+        h.maximum = in.readDouble();
+        h.numBins = in.readInt();
+        h.setNumRuns( in.readInt() );
+        boolean isCDF = in.readBoolean();
+        h.allocate();
+
+        if ( isCDF ) {
+            h.cdfRow = new int[h.numGeneSetSizes];
+            h.cdf = new double[0];
+        } else {
+            h.counts = new int[h.numGeneSetSizes * h.numBins];
+        }
+
+        int numCdfRows = 0;
+        for ( int row = 0; row < h.numGeneSetSizes; row++ ) {
+            h.hasEmpirical[row] = in.readBoolean();
+            if ( isCDF ) h.cdfRow[row] = h.hasEmpirical[row] ? numCdfRows : -1;
+            if ( !h.hasEmpirical[row] ) continue;
+
+            if ( !isCDF ) {
+                int offset = row * h.numBins;
+                for ( int j = 0; j < h.numBins; j++ ) {
+                    h.counts[offset + j] = in.readInt();
+                }
+                continue;
+            }
+
+            // the number of rows is not known in advance, so grow as needed.
+            if ( ( numCdfRows + 1 ) * h.numBins > h.cdf.length ) {
+                h.cdf = Arrays.copyOf( h.cdf, Math.max( 1, 2 * numCdfRows ) * h.numBins );
+            }
+            int offset = numCdfRows++ * h.numBins;
+            for ( int j = 0; j < h.numBins; j++ ) {
+                h.cdf[offset + j] = in.readDouble();
+            }
+        }
+        if ( isCDF && h.cdf.length > numCdfRows * h.numBins ) {
+            h.cdf = Arrays.copyOf( h.cdf, numCdfRows * h.numBins );
+        }
 
-        for ( int i = 0; i < numGeneSetSizes; i++ ) {
-            int size = minGeneSetSize + i;
-            empiricalDistributions.put( size, new DenseDoubleMatrix1D( numBins ) );
+        int numAnalytic = in.readInt();
+        for ( int i = 0; i < numAnalytic; i++ ) {
+            int size = in.readInt();
+            double mean = in.readDouble();
+            double variance = in.readDouble();
+            double skewness = in.readDouble();
+            h.addEdgeworthProbabilityComputer( size, mean, variance, skewness );
         }
+
+        if ( isCDF ) {
+            h.isCDF = true;
+            h.computeUsableRows();
+        }
+        return h;
     }
 
     /**
@@ -112,7 +222,24 @@ public class Histogram {
      * @param variance a double.
      */
     public void addExactNormalProbabilityComputer( int i, double mean, double variance ) {
-        analyticDistributions.put( new Integer( i ), new NormalProbabilityComputer( mean, variance ) );
+        addEdgeworthProbabilityComputer( i, mean, variance, 0.0 );
+    }
+
+    /**
+     * Like {@link #addExactNormalProbabilityComputer(int, double, double)}, but the normal probabilities are corrected
+     * for skewness using the first term of the Edgeworth expansion. This is more accurate in the tails when the
+     * distribution is not quite normal.
+     *
+     * @param i a int.
+     * @param mean a double.
+     * @param variance a double.
+     * @param skewness a double; if zero, this is the same as the normal.
+     */
+    public void addEdgeworthProbabilityComputer( int i, double mean, double variance, double skewness ) {
+        int row = rowFor( i );
+        analyticDistributions[row] = new NormalProbabilityComputer( mean, variance );
+        analyticParameters[row] = new double[] { mean, variance, skewness };
+        if ( isCDF ) computeUsableRows();
     }
 
     /**
@@ -202,12 +329,24 @@ public class Histogram {
      * </p>
      *
      * @param geneSetSize a int.
-     * @return an array of double.
+     * @return an array of double; the counts, or the cumulative distribution if this has been converted.
      */
     public double[] getHistogram( int geneSetSize ) {
-        int usedGeneSetSize = findNearestUsableHistogram( geneSetSize );
-        // return M.viewRow( row ).toArray();
-        return ( ( DoubleMatrix1D ) empiricalDistributions.get( usedGeneSetSize ) ).toArray();
+        int row = Math.min( geneSetSize - minimumGeneSetSize, numGeneSetSizes - 1 );
+        while ( row >= 0 && !hasEmpirical( row ) ) {
+            row--;
+        }
+        if ( row < 0 ) {
+            throw new IllegalArgumentException( "No distribution or near distribution found for gene set size "
+                    + geneSetSize );
+        }
+
+        double[] result = new double[numBins];
+        int offset = isCDF ? cdfRow[row] * numBins : row * numBins;
+        for ( int j = 0; j < numBins; j++ ) {
+            result[j] = isCDF ? cdf[offset + j] : counts[offset + j];
+        }
+        return result;
     }
 
     /**
@@ -237,11 +376,14 @@ public class Histogram {
      * getNumHistograms.
      * </p>
      *
-     * @return a int.
+     * @return the number of gene set sizes that have an empirical distribution.
      */
     public int getNumHistograms() {
-        // return M.rows();
-        return empiricalDistributions.size();
+        int n = 0;
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            if ( hasEmpirical( row ) ) n++;
+        }
+        return n;
     }
 
     /**
@@ -266,25 +408,11 @@ public class Histogram {
      * @param classSize a int.
      */
     public double getProbability( int classSize, int binnum, boolean upperTail ) {
-
-        if ( !empiricalDistributions.containsKey( classSize ) ) {
+        int row = classSize - minimumGeneSetSize;
+        if ( !isCDF || row < 0 || row >= numGeneSetSizes || !hasEmpirical[row] ) {
             throw new IllegalArgumentException( "There is no empirical distribution for class size " + classSize );
         }
-
-        double pval = ( ( DoubleMatrix1D ) empiricalDistributions.get( classSize ) ).getQuick( binnum );
-        if ( !upperTail ) {
-            pval = 1.0 - pval;
-        }
-
-        if ( pval < 0.0 - SMALL || pval > 1.0 + SMALL ) { // sanity check.
-            throw new IllegalStateException( "Pvalue was " + pval );
-        }
-
-        if ( pval < SMALL ) {
-            return SMALL;
-        }
-
-        return pval;
+        return probability( row, binnum, upperTail );
     }
 
     /**
@@ -315,11 +443,16 @@ public class Histogram {
                     "Distributions must be converted to CDFs first before getting probabilities." );
         }
 
-        int usedGeneSetSize = findNearestUsableHistogram( geneSetSize );
+        int index = Math.min( geneSetSize - minimumGeneSetSize, numGeneSetSizes - 1 );
+        int row = index < 0 ? -1 : usableRow[index];
+        if ( row < 0 ) {
+            throw new IllegalArgumentException( "No distribution or near distribution found for gene set size "
+                    + geneSetSize );
+        }
 
         /* use a analytical distribution if we have one for this set size */
-        if ( useExactPvalue( usedGeneSetSize ) ) {
-            return this.getExactProbability( usedGeneSetSize, rawscore, upperTail );
+        if ( analyticDistributions[row] != null ) {
+            return this.getExactProbability( row, rawscore, upperTail );
         }
 
         /* use the empirical distribution */
@@ -330,7 +463,43 @@ public class Histogram {
         if ( binnum > numBins - 1 ) {
             binnum = numBins - 1;
         }
-        return this.getProbability( usedGeneSetSize, binnum, upperTail );
+        return this.probability( row, binnum, upperTail );
+    }
+
+    /**
+     * Add the counts (and any analytic distributions) of another histogram to this one. This is used to combine partial
+     * histograms that were filled independently, e.g. in separate threads. Both histograms must have the same range
+     * and binning, the sizes of the other must be within the sizes of this one, and neither can have been converted to
+     * a CDF yet.
+     *
+     * @param other a {@link ubic.erminej.data.Histogram} object.
+     */
+    public void merge( Histogram other ) {
+        if ( this.isCDF || other.isCDF ) {
+            throw new IllegalStateException( "Histograms cannot be merged after conversion to CDFs" );
+        }
+
+        if ( other.numBins != numBins || other.minimum != minimum || other.maximum != maximum ) {
+            throw new IllegalArgumentException( "Histograms must have the same range and binning to be merged" );
+        }
+
+        int rowOffset = other.minimumGeneSetSize - minimumGeneSetSize;
+        if ( rowOffset < 0 || rowOffset + other.numGeneSetSizes > numGeneSetSizes ) {
+            throw new IllegalArgumentException( "Histogram to merge has gene set sizes outside the range of this one" );
+        }
+
+        int offset = rowOffset * numBins;
+        for ( int j = 0; j < other.counts.length; j++ ) {
+            counts[offset + j] += other.counts[j];
+        }
+
+        for ( int row = 0; row < other.numGeneSetSizes; row++ ) {
+            hasEmpirical[rowOffset + row] |= other.hasEmpirical[row];
+            if ( other.analyticDistributions[row] != null ) {
+                analyticDistributions[rowOffset + row] = other.analyticDistributions[row];
+                analyticParameters[rowOffset + row] = other.analyticParameters[row];
+            }
+        }
     }
 
     /**
@@ -349,12 +518,14 @@ public class Histogram {
         }
         s.write( "\n" );
 
-        for ( int i = 0; i < empiricalDistributions.size(); i++ ) { // for each histogram (class size)
+        for ( int row = 0; row < numGeneSetSizes; row++ ) { // for each histogram (class size)
+            if ( !hasEmpirical( row ) ) continue;
             s.write( "row:" );
+            int offset = isCDF ? cdfRow[row] * numBins : row * numBins;
             for ( int j = 0; j < numBins; j += stepsize ) { // for each bin in
                 // this histogram.
-
-                System.out.print( "\t" + ( ( DoubleMatrix1D ) empiricalDistributions.get( i ) ).getQuick( j ) );
+                int k = offset + j;
+                s.write( "\t" + ( isCDF ? cdf[k] : counts[k] ) );
             }
             s.write( "\n" );
         }
@@ -376,27 +547,41 @@ public class Histogram {
     }
 
     /**
-     * Convert raw histograms to CDFs.
+     * Convert raw histograms to CDFs. Sizes without any counts are dropped, so lookups for them use the nearest smaller
+     * size, and they take no space in the CDFs. The counts are discarded.
      */
     public void tocdf() {
+        if ( isCDF ) return;
 
-        IntArrayList sizes = empiricalDistributions.keys();
+        cdfRow = new int[numGeneSetSizes];
+        int numCdfRows = 0;
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            cdfRow[row] = hasEmpirical[row] ? numCdfRows++ : -1;
+        }
 
-        for ( int i = 0; i < sizes.size(); i++ ) {
-            DenseDoubleMatrix1D pdf = ( DenseDoubleMatrix1D ) empiricalDistributions.get( sizes.get( i ) );
-            DoubleArrayList dal = new DoubleArrayList( pdf.toArray() );
+        cdf = new double[numCdfRows * numBins];
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            if ( !hasEmpirical[row] ) continue;
+            int offset = row * numBins;
+            int cdfOffset = cdfRow[row] * numBins;
 
-            if ( Descriptive.sum( dal ) == 0 ) {
-                empiricalDistributions.removeKey( sizes.get( i ) );
+            long total = 0;
+            for ( int j = 0; j < numBins; j++ ) {
+                total += counts[offset + j];
             }
 
-            DoubleArrayList cdf = Stats.cdf( dal );
-            for ( int j = 0; j < cdf.size(); j++ ) {
-                pdf.setQuick( j, cdf.getQuick( j ) );
+            // upper tail: the fraction of values in this bin or above.
+            long cumulative = 0;
+            for ( int j = numBins - 1; j >= 0; j-- ) {
+                cumulative += counts[offset + j];
+                cdf[cdfOffset + j] = ( double ) cumulative / total;
             }
         }
+        counts = null;
+
         log.debug( "Made cdf" );
         this.isCDF = true;
+        computeUsableRows();
     }
 
     /** {@inheritDoc} */
@@ -426,43 +611,146 @@ public class Histogram {
             log.debug( "Last bin exceeded! " + value );
             thebin = numBins - 1;
         }
-        DenseDoubleMatrix1D histRow = ( ( DenseDoubleMatrix1D ) empiricalDistributions.get( classSize ) );
-        histRow.setQuick( thebin, histRow.getQuick( thebin ) + 1 );
+        int row = rowFor( classSize );
+        counts[row * numBins + thebin]++;
+        hasEmpirical[row] = true;
+    }
+
+    /**
+     * Save the histogram in a compact binary form that can be read back with {@link #read(DataInput)}.
+     *
+     * @param out a {@link java.io.DataOutput} object.
+     * @throws java.io.IOException if any.
+     */
+    public void write( DataOutput out ) throws IOException {
+        out.writeInt( SERIALIZATION_VERSION );
+        out.writeInt( minimumGeneSetSize );
+        out.writeInt( numGeneSetSizes );
+        out.writeDouble( binSize );
+        out.writeDouble( minimum );
+        out.writeDouble( maximum );
+        out.writeInt( numBins );
+        out.writeInt( numItemsPerHistogram );
+        out.writeBoolean( isCDF );
+
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            out.writeBoolean( hasEmpirical[row] );
+            if ( !hasEmpirical[row] ) continue;
+            int offset = isCDF ? cdfRow[row] * numBins : row * numBins;
+            for ( int j = 0; j < numBins; j++ ) {
+                if ( isCDF ) {
+                    out.writeDouble( cdf[offset + j] );
+                } else {
+                    out.writeInt( counts[offset + j] );
+                }
+            }
+        }
+
+        int numAnalytic = 0;
+        for ( double[] p : analyticParameters ) {
+            if ( p != null ) numAnalytic++;
+        }
+        out.writeInt( numAnalytic );
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            double[] p = analyticParameters[row];
+            if ( p == null ) continue;
+            out.writeInt( row + minimumGeneSetSize );
+            out.writeDouble( p[0] );
+            out.writeDouble( p[1] );
+            out.writeDouble( p[2] );
+        }
     }
 
-    private int findNearestUsableHistogram( int geneSetSize ) {
-        int usedGeneSetSize = geneSetSize;
-        while ( !empiricalDistributions.containsKey( usedGeneSetSize ) ) {
-            usedGeneSetSize--;
-            if ( usedGeneSetSize < minimumGeneSetSize ) {
-                throw new IllegalArgumentException( "No distribution or near distribution found for gene set size "
-                        + geneSetSize );
+    /**
+     * Set up the per-size arrays.
+     */
+    private void allocate() {
+        hasEmpirical = new boolean[numGeneSetSizes];
+        analyticDistributions = new NormalProbabilityComputer[numGeneSetSizes];
+        analyticParameters = new double[numGeneSetSizes][];
+    }
+
+    /**
+     * Determine, for each size, which row serves it.
+     */
+    private void computeUsableRows() {
+        usableRow = new int[numGeneSetSizes];
+        int last = -1;
+        for ( int row = 0; row < numGeneSetSizes; row++ ) {
+            if ( hasEmpirical[row] || analyticDistributions[row] != null ) {
+                last = row;
             }
+            usableRow[row] = last;
         }
-        return usedGeneSetSize;
     }
 
     /**
+     * @param row
+     * @param rawScore
      * @param upperTail
-     * @param geneSetSize
-     * @param rawscore
      * @return
      */
-    private double getExactProbability( int geneSetSize, double rawScore, boolean upperTail ) {
-        ProbabilityComputer p = analyticDistributions.get( new Integer( geneSetSize ) );
-        if ( p == null ) {
-            throw new IllegalStateException( "Gene set size " + geneSetSize
-                    + " is not associated with an exact probability density." );
+    private double getExactProbability( int row, double rawScore, boolean upperTail ) {
+        double pval = analyticDistributions[row].probability( rawScore, upperTail );
+
+        double[] params = analyticParameters[row];
+        double skewness = params[2];
+        if ( skewness != 0.0 && params[1] > 0.0 ) {
+            /*
+             * Edgeworth: F(z) = Phi(z) - phi(z) * skewness / 6 * (z^2 - 1)
+             */
+            double z = ( rawScore - params[0] ) / Math.sqrt( params[1] );
+            double density = Math.exp( -0.5 * z * z ) / Math.sqrt( 2.0 * Math.PI );
+            double correction = density * skewness / 6.0 * ( z * z - 1.0 );
+            pval = upperTail ? pval + correction : pval - correction;
+            pval = Math.min( 1.0, pval );
         }
-        return Math.max( SMALL, p.probability( rawScore, upperTail ) );
+
+        return Math.max( SMALL, pval );
     }
 
-    private boolean useExactPvalue( int geneSetSize ) {
+    /**
+     * @param row
+     * @return true if the row has counts (or had, before conversion to a CDF).
+     */
+    private boolean hasEmpirical( int row ) {
+        return hasEmpirical[row];
+    }
+
+    /**
+     * @param row
+     * @param binnum
+     * @param upperTail
+     * @return
+     */
+    private double probability( int row, int binnum, boolean upperTail ) {
+        double pval = cdf[cdfRow[row] * numBins + binnum];
+        if ( !upperTail ) {
+            pval = 1.0 - pval;
+        }
+
+        if ( pval < 0.0 - SMALL || pval > 1.0 + SMALL ) { // sanity check.
+            throw new IllegalStateException( "Pvalue was " + pval );
+        }
+
+        if ( pval < SMALL ) {
+            return SMALL;
+        }
 
-        if ( analyticDistributions.containsKey( new Integer( geneSetSize ) ) ) {
-            return true;
+        return pval;
+    }
+
+    /**
+     * @param geneSetSize
+     * @return the row for the size
+     */
+    private int rowFor( int geneSetSize ) {
+        int row = geneSetSize - minimumGeneSetSize;
+        if ( row < 0 || row >= numGeneSetSizes ) {
+            throw new IllegalArgumentException( "Gene set size " + geneSetSize
+                    + " is outside the range of the histogram" );
         }
-        return false;
+        return row;
     }
 
 }
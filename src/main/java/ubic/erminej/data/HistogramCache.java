@@ -0,0 +1,303 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.erminej.SettingsHolder;
+
+/**
+ * Keeps null distributions on disk so that an analysis repeated with the same inputs does not have to resample again.
+ * Entries are identified by a fingerprint of everything the distribution depends on (see {@link KeyBuilder}); the
+ * least recently used entries are removed when the cache grows beyond its size limit. Problems reading or writing the
+ * cache are logged and otherwise ignored, so the worst case is that the distribution is recomputed.
+ *
+ * @version $Id$
+ */
+public class HistogramCache {
+
+    /**
+     * Builds a cache key by hashing the inputs a null distribution depends on. Callers should add everything that
+     * could change the result.
+     */
+    public static class KeyBuilder {
+
+        private final MessageDigest digest;
+
+        /**
+         * @param kind distinguishes different types of null distribution.
+         */
+        public KeyBuilder( String kind ) {
+            try {
+                digest = MessageDigest.getInstance( "SHA-256" );
+            } catch ( NoSuchAlgorithmException e ) {
+                throw new IllegalStateException( e );
+            }
+            add( kind );
+        }
+
+        /**
+         * @param values a array of double; the order matters.
+         * @return this
+         */
+        public KeyBuilder add( double[] values ) {
+            add( values.length );
+            for ( double v : values ) {
+                add( v );
+            }
+            return this;
+        }
+
+        /**
+         * @param value a double.
+         * @return this
+         */
+        public KeyBuilder add( double value ) {
+            return add( Double.doubleToLongBits( value ) );
+        }
+
+        /**
+         * @param value a long.
+         * @return this
+         */
+        public KeyBuilder add( long value ) {
+            for ( int i = 0; i < 8; i++ ) {
+                digest.update( ( byte ) ( value >>> ( 8 * i ) ) );
+            }
+            return this;
+        }
+
+        /**
+         * @param value a {@link java.lang.Object} object; null is allowed. Uses the string representation.
+         * @return this
+         */
+        public KeyBuilder add( Object value ) {
+            byte[] bytes = String.valueOf( value ).getBytes( StandardCharsets.UTF_8 );
+            add( bytes.length );
+            digest.update( bytes );
+            return this;
+        }
+
+        /**
+         * @return the key; the builder cannot be used after this.
+         */
+        public String build() {
+            StringBuilder buf = new StringBuilder();
+            for ( byte b : digest.digest() ) {
+                buf.append( String.format( "%02x", b ) );
+            }
+            return buf.toString();
+        }
+    }
+
+    /** Constant <code>CACHE_DIRECTORY_NAME="nullDistributions"</code> */
+    public static final String CACHE_DIRECTORY_NAME = "nullDistributions";
+
+    private static final String FILE_SUFFIX = ".hist.gz";
+
+    private static final Log log = LogFactory.getLog( HistogramCache.class );
+
+    /**
+     * Age after which a temporary file in a cache directory is assumed to be left over from a write that never
+     * finished.
+     */
+    private static final long STALE_TEMP_FILE_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Suffix of the temporary files written before being moved into place, here and by the other users of
+     * {@link #evict(File, String, long, File)}.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Remove the least recently used files with the given suffix from the directory until their total size is within
+     * the limit. Also used for the other files kept in the data directory between runs. Temporary files left behind by
+     * writes that never finished (e.g. after a crash) are removed once they are a day old; newer ones may still be in
+     * use.
+     *
+     * @param directory a {@link java.io.File} object.
+     * @param suffix only files with this suffix are considered.
+     * @param maxBytes a long.
+     * @param keep a file that is never removed, e.g. the one in use; may be null.
+     */
+    public static void evict( File directory, String suffix, long maxBytes, File keep ) {
+        File[] files = directory.listFiles();
+        if ( files == null ) return;
+
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+        long total = 0;
+        for ( File f : files ) {
+            if ( f.getName().endsWith( suffix ) ) {
+                total += f.length();
+            } else if ( f.getName().endsWith( TEMP_SUFFIX ) && f.lastModified() < staleBefore && f.delete() ) {
+                log.debug( "Removed unfinished file " + f.getName() );
+            }
+        }
+        if ( total <= maxBytes ) return;
+
+        Arrays.sort( files, new Comparator<File>() {
+            @Override
+            public int compare( File o1, File o2 ) {
+                return Long.compare( o1.lastModified(), o2.lastModified() );
+            }
+        } );
+
+        for ( File f : files ) {
+            if ( total <= maxBytes ) break;
+            if ( !f.getName().endsWith( suffix ) || f.equals( keep ) ) continue;
+            long length = f.length();
+            if ( f.delete() ) {
+                total -= length;
+                log.debug( "Removed saved file " + f.getName() );
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Create a cache in the data directory, with the size limit from the settings.
+     * </p>
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @return a {@link ubic.erminej.data.HistogramCache} object; if the size limit is zero, a cache that stores
+     *         nothing.
+     */
+    public static HistogramCache fromSettings( SettingsHolder settings ) {
+        return new HistogramCache( new File( settings.getDataDirectory(), CACHE_DIRECTORY_NAME ),
+                settings.getNullDistributionCacheMB() * 1024L * 1024L );
+    }
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    /**
+     * <p>
+     * Constructor for HistogramCache.
+     * </p>
+     *
+     * @param directory where the entries are kept; created when needed.
+     * @param maxBytes size limit; zero or less disables the cache.
+     */
+    public HistogramCache( File directory, long maxBytes ) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * <p>
+     * get.
+     * </p>
+     *
+     * @param key from a {@link KeyBuilder}
+     * @return the stored histogram, or null if there isn't one.
+     */
+    public synchronized Histogram get( String key ) {
+        if ( !isEnabled() ) return null;
+        File f = fileFor( key );
+        if ( !f.canRead() ) return null;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream( new GZIPInputStream( new FileInputStream( f ) ) ) )) {
+            Histogram h = Histogram.read( in );
+            f.setLastModified( System.currentTimeMillis() ); // mark as recently used.
+            log.info( "Using saved null distribution " + f.getName() );
+            return h;
+        } catch ( IOException e ) {
+            log.warn( "Could not read saved null distribution " + f + ", discarding it: " + e.getMessage() );
+            f.delete();
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * isEnabled.
+     * </p>
+     *
+     * @return a boolean.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Store a histogram, then remove the least recently used entries if the cache is over its size limit.
+     *
+     * @param key from a {@link KeyBuilder}
+     * @param h a {@link ubic.erminej.data.Histogram} object.
+     */
+    public synchronized void put( String key, Histogram h ) {
+        if ( !isEnabled() ) return;
+
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            log.warn( "Could not create directory for saved null distributions: " + directory );
+            return;
+        }
+
+        File tmp = null;
+        try {
+            // unique, so another process saving the same key does not write into the same partial file.
+            tmp = File.createTempFile( "hist", TEMP_SUFFIX, directory );
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( tmp ) ) ) )) {
+                h.write( out );
+            }
+            Files.move( tmp.toPath(), fileFor( key ).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        } catch ( IOException e ) {
+            log.warn( "Could not save null distribution: " + e.getMessage() );
+            return;
+        } finally {
+            if ( tmp != null && tmp.exists() && !tmp.delete() ) {
+                log.warn( "Could not delete " + tmp );
+            }
+        }
+
+        evict( directory, FILE_SUFFIX, maxBytes, null );
+    }
+
+    /**
+     * @param key
+     * @return
+     */
+    private File fileFor( String key ) {
+        return new File( directory, key + FILE_SUFFIX );
+    }
+
+}
@@ -20,7 +20,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -284,33 +283,12 @@ public class Multifunctionality {
         for ( Gene gene : genesInSet ) {
             if ( rawGeneMultifunctionalityRanks.containsKey( gene ) ) {
                 inGroup++;
-            }
-        }
-
-        // int numGenes = USE_UNANNOTATED_GENES ? rawGeneMultifunctionalityRanks.size() : genesWithGoTerms.size();
-        int numGenes = rawGeneMultifunctionalityRanks.size();
-
-        int outGroup = numGenes - inGroup;
-
-        if ( outGroup <= 0 ) return 0.0;
-
-        double t1 = inGroup * ( inGroup + 1.0 ) / 2.0;
-        double t2 = inGroup * outGroup;
-
-        for ( Gene gene : genesInSet ) {
-            if ( rawGeneMultifunctionalityRanks.containsKey( gene ) ) {
                 double rank = rawGeneMultifunctionalityRanks.get( gene ) + 1; // +1 cuz ranks are zero-based.
                 sumOfRanks += rank;
             }
         }
 
-        double t3 = sumOfRanks - t1;
-
-        double auc = Math.max( 0.0, 1.0 - t3 / t2 );
-
-        assert auc >= 0.0 && auc <= 1.0 : "AUC was " + auc;
-
-        return auc;
+        return auc( inGroup, sumOfRanks );
     }
 
     /**
@@ -565,6 +543,31 @@ public class Multifunctionality {
         this.stale.set( stale );
     }
 
+    /**
+     * @param inGroup how many of the genes are ranked
+     * @param sumOfRanks of those genes, 1-based
+     * @return the ROC AUC
+     */
+    private double auc( int inGroup, double sumOfRanks ) {
+        // int numGenes = USE_UNANNOTATED_GENES ? rawGeneMultifunctionalityRanks.size() : genesWithGoTerms.size();
+        int numGenes = rawGeneMultifunctionalityRanks.size();
+
+        int outGroup = numGenes - inGroup;
+
+        if ( outGroup <= 0 ) return 0.0;
+
+        double t1 = inGroup * ( inGroup + 1.0 ) / 2.0;
+        double t2 = inGroup * outGroup;
+
+        double t3 = sumOfRanks - t1;
+
+        double auc = Math.max( 0.0, 1.0 - t3 / t2 );
+
+        assert auc >= 0.0 && auc <= 1.0 : "AUC was " + auc;
+
+        return auc;
+    }
+
     /**
      * Populate the multifunctionality of each gene set. This is computed by looking at how the genes in the set compare
      * to the gene multifuncttionality ranking, using ROC.
@@ -578,6 +581,14 @@ public class Multifunctionality {
         int numGenes = rawGeneMultifunctionalityRanks.size();
         // int numGoGroups = geneAnnots.getGeneSetTerms().size();
 
+        // 1-based ranks by dense gene id, NaN for genes that are not ranked.
+        GeneSetMembership membership = geneAnnots.getGeneSetMembership();
+        double[] ranks = new double[membership.numGenes()];
+        for ( int i = 0; i < ranks.length; i++ ) {
+            Double r = rawGeneMultifunctionalityRanks.get( membership.getGene( i ) );
+            ranks[i] = r == null ? Double.NaN : r + 1;
+        }
+
         /*
          * For each go term, compute its AUC w.r.t. the multifunctionality ranking.. We work with the multifunctionality
          * ranks, rawGeneMultifunctionalityRanks
@@ -590,8 +601,8 @@ public class Multifunctionality {
                 continue;
             }
 
-            Set<Gene> genesInSet = geneAnnots.getGeneSetGenes( goset );
-            int inGroup = genesInSet.size();
+            long[] genesInSet = membership.getGeneSetGenes( goset );
+            int inGroup = geneAnnots.getGeneSetGenes( goset ).size();
             int outGroup = numGenes - inGroup;
 
             assert inGroup >= geneAnnots.getMinimumGeneSetSize();
@@ -605,8 +616,17 @@ public class Multifunctionality {
                 continue;
             }
 
-            double auc = enrichmentForMultifunctionality( genesInSet );
-            double aucp = enrichmentForMultifunctionalityPvalue( genesInSet );
+            List<Double> ranksOfGenesInSet = new ArrayList<>( inGroup );
+            double sumOfRanks = 0.0;
+            for ( int id = GeneSetMembership.nextSetBit( genesInSet, 0 ); id >= 0; id = GeneSetMembership.nextSetBit(
+                    genesInSet, id + 1 ) ) {
+                if ( Double.isNaN( ranks[id] ) ) continue;
+                ranksOfGenesInSet.add( ranks[id] );
+                sumOfRanks += ranks[id];
+            }
+
+            double auc = auc( ranksOfGenesInSet.size(), sumOfRanks );
+            double aucp = ROC.rocpval( genesWithGoTerms.size(), ranksOfGenesInSet );
             assert aucp >= 0.0 && aucp <= 1.0;
             goTermMultifunctionality.put( goset, auc );
             goTermMultifunctionalityPvalue.put( goset, aucp );
@@ -0,0 +1,65 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.data;
+
+/**
+ * A source of random numbers for resampling. Instances are not thread-safe; concurrent work should use streams
+ * obtained with {@link #split()}, which are independent of the parent and of each other.
+ *
+ * @version $Id$
+ */
+public interface RandomSource {
+
+    /**
+     * <p>
+     * nextDouble.
+     * </p>
+     *
+     * @return a double uniformly distributed in [0, 1).
+     */
+    public double nextDouble();
+
+    /**
+     * <p>
+     * nextInt.
+     * </p>
+     *
+     * @param bound a int, must be positive.
+     * @return a int uniformly distributed in [0, bound).
+     */
+    public int nextInt( int bound );
+
+    /**
+     * <p>
+     * nextLong.
+     * </p>
+     *
+     * @return a long.
+     */
+    public long nextLong();
+
+    /**
+     * Create a new, independent, stream. The sequence of streams obtained from a source is itself determined by the
+     * source's seed, so splitting in a fixed order gives reproducible results.
+     *
+     * @return a {@link ubic.erminej.data.RandomSource} object.
+     */
+    public RandomSource split();
+
+}
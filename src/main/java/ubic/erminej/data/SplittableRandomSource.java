@@ -0,0 +1,96 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.data;
+
+import java.util.SplittableRandom;
+
+import ubic.erminej.SettingsHolder;
+
+/**
+ * {@link RandomSource} backed by a {@link java.util.SplittableRandom}.
+ *
+ * @version $Id$
+ */
+public class SplittableRandomSource implements RandomSource {
+
+    /**
+     * <p>
+     * Create a source using the random seed from the settings, if any.
+     * </p>
+     *
+     * @param settings a {@link ubic.erminej.SettingsHolder} object.
+     * @return a {@link ubic.erminej.data.RandomSource} object; unseeded if the settings have no seed.
+     */
+    public static RandomSource fromSettings( SettingsHolder settings ) {
+        Long seed = settings.getSeed();
+        if ( seed == null ) {
+            return new SplittableRandomSource();
+        }
+        return new SplittableRandomSource( seed );
+    }
+
+    private final SplittableRandom random;
+
+    /**
+     * Unseeded.
+     */
+    public SplittableRandomSource() {
+        this( new SplittableRandom() );
+    }
+
+    /**
+     * <p>
+     * Constructor for SplittableRandomSource.
+     * </p>
+     *
+     * @param seed a long.
+     */
+    public SplittableRandomSource( long seed ) {
+        this( new SplittableRandom( seed ) );
+    }
+
+    private SplittableRandomSource( SplittableRandom random ) {
+        this.random = random;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int nextInt( int bound ) {
+        return random.nextInt( bound );
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long nextLong() {
+        return random.nextLong();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RandomSource split() {
+        return new SplittableRandomSource( random.split() );
+    }
+
+}
@@ -16,9 +16,11 @@ package ubic.erminej.analysis;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Map;
 import java.util.zip.ZipInputStream;
 
 import org.junit.BeforeClass;
@@ -29,11 +31,15 @@ import ubic.erminej.Analyzer;
 import ubic.erminej.Settings;
 import ubic.erminej.SettingsHolder.GeneScoreMethod;
 import ubic.erminej.SettingsHolder.Method;
+import ubic.erminej.SettingsHolder.MultiTestCorrMethod;
 import ubic.erminej.SettingsHolder.MultiElementHandling;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
 import ubic.erminej.data.GeneAnnotationParser;
 import ubic.erminej.data.GeneAnnotationParser.Format;
 import ubic.erminej.data.GeneAnnotations;
 import ubic.erminej.data.GeneScores;
+import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
 import ubic.erminej.data.GeneSetTerms;
 import ubic.erminej.data.TestGeneAnnotations;
 
@@ -141,4 +147,89 @@ public class AnalysisTests {
         GeneSetPvalRun result = results.iterator().next();
         assertNotNull( result.getGeneData() );
     }
+
+    /**
+     * Sequential p-values are computed per gene set on whichever thread is free; with a seed they must still not depend
+     * on the number of threads.
+     */
+    @Test
+    public void sequentialThreadsTest() {
+        int numThreads = s.getNumThreads();
+        NullDistributionMethod nullMethod = s.getNullDistributionMethod();
+        try {
+            s.setClassScoreMethod( Method.GSR );
+            s.setNullDistributionMethod( NullDistributionMethod.SEQUENTIAL );
+            s.setRandomSeed( 1234L );
+            for ( GeneScoreMethod m : new GeneScoreMethod[] { GeneScoreMethod.MEAN,
+                    GeneScoreMethod.PRECISIONRECALL } ) {
+                s.setGeneSetResamplingScoreMethod( m );
+                s.setNumThreads( 1 );
+                Map<GeneSetTerm, GeneSetResult> serial = new GeneSetPvalRun( s, scores ).getResults();
+                s.setNumThreads( 4 );
+                Map<GeneSetTerm, GeneSetResult> parallel = new GeneSetPvalRun( s, scores ).getResults();
+
+                assertTrue( serial.size() > 20 );
+                assertEquals( serial.keySet(), parallel.keySet() );
+                for ( GeneSetTerm t : serial.keySet() ) {
+                    assertEquals( m + " " + t, serial.get( t ).getPvalue(), parallel.get( t ).getPvalue(), 0.0 );
+                }
+            }
+        } finally {
+            s.setNumThreads( numThreads );
+            s.setNullDistributionMethod( nullMethod );
+            s.setRandomSeed( null );
+        }
+    }
+
+    /**
+     * Westfall-Young needs the shared null distribution, so it must be refused before any scoring is done.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sequentialWestfallYoungTest() {
+        NullDistributionMethod nullMethod = s.getNullDistributionMethod();
+        MultiTestCorrMethod mtc = s.getMtc();
+        try {
+            s.setClassScoreMethod( Method.GSR );
+            s.setGeneSetResamplingScoreMethod( GeneScoreMethod.MEAN );
+            s.setNullDistributionMethod( NullDistributionMethod.SEQUENTIAL );
+            s.setMtc( MultiTestCorrMethod.WESTFALLYOUNG );
+            new GeneSetPvalRun( s, scores );
+        } finally {
+            s.setNullDistributionMethod( nullMethod );
+            s.setMtc( mtc );
+        }
+    }
+
+    /**
+     * The gene sets are scored in parallel, but the results must not depend on the number of threads.
+     */
+    @Test
+    public void threadsTest() {
+        int numThreads = s.getNumThreads();
+        try {
+            s.setGeneSetResamplingScoreMethod( GeneScoreMethod.MEAN );
+            s.setRandomSeed( 1234L );
+            for ( Method m : new Method[] { Method.ORA, Method.ROC, Method.GSR } ) {
+                s.setClassScoreMethod( m );
+                s.setNumThreads( 1 );
+                Map<GeneSetTerm, GeneSetResult> serial = new GeneSetPvalRun( s, scores ).getResults();
+                s.setNumThreads( 4 );
+                Map<GeneSetTerm, GeneSetResult> parallel = new GeneSetPvalRun( s, scores ).getResults();
+
+                assertTrue( serial.size() > 20 );
+                assertEquals( serial.keySet(), parallel.keySet() );
+                for ( GeneSetTerm t : serial.keySet() ) {
+                    GeneSetResult a = serial.get( t );
+                    GeneSetResult b = parallel.get( t );
+                    assertEquals( m + " " + t, a.getScore(), b.getScore(), 0.0 );
+                    assertEquals( m + " " + t, a.getPvalue(), b.getPvalue(), 0.0 );
+                    assertEquals( m + " " + t, a.getCorrectedPvalue(), b.getCorrectedPvalue(), 0.0 );
+                    assertEquals( m + " " + t, a.getRank(), b.getRank() );
+                }
+            }
+        } finally {
+            s.setNumThreads( numThreads );
+            s.setRandomSeed( null );
+        }
+    }
 }
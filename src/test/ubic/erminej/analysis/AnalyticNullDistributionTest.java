@@ -0,0 +1,111 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.erminej.Settings;
+import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.SettingsHolder.NullDistributionMethod;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.Histogram;
+
+/**
+ * Checks the analytic null distributions for the mean score against resampling.
+ *
+ * @version $Id$
+ */
+public class AnalyticNullDistributionTest {
+
+    private Settings s;
+
+    private Map<Gene, Double> scores;
+
+    @Before
+    public void setUp() throws Exception {
+        s = new Settings( false );
+        s.setMinClassSize( 5 );
+        s.setMaxClassSize( 50 );
+        s.setIterations( 20000 );
+        s.setRandomSeed( 1234L );
+        s.setAlwaysUseEmpirical( true );
+        s.setNullDistributionCacheMB( 0 );
+        s.setGeneSetResamplingScoreMethod( GeneScoreMethod.MEAN );
+
+        // skewed scores, like -log p-values
+        Random r = new Random( 42 );
+        scores = new HashMap<>();
+        for ( int i = 0; i < 500; i++ ) {
+            scores.put( new Gene( "g" + i ), -Math.log10( r.nextDouble() ) );
+        }
+    }
+
+    @Test
+    public final void testAnalyticMatchesResampling() {
+        Histogram resampled = generate( NullDistributionMethod.RESAMPLING );
+        Histogram normal = generate( NullDistributionMethod.NORMAL );
+        Histogram edgeworth = generate( NullDistributionMethod.EDGEWORTH );
+
+        for ( int size : new int[] { 5, 20, 50 } ) {
+            for ( double x : new double[] { 0.4, 0.5, 0.6 } ) {
+                double expected = resampled.getValue( size, x, true );
+                assertEquals( expected, normal.getValue( size, x, true ), 0.07 );
+                assertEquals( expected, edgeworth.getValue( size, x, true ), 0.02 );
+            }
+        }
+    }
+
+    /**
+     * Each size has its own random stream, so the result for a seed must not depend on the number of threads.
+     */
+    @Test
+    public final void testResamplingSameForAnyNumberOfThreads() throws Exception {
+        s.setIterations( 2000 );
+
+        s.setNumThreads( 1 );
+        byte[] sequential = toBytes( generate( NullDistributionMethod.RESAMPLING ) );
+
+        s.setNumThreads( 4 );
+        byte[] parallel = toBytes( generate( NullDistributionMethod.RESAMPLING ) );
+
+        assertArrayEquals( sequential, parallel );
+    }
+
+    private Histogram generate( NullDistributionMethod m ) {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+        g.setNullDistributionMethod( m );
+        return g.generateNullDistribution( null );
+    }
+
+    private byte[] toBytes( Histogram h ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        h.write( out );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+}
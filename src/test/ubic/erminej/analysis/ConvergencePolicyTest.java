@@ -0,0 +1,105 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class ConvergencePolicyTest {
+
+    @Test
+    public void testCheckPoint() {
+        ConvergencePolicy p = new ConvergencePolicy( 0.01, 3, 100 );
+        assertFalse( p.isCheckPoint( 0 ) );
+        assertFalse( p.isCheckPoint( 99 ) );
+        assertTrue( p.isCheckPoint( 100 ) );
+        assertFalse( p.isCheckPoint( 150 ) );
+        assertTrue( p.isCheckPoint( 300 ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFrequency() {
+        new ConvergencePolicy( 0.01, 3, 0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStableChecks() {
+        new ConvergencePolicy( 0.01, 0, 10 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTolerance() {
+        new ConvergencePolicy( -1, 3, 10 );
+    }
+
+    @Test
+    public void testIsStable() {
+        ConvergencePolicy p = new ConvergencePolicy( 0.01, 3, 100 );
+        assertTrue( p.isStable( 1.0, 2.0, 1.005, 2.005 ) );
+        assertFalse( p.isStable( 1.0, 2.0, 1.02, 2.0 ) );
+        assertFalse( p.isStable( 1.0, 2.0, 1.0, 1.98 ) );
+        assertFalse( p.isStable( Double.MAX_VALUE, Double.MAX_VALUE, 1.0, 2.0 ) );
+    }
+
+    /**
+     * Convergence needs the configured number of consecutive stable checks; an unstable check starts over.
+     */
+    @Test
+    public void testStopping() {
+        ConvergencePolicy p = new ConvergencePolicy( 0.1, 2, 10 );
+        RunningMoments m = new RunningMoments();
+
+        m.add( 0.0 );
+        m.add( 2.0 );
+        assertFalse( m.checkConvergence( p ) ); // first check has nothing to compare to
+        assertFalse( m.checkConvergence( p ) ); // one stable check
+        assertTrue( m.checkConvergence( p ) ); // two
+
+        m.add( 100.0 );
+        assertFalse( m.checkConvergence( p ) ); // moved: reset
+        assertFalse( m.checkConvergence( p ) );
+        assertTrue( m.checkConvergence( p ) );
+    }
+
+    /**
+     * A stream of identical values converges as soon as the required number of checks have passed.
+     */
+    @Test
+    public void testStoppingConstantStream() {
+        ConvergencePolicy p = new ConvergencePolicy( 0.0, 3, 5 );
+        RunningMoments m = new RunningMoments();
+        int stoppedAt = -1;
+        for ( int i = 1; i <= 1000; i++ ) {
+            m.add( 1.0 );
+            if ( p.isCheckPoint( i ) && m.checkConvergence( p ) ) {
+                stoppedAt = i;
+                break;
+            }
+        }
+        // checks at 5 (no previous), 10, 15, 20
+        assertEquals( 20, stoppedAt );
+    }
+
+}
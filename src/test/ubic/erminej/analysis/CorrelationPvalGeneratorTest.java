@@ -0,0 +1,156 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.FastRowAccessDoubleMatrix;
+import ubic.erminej.SettingsHolder.MultiElementHandling;
+import ubic.erminej.data.Element;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.Histogram;
+
+/**
+ * @version $Id$
+ */
+public class CorrelationPvalGeneratorTest extends AbstractPvalGeneratorTest {
+
+    private DoubleMatrix<Element, String> data;
+
+    private CorrelationPvalGenerator generator;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Random r = new Random( 42 );
+        double[] factor = new double[10];
+        for ( int k = 0; k < factor.length; k++ ) {
+            factor[k] = r.nextGaussian();
+        }
+        List<Element> rowNames = new ArrayList<>( annotations.getProbes() );
+        double[][] values = new double[rowNames.size()][factor.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            for ( int k = 0; k < factor.length; k++ ) {
+                values[i][k] = r.nextGaussian() + ( i % 2 == 0 ? factor[k] : 0.0 );
+            }
+        }
+
+        // GeneB has two elements; one of them is constant, so all its correlations are NaN.
+        Arrays.fill( values[rowNames.indexOf( annotations.findElement( "ProbeC" ) )], 1.0 );
+        // and a missing value.
+        values[rowNames.indexOf( annotations.findElement( "ProbeA" ) )][3] = Double.NaN;
+
+        data = new FastRowAccessDoubleMatrix<>( values );
+        data.setRowNames( rowNames );
+
+        Histogram hist = new Histogram( s.getMaxClassSize() - s.getMinClassSize() + 1, s.getMinClassSize(), 100, 1.0,
+                0.0 );
+        for ( int size = s.getMinClassSize(); size <= s.getMaxClassSize(); size++ ) {
+            hist.update( size, 0.5 );
+        }
+        hist.tocdf();
+
+        generator = new CorrelationPvalGenerator( s, annotations, data, hist, null );
+    }
+
+    @Test
+    public void testBest() {
+        generator.setGeneRepTreatment( MultiElementHandling.BEST );
+        for ( String id : new String[] { "GO:1", "GO:2", "GO:3" } ) {
+            GeneSetTerm t = annotations.findTerm( id );
+            double score = generator.classPval( t ).getScore();
+            assertFalse( id, Double.isNaN( score ) );
+            assertEquals( id, baseline( t, true ), score, 1e-12 );
+        }
+    }
+
+    @Test
+    public void testMean() {
+        generator.setGeneRepTreatment( MultiElementHandling.MEAN );
+        for ( String id : new String[] { "GO:1", "GO:2", "GO:3" } ) {
+            GeneSetTerm t = annotations.findTerm( id );
+            assertEquals( id, baseline( t, false ), generator.classPval( t ).getScore(), 1e-12 );
+        }
+
+        // the NaN correlations of the constant element are averaged in.
+        assertTrue( Double.isNaN( generator.classPval( annotations.findTerm( "GO:1" ) ).getScore() ) );
+    }
+
+    /**
+     * The computation one element pair at a time, the way it was done before the elements were grouped by gene.
+     *
+     * @param t
+     * @param best
+     * @return the mean correlation among the genes in the set; for BEST, a pair of genes whose elements all have NaN
+     *         correlations counts as NaN.
+     */
+    private double baseline( GeneSetTerm t, boolean best ) {
+        StandardizedRows rows = new StandardizedRows( data );
+        List<Element> elements = new ArrayList<>( annotations.getGeneSetElements( t ) );
+        Map<String, Double> bestForGenes = new HashMap<>();
+        double sum = 0.0;
+        double nummeas = 0.0;
+        for ( int i = 0; i < elements.size(); i++ ) {
+            Gene gi = elements.get( i ).getGene();
+            for ( int j = i + 1; j < elements.size(); j++ ) {
+                Gene gj = elements.get( j ).getGene();
+                if ( gi.equals( gj ) ) continue;
+                double corr = Math.abs( rows.correlation( data.getRowIndexByName( elements.get( i ) ),
+                        data.getRowIndexByName( elements.get( j ) ) ) );
+                if ( best ) {
+                    String key = gi.getSymbol().compareTo( gj.getSymbol() ) < 0 ? gi.getSymbol() + "|" + gj.getSymbol()
+                            : gj.getSymbol() + "|" + gi.getSymbol();
+                    Double previous = bestForGenes.get( key );
+                    if ( previous == null || Double.isNaN( previous ) || corr > previous ) {
+                        bestForGenes.put( key, corr );
+                    }
+                } else {
+                    double weight = 1.0
+                            / ( annotations.numElementsForGene( gi ) * annotations.numElementsForGene( gj ) );
+                    sum += corr * weight;
+                    nummeas += weight;
+                }
+            }
+        }
+        if ( best ) {
+            for ( double v : bestForGenes.values() ) {
+                sum += v;
+                nummeas++;
+            }
+        }
+        return sum / nummeas;
+    }
+
+}
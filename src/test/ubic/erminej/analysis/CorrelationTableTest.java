@@ -0,0 +1,91 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @version $Id$
+ */
+public class CorrelationTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public final void testCancelled() throws Exception {
+        ExecutionPolicy policy = ExecutionPolicy.fullSpeed();
+        policy.getCancellationToken().cancel();
+        File f = new File( folder.getRoot(), "cancelled.corr" );
+        try {
+            CorrelationTable.compute( new StandardizedRows( randomData() ), f, 2, policy );
+            fail( "Should have been cancelled" );
+        } catch ( CancellationException e ) {
+            // expected
+        }
+        assertFalse( f.exists() );
+        assertEquals( 0, folder.getRoot().list().length );
+    }
+
+    @Test
+    public final void testInMemoryAndMapped() throws Exception {
+        double[][] data = randomData();
+        data[3][5] = Double.NaN;
+        StandardizedRows rows = new StandardizedRows( data );
+
+        CorrelationTable inMemory = CorrelationTable.compute( rows, 2, ExecutionPolicy.fullSpeed() );
+        assertFalse( inMemory.isMapped() );
+
+        File f = new File( folder.getRoot(), "test.corr" );
+        CorrelationTable mapped = CorrelationTable.compute( rows, f, 3, ExecutionPolicy.fullSpeed() );
+        assertTrue( mapped.isMapped() );
+        assertTrue( f.exists() );
+
+        CorrelationTable reused = CorrelationTable.compute( rows, f, 1, ExecutionPolicy.fullSpeed() );
+
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int j = 0; j < data.length; j++ ) {
+                if ( i == j ) continue;
+                double expected = Math.abs( rows.correlation( i, j ) );
+                assertEquals( expected, inMemory.get( i, j ), 1e-6 );
+                assertEquals( expected, mapped.get( i, j ), 1e-6 );
+                assertEquals( expected, reused.get( i, j ), 1e-6 );
+            }
+        }
+    }
+
+    private double[][] randomData() {
+        Random r = new Random( 42 );
+        double[][] data = new double[30][12];
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int k = 0; k < data[i].length; k++ ) {
+                data[i][k] = r.nextGaussian();
+            }
+        }
+        return data;
+    }
+
+}
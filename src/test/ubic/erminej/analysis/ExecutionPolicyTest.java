@@ -0,0 +1,91 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class ExecutionPolicyTest {
+
+    @Test
+    public final void testCancel() {
+        ExecutionPolicy policy = ExecutionPolicy.fullSpeed();
+        policy.checkpoint();
+        policy.pause();
+        assertFalse( policy.getCancellationToken().isCancelled() );
+
+        policy.getCancellationToken().cancel();
+        try {
+            policy.checkpoint();
+            fail( "Should have been cancelled" );
+        } catch ( CancellationException e ) {
+            // expected
+        }
+        try {
+            policy.checkCancelled();
+            fail( "Should have been cancelled" );
+        } catch ( CancellationException e ) {
+            // expected
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public final void testTaskUsesPolicy() {
+        AbstractLongTask task = new AbstractLongTask() {
+        };
+        ExecutionPolicy policy = ExecutionPolicy.cooperative();
+        task.setExecutionPolicy( policy );
+        task.ifInterruptedStop();
+        policy.getCancellationToken().cancel();
+        task.ifInterruptedStop();
+    }
+
+    /**
+     * Cancelling the task given one default policy must not cancel tasks given another.
+     */
+    @Test
+    public final void testDefaultsAreIndependent() {
+        AbstractLongTask first = new AbstractLongTask() {
+        };
+        AbstractLongTask second = new AbstractLongTask() {
+        };
+        assertNotSame( first.getExecutionPolicy().getCancellationToken(), second.getExecutionPolicy()
+                .getCancellationToken() );
+
+        first.getExecutionPolicy().getCancellationToken().cancel();
+        second.ifInterruptedStop();
+        assertFalse( ExecutionPolicy.getDefault().getCancellationToken().isCancelled() );
+    }
+
+    @Test
+    public final void testFullSpeedDoesNotSleep() {
+        ExecutionPolicy policy = ExecutionPolicy.fullSpeed();
+        long start = System.nanoTime();
+        for ( int i = 0; i < 1000; i++ ) {
+            policy.pause();
+        }
+        assertTrue( System.nanoTime() - start < 1000L * 1000000L );
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.basecode.math.PrecisionRecall;
+import ubic.erminej.Settings;
+import ubic.erminej.SettingsHolder.GeneScoreMethod;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.Histogram;
+import ubic.erminej.data.SplittableRandomSource;
+
+/**
+ * @version $Id$
+ */
+public class GeneSetResamplingBkgDistGeneratorTest {
+
+    private Settings s;
+
+    private Map<Gene, Double> scores;
+
+    @Before
+    public void setUp() throws Exception {
+        s = new Settings( false );
+        s.setMinClassSize( 5 );
+        s.setMaxClassSize( 50 );
+        s.setIterations( 1000 );
+        s.setRandomSeed( 1234L );
+        s.setAlwaysUseEmpirical( true );
+        s.setNullDistributionCacheMB( 0 );
+        s.setGeneSetResamplingScoreMethod( GeneScoreMethod.MEAN );
+
+        Random r = new Random( 42 );
+        scores = new HashMap<>();
+        for ( int i = 0; i < 500; i++ ) {
+            scores.put( new Gene( "g" + i ), -Math.log10( r.nextDouble() ) );
+        }
+    }
+
+    /**
+     * The integer ranks sampled for the precision-recall null give the same average precision as the double ranks of
+     * the observed scores, and as the previous list-based computation.
+     */
+    @Test
+    public final void testAveragePrecisionIntegerRanks() {
+        assertEquals( 1.0, GeneSetResamplingBkgDistGenerator.averagePrecision( new int[] { 1, 0 } ), 0.0 );
+        assertEquals( ( 1 / 2.0 + 2 / 4.0 ) / 2, GeneSetResamplingBkgDistGenerator.averagePrecision( new int[] { 3,
+                1 } ), 1e-15 );
+
+        Random r = new Random( 7 );
+        SubsetSampler sampler = new SubsetSampler( 1000 );
+        SplittableRandomSource random = new SplittableRandomSource( 99L );
+        for ( int size : new int[] { 1, 2, 10, 100, 1000 } ) {
+            int[] ranks = new int[size];
+            sampler.sampleIndices( ranks, random );
+
+            double[] doubleRanks = new double[size + r.nextInt( 5 )]; // only the first size values are used
+            List<Double> rankList = new ArrayList<>();
+            for ( int i = 0; i < size; i++ ) {
+                doubleRanks[i] = ranks[i];
+                rankList.add( ( double ) ranks[i] );
+            }
+
+            double expected = PrecisionRecall.averagePrecision( rankList );
+            assertEquals( expected, GeneSetResamplingBkgDistGenerator.averagePrecision( doubleRanks, size ), 1e-12 );
+            assertEquals( expected, GeneSetResamplingBkgDistGenerator.averagePrecision( ranks ), 1e-12 );
+        }
+    }
+
+    /**
+     * When the number of exceedances is reached, the p-value is that number divided by the number of random sets
+     * scored.
+     */
+    @Test
+    public final void testSequentialPvalueEarlyStopping() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+
+        // every random set does at least as well
+        assertEquals( 1.0, g.sequentialPvalue( 0.0, 20, true, 10, new SplittableRandomSource( 1L ) ), 0.0 );
+
+        // about half do as well as the mean score, so this stops after about 20 sets.
+        double p = g.sequentialPvalue( meanScore(), 20, true, 10, new SplittableRandomSource( 1L ) );
+        double numScored = 10 / p;
+        assertEquals( Math.rint( numScored ), numScored, 1e-9 );
+        assertTrue( numScored >= 10 && numScored < 100 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testSequentialPvalueExceedancesInvalid() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+        g.sequentialPvalue( 0.0, 20, true, 0, new SplittableRandomSource( 1L ) );
+    }
+
+    /**
+     * When the number of exceedances is not reached, all the iterations are used and the p-value is (exceedances + 1)
+     * / (iterations + 1).
+     */
+    @Test
+    public final void testSequentialPvalueFullSample() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+        double minimum = 1.0 / 1001;
+
+        // nothing does as well
+        assertEquals( minimum, g.sequentialPvalue( Double.MAX_VALUE, 20, true, 10, new SplittableRandomSource( 1L ) ),
+                1e-15 );
+        assertEquals( minimum, g.sequentialPvalue( -Double.MAX_VALUE, 20, false, 10,
+                new SplittableRandomSource( 1L ) ), 1e-15 );
+
+        // more exceedances than iterations, so all are used; agrees with the null distribution.
+        double observed = meanScore() + 0.15;
+        double p = g.sequentialPvalue( observed, 20, true, 2000, new SplittableRandomSource( 1L ) );
+        double exceedances = p * 1001 - 1;
+        assertEquals( Math.rint( exceedances ), exceedances, 1e-9 );
+        assertTrue( exceedances > 0 );
+
+        s.setIterations( 20000 );
+        Histogram h = new GeneSetResamplingBkgDistGenerator( s, scores ).generateNullDistribution( null );
+        assertEquals( h.getValue( 20, observed, true ), p, 0.03 );
+    }
+
+    /**
+     * Every size up to the speed-up cutoff, then steps growing by a tenth of the size, ending at the maximum.
+     */
+    @Test
+    public final void testSizeGrid() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+
+        List<Integer> grid = g.getGeneSetSizesToSample( scores.size() );
+        assertEquals( Arrays.asList( 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 23, 26, 29, 32, 36,
+                40, 45, 50 ), grid );
+
+        // no bigger than the number of genes
+        List<Integer> small = g.getGeneSetSizesToSample( 30 );
+        assertEquals( 5, ( int ) small.get( 0 ) );
+        assertEquals( 29, ( int ) small.get( small.size() - 1 ) );
+    }
+
+    /**
+     * Only the grid points serving the sizes in use are sampled; sizes out of range are ignored.
+     */
+    @Test
+    public final void testSizeGridForSizesInUse() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+        g.setGeneSetSizes( Arrays.asList( 3, 5, 21, 24, 50, 60 ) );
+        assertEquals( Arrays.asList( 5, 20, 23, 50 ), g.getGeneSetSizesToSample( scores.size() ) );
+    }
+
+    /**
+     * Sizes between grid points are served by the nearest smaller grid point; sizes below the smallest one used have
+     * no distribution.
+     */
+    @Test
+    public final void testSizesBetweenGridPoints() {
+        GeneSetResamplingBkgDistGenerator g = new GeneSetResamplingBkgDistGenerator( s, scores );
+        g.setGeneSetSizes( Arrays.asList( 21, 24, 50 ) );
+        Histogram h = g.generateNullDistribution( null );
+
+        for ( double x : new double[] { 0.3, 0.45, 0.6 } ) {
+            assertEquals( h.getValue( 20, x, true ), h.getValue( 21, x, true ), 0.0 );
+            assertEquals( h.getValue( 20, x, true ), h.getValue( 22, x, true ), 0.0 );
+            assertEquals( h.getValue( 23, x, true ), h.getValue( 24, x, true ), 0.0 );
+            assertEquals( h.getValue( 23, x, true ), h.getValue( 49, x, true ), 0.0 );
+        }
+
+        // the maximum is sampled itself: the mean of a larger set is less likely to be far above the mean score.
+        assertTrue( h.getValue( 50, 0.6, true ) < h.getValue( 49, 0.6, true ) );
+        try {
+            h.getValue( 19, 0.45, true );
+            fail( "Should have had no distribution for size 19" );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+    }
+
+    private double meanScore() {
+        double sum = 0.0;
+        for ( double v : scores.values() ) {
+            sum += v;
+        }
+        return sum / scores.size();
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class HypergeometricTailTest {
+
+    @Test
+    public void testAgainstExact() {
+        int numGenes = 120;
+        int numHits = 17;
+        HypergeometricTail h = new HypergeometricTail( numGenes, numHits );
+        for ( int setSize = 0; setSize <= numGenes; setSize += 7 ) {
+            for ( int k = 0; k <= Math.min( setSize, numHits ) + 1; k++ ) {
+                double expected = exactTail( numGenes, numHits, setSize, k );
+                assertEquals( expected, h.upperTail( setSize, k ), 1e-10 * Math.max( expected, 1e-300 ) + 1e-15 );
+            }
+        }
+    }
+
+    @Test
+    public void testSmallTail() {
+        HypergeometricTail h = new HypergeometricTail( 20000, 500 );
+        double p = h.upperTail( 100, 30 );
+        double expected = exactTail( 20000, 500, 100, 30 );
+        assertEquals( 1.0, p / expected, 1e-8 );
+        assertEquals( 1.0, h.upperTail( 100, 0 ), 0.0 );
+        assertEquals( 0.0, h.upperTail( 100, 101 ), 0.0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyHits() {
+        new HypergeometricTail( 10, 11 );
+    }
+
+    private BigInteger choose( int n, int k ) {
+        if ( k < 0 || k > n ) return BigInteger.ZERO;
+        BigInteger r = BigInteger.ONE;
+        for ( int i = 0; i < k; i++ ) {
+            r = r.multiply( BigInteger.valueOf( n - i ) ).divide( BigInteger.valueOf( i + 1 ) );
+        }
+        return r;
+    }
+
+    private double exactTail( int numGenes, int numHits, int setSize, int k ) {
+        BigInteger sum = BigInteger.ZERO;
+        for ( int i = Math.max( k, 0 ); i <= Math.min( setSize, numHits ); i++ ) {
+            sum = sum.add( choose( setSize, i ).multiply( choose( numGenes - setSize, numHits - i ) ) );
+        }
+        return new BigDecimal( sum ).divide( new BigDecimal( choose( numGenes, numHits ) ), MathContext.DECIMAL128 )
+                .doubleValue();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.erminej.SettingsHolder;
+import ubic.erminej.data.Gene;
+import ubic.erminej.data.GeneAnnotations;
+import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
+
+/**
+ * @version $Id$
+ */
+public class OraBatchTest extends AbstractPvalGeneratorTest {
+
+    private OraBatch batch;
+
+    private GeneAnnotations pruned;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        pruned = scores.getPrunedGeneAnnotations();
+        batch = new OraBatch( s, pruned, null );
+    }
+
+    /**
+     * Same hit list as in OraPvalGeneratorTest, so the same p-values.
+     */
+    @Test
+    public void testScore() {
+        assertEquals( 19, batch.getNumGenes() );
+
+        Map<GeneSetTerm, GeneSetResult> r = batch.score( Arrays.asList( pruned.findGene( "GeneA" ),
+                pruned.findGene( "GeneB" ) ) );
+
+        assertEquals( 3, r.size() );
+        assertFalse( r.containsKey( annotations.findTerm( "GO:11" ) ) );
+        assertEquals( 0.3216374, r.get( annotations.findTerm( "GO:1" ) ).getPvalue(), 0.0001 );
+        assertEquals( 0.38596, r.get( annotations.findTerm( "GO:2" ) ).getPvalue(), 0.0001 );
+        assertEquals( 0.7894737, r.get( annotations.findTerm( "GO:3" ) ).getPvalue(), 0.0001 );
+        assertEquals( 2.0, r.get( annotations.findTerm( "GO:1" ) ).getScore(), 0.0 );
+        assertEquals( 1, r.get( annotations.findTerm( "GO:1" ) ).getRank() );
+
+        // five sets are tested; BH: 0.3216374 * 5 / 1, capped at 1, and 0.38596 * 5 / 2
+        assertEquals( 1.0, r.get( annotations.findTerm( "GO:1" ) ).getCorrectedPvalue(), 0.0001 );
+        assertEquals( 0.9649, r.get( annotations.findTerm( "GO:2" ) ).getCorrectedPvalue(), 0.0001 );
+        assertEquals( 1.0, r.get( annotations.findTerm( "GO:3" ) ).getCorrectedPvalue(), 0.0001 );
+    }
+
+    /**
+     * The p-values and corrected p-values must be those of a normal ORA run with the same hits.
+     */
+    @Test
+    public void testSameAsOraPvalGenerator() {
+        s.setClassScoreMethod( SettingsHolder.Method.ORA );
+        for ( SettingsHolder.MultiTestCorrMethod mtc : new SettingsHolder.MultiTestCorrMethod[] {
+                SettingsHolder.MultiTestCorrMethod.FDR, SettingsHolder.MultiTestCorrMethod.FWE } ) {
+            s.setMtc( mtc );
+            Map<GeneSetTerm, GeneSetResult> expected = new GeneSetPvalRun( s, scores ).getResults();
+            Collection<Gene> hits = new OraPvalGenerator( s, scores, pruned, null ).getGenesAboveThreshold();
+            Map<GeneSetTerm, GeneSetResult> actual = new OraBatch( s, pruned, null ).score( hits );
+
+            assertFalse( actual.isEmpty() );
+            int withHits = 0;
+            for ( GeneSetTerm t : expected.keySet() ) {
+                GeneSetResult e = expected.get( t );
+                GeneSetResult a = actual.get( t );
+                if ( e.getScore() == 0 ) {
+                    assertNull( mtc + " " + t, a );
+                    continue;
+                }
+                withHits++;
+                assertNotNull( mtc + " " + t, a );
+                assertEquals( mtc + " " + t, e.getPvalue(), a.getPvalue(), 1e-12 );
+                assertEquals( mtc + " " + t, e.getCorrectedPvalue(), a.getCorrectedPvalue(), 1e-12 );
+            }
+            assertEquals( withHits, actual.size() );
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedCorrection() {
+        s.setMtc( SettingsHolder.MultiTestCorrMethod.WESTFALLYOUNG );
+        new OraBatch( s, pruned, null );
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        Map<String, Collection<Gene>> lists = new LinkedHashMap<>();
+        lists.put( "first", Arrays.asList( pruned.findGene( "GeneA" ), pruned.findGene( "GeneB" ) ) );
+        lists.put( "empty", Arrays.asList( new Gene( "notAGene" ) ) );
+        lists.put( "last", Arrays.asList( pruned.findGene( "GeneK" ) ) );
+
+        StringWriter w = new StringWriter();
+        assertEquals( 3, batch.write( lists, w ) );
+        String[] lines = w.toString().split( "\n" );
+
+        // heading, three sets for the first list and two for the last.
+        assertEquals( 6, lines.length );
+        assertTrue( lines[0].startsWith( "List\t" ) );
+        assertTrue( lines[1].startsWith( "first\t2\t" ) );
+        assertTrue( lines[1].contains( "\tGO:1\t" ) );
+        assertTrue( lines[5].startsWith( "last\t1\t" ) );
+
+        batch.setNumThreads( 2 );
+        StringWriter w2 = new StringWriter();
+        batch.write( lists, w2 );
+        assertEquals( w.toString(), w2.toString() );
+    }
+
+}
@@ -26,6 +26,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
@@ -34,7 +36,10 @@ import org.junit.Test;
 import cern.jet.math.Arithmetic;
 import ubic.erminej.ResultsFileReader;
 import ubic.erminej.ResultsPrinter;
+import ubic.erminej.data.Gene;
 import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.Multifunctionality;
 
 /**
  * @author pavlidis
@@ -114,6 +119,40 @@ public class OraPvalGeneratorTest extends AbstractPvalGeneratorTest {
         assertEquals( expectedReturn, actualReturn, 0.0001 );
     }
 
+    /**
+     * Removing the hits one at a time, most multifunctional first, while updating only the sets that lost a hit, must
+     * give the same hits and results as searching the remaining hits and rescoring everything after each removal.
+     */
+    @Test
+    public void testHitRemoval() {
+        Map<GeneSetTerm, GeneSetResult> full = test.computeResultsForHitList( test.getGenesAboveThreshold(), true );
+        OraPvalGenerator.HitRemovalState state = test.new HitRemovalState( full.keySet() );
+        assertSameResults( full, state.getResults() );
+
+        Multifunctionality mf = annotations.getMultifunctionality();
+        Collection<Gene> remaining = new HashSet<>();
+        remaining.addAll( test.getGenesAboveThreshold() );
+        assertTrue( remaining.size() > 1 );
+
+        while ( !remaining.isEmpty() ) {
+            Gene expected = mf.getMostMultifunctional( remaining );
+            remaining.remove( expected );
+
+            assertEquals( 1, state.removeMostMultifunctional( 1 ) );
+            assertEquals( expected, state.getRemovedHits().get( state.getRemovedHits().size() - 1 ) );
+            assertEquals( remaining.size(), state.getRemainingHits().size() );
+
+            assertSameResults( test.computeResultsForHitList( remaining, true ), state.getResults() );
+        }
+        assertEquals( 0, state.removeMostMultifunctional( 1 ) );
+
+        // going back to a point part way through.
+        state.reset( 1 );
+        remaining.addAll( test.getGenesAboveThreshold() );
+        remaining.remove( state.getRemovedHits().get( 0 ) );
+        assertSameResults( test.computeResultsForHitList( remaining, true ), state.getResults() );
+    }
+
     /**
      * @throws Exception
      */
@@ -152,4 +191,39 @@ public class OraPvalGeneratorTest extends AbstractPvalGeneratorTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSweep() {
+        GeneSetTerm go1 = annotations.findTerm( "GO:1" );
+        GeneSetTerm go2 = annotations.findTerm( "GO:2" );
+        GeneSetTerm go3 = annotations.findTerm( "GO:3" );
+
+        // same hits as the threshold in the settings.
+        Map<GeneSetTerm, GeneSetResult> r = test.generateGeneSetResults( OraThreshold.topN( 2 ) );
+        assertEquals( 2, test.getNumGenesOverThreshold() );
+        assertEquals( 0.3216374, r.get( go1 ).getPvalue(), 0.0001 );
+        assertEquals( 0.38596, r.get( go2 ).getPvalue(), 0.0001 );
+
+        r = test.generateGeneSetResults( OraThreshold.score( 0.99 ) );
+        assertEquals( 19, test.getNumGenesOverThreshold() );
+        assertEquals( 1.0, r.get( go1 ).getPvalue(), 0.0001 );
+
+        // going back starts the count over.
+        r = test.generateGeneSetResults( OraThreshold.score( 0.015 ) );
+        assertEquals( 2, test.getNumGenesOverThreshold() );
+        assertEquals( -Arithmetic.log10( 0.015 ), test.getGeneScoreThreshold(), 0.001 );
+        assertEquals( 0.7894737, r.get( go3 ).getPvalue(), 0.0001 );
+    }
+
+    /**
+     * @param expected
+     * @param actual
+     */
+    private void assertSameResults( Map<GeneSetTerm, GeneSetResult> expected, Map<GeneSetTerm, GeneSetResult> actual ) {
+        assertEquals( expected.keySet(), actual.keySet() );
+        for ( GeneSetTerm t : expected.keySet() ) {
+            assertEquals( t.getId(), expected.get( t ).getScore(), actual.get( t ).getScore(), 0.0 );
+            assertEquals( t.getId(), expected.get( t ).getPvalue(), actual.get( t ).getPvalue(), 0.0 );
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.FastRowAccessDoubleMatrix;
+import ubic.erminej.Settings;
+import ubic.erminej.data.Element;
+import ubic.erminej.data.Histogram;
+
+/**
+ * @version $Id$
+ */
+public class ResamplingCorrelationGeneSetScoreTest {
+
+    private static final int ITERATIONS = 5000;
+
+    private static final int MAX_SIZE = 12;
+
+    private DoubleMatrix<Element, String> data;
+
+    private Settings settings;
+
+    @Before
+    public void setUp() throws Exception {
+        // half of the rows share a factor, so the correlations are not all alike.
+        Random r = new Random( 42 );
+        double[][] values = new double[40][8];
+        double[] factor = new double[values[0].length];
+        for ( int k = 0; k < factor.length; k++ ) {
+            factor[k] = r.nextGaussian();
+        }
+        List<Element> rowNames = new ArrayList<>();
+        for ( int i = 0; i < values.length; i++ ) {
+            for ( int k = 0; k < values[i].length; k++ ) {
+                values[i][k] = r.nextGaussian() + ( i % 2 == 0 ? factor[k] : 0.0 );
+            }
+            rowNames.add( new Element( "p" + i ) );
+        }
+        data = new FastRowAccessDoubleMatrix<>( values );
+        data.setRowNames( rowNames );
+
+        settings = new Settings( false );
+        settings.setMinClassSize( 2 );
+        settings.setMaxClassSize( MAX_SIZE );
+        settings.setIterations( ITERATIONS );
+        settings.setAlwaysUseEmpirical( true );
+    }
+
+    /**
+     * Nested and independent sampling draw each size from the same distribution: the mean of the mean correlation is
+     * the mean over all pairs for every size, and the variances agree.
+     */
+    @Test
+    public void testNestedSameAsIndependent() {
+        Histogram independent = generate( false );
+        Histogram nested = generate( true );
+
+        StandardizedRows rows = new StandardizedRows( data );
+        double sum = 0.0;
+        int numPairs = 0;
+        for ( int i = 0; i < data.rows(); i++ ) {
+            for ( int j = i + 1; j < data.rows(); j++ ) {
+                sum += Math.abs( rows.correlation( i, j ) );
+                numPairs++;
+            }
+        }
+        double expectedMean = sum / numPairs;
+
+        for ( int size = 2; size <= MAX_SIZE; size++ ) {
+            double[] a = moments( independent, size );
+            double[] b = moments( nested, size );
+
+            // four standard errors, plus the binning.
+            double tolerance = 4 * Math.sqrt( a[1] / ITERATIONS ) + independent.getBinSize();
+            assertEquals( "size " + size, expectedMean, a[0], tolerance );
+            assertEquals( "size " + size, expectedMean, b[0], tolerance );
+            assertEquals( "size " + size, a[0], b[0], tolerance * Math.sqrt( 2 ) );
+
+            assertEquals( "size " + size, 1.0, b[1] / a[1], 0.15 );
+        }
+    }
+
+    /**
+     * @param nested
+     * @return the null distribution
+     */
+    private Histogram generate( boolean nested ) {
+        ResamplingCorrelationGeneSetScore score = new ResamplingCorrelationGeneSetScore( settings, data );
+        score.setHistogramCache( null );
+        score.setNestedSampling( nested );
+        return score.generateNulldistribution( null, 1234L );
+    }
+
+    /**
+     * @param hist converted to a cdf
+     * @param size
+     * @return the mean and variance of the distribution for the size, from the middles of the bins.
+     */
+    private double[] moments( Histogram hist, int size ) {
+        double[] upperTail = hist.getHistogram( size );
+        double[] bins = hist.getBins();
+        double mean = 0.0;
+        double meanSquare = 0.0;
+        for ( int j = 0; j < upperTail.length; j++ ) {
+            double p = upperTail[j] - ( j + 1 < upperTail.length ? upperTail[j + 1] : 0.0 );
+            double x = bins[j] + hist.getBinSize() / 2;
+            mean += p * x;
+            meanSquare += p * x * x;
+        }
+        return new double[] { mean, meanSquare - mean * mean };
+    }
+
+}
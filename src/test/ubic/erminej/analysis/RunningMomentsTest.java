@@ -0,0 +1,101 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class RunningMomentsTest {
+
+    @Test
+    public void testAgainstTwoPass() {
+        Random r = new Random( 42 );
+        double[] x = new double[1000];
+        for ( int i = 0; i < x.length; i++ ) {
+            // skewed, and shifted away from zero to exercise cancellation
+            x[i] = 1000.0 + Math.exp( r.nextGaussian() );
+        }
+
+        RunningMoments m = new RunningMoments();
+        for ( double v : x ) {
+            m.add( v );
+        }
+
+        double mean = 0.0;
+        for ( double v : x ) {
+            mean += v;
+        }
+        mean /= x.length;
+
+        double ss = 0.0;
+        double sc = 0.0;
+        for ( double v : x ) {
+            double d = v - mean;
+            ss += d * d;
+            sc += d * d * d;
+        }
+        double variance = ss / ( x.length - 1 );
+        double skewness = ( sc / x.length ) / Math.pow( ss / x.length, 1.5 );
+
+        assertEquals( x.length, m.getCount() );
+        assertEquals( mean, m.getMean(), 1e-10 );
+        assertEquals( variance, m.getVariance(), 1e-10 );
+        assertEquals( skewness, m.getSkewness(), 1e-8 );
+        assertTrue( m.getSkewness() > 1.0 );
+    }
+
+    @Test
+    public void testFewValues() {
+        RunningMoments m = new RunningMoments();
+        assertTrue( Double.isNaN( m.getVariance() ) );
+        assertTrue( Double.isNaN( m.getSkewness() ) );
+
+        m.add( 3.0 );
+        assertEquals( 3.0, m.getMean(), 0.0 );
+        assertTrue( Double.isNaN( m.getVariance() ) );
+
+        m.add( 3.0 );
+        assertEquals( 0.0, m.getVariance(), 0.0 );
+        assertTrue( Double.isNaN( m.getSkewness() ) );
+
+        m.add( 6.0 );
+        assertEquals( 4.0, m.getMean(), 1e-12 );
+        assertEquals( 3.0, m.getVariance(), 1e-12 );
+        // deviations -1, -1, 2: second and third central moments are both 2
+        assertEquals( 2.0 / Math.pow( 2.0, 1.5 ), m.getSkewness(), 1e-12 );
+    }
+
+    @Test
+    public void testSymmetric() {
+        RunningMoments m = new RunningMoments();
+        for ( int i = -50; i <= 50; i++ ) {
+            m.add( i );
+        }
+        assertEquals( 0.0, m.getMean(), 1e-12 );
+        assertEquals( 0.0, m.getSkewness(), 1e-12 );
+    }
+
+}
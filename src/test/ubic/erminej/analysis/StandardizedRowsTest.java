@@ -0,0 +1,110 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class StandardizedRowsTest {
+
+    @Test
+    public final void testCorrelation() {
+        Random r = new Random( 123 );
+        double[][] data = new double[6][23];
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int k = 0; k < data[i].length; k++ ) {
+                data[i][k] = 10.0 + r.nextGaussian() + ( i % 2 == 0 ? 0.1 * k : 0.0 );
+            }
+        }
+        data[4][3] = Double.NaN;
+        data[5][7] = Double.NaN;
+        data[5][8] = Double.NaN;
+
+        StandardizedRows rows = new StandardizedRows( data );
+        assertTrue( rows.hasMissing( 4 ) );
+
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int j = 0; j < data.length; j++ ) {
+                assertEquals( pearson( data[i], data[j] ), rows.correlation( i, j ), 1e-12 );
+            }
+        }
+    }
+
+    @Test
+    public final void testConstantRow() {
+        double[][] data = new double[][] { { 1, 1, 1, 1 }, { 1, 2, 3, 4 } };
+        StandardizedRows rows = new StandardizedRows( data );
+        assertTrue( Double.isNaN( rows.correlation( 0, 1 ) ) );
+    }
+
+    @Test
+    public final void testSinglePrecision() {
+        Random r = new Random( 321 );
+        double[][] data = new double[8][150];
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int k = 0; k < data[i].length; k++ ) {
+                data[i][k] = 1000.0 + r.nextGaussian() + ( i % 2 == 0 ? 0.01 * k : 0.0 );
+            }
+        }
+        data[2][5] = Double.NaN;
+        data[3][70] = Double.NaN;
+        data[3][149] = Double.NaN;
+
+        StandardizedRows rows = new StandardizedRows( data, true );
+        assertTrue( rows.isSinglePrecision() );
+        assertTrue( rows.hasMissing( 3 ) );
+
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int j = 0; j < data.length; j++ ) {
+                assertEquals( pearson( data[i], data[j] ), rows.correlation( i, j ), 1e-5 );
+            }
+        }
+    }
+
+    /**
+     * Two-pass Pearson correlation over the columns where both have values.
+     */
+    private double pearson( double[] x, double[] y ) {
+        int n = 0;
+        double mx = 0.0;
+        double my = 0.0;
+        for ( int k = 0; k < x.length; k++ ) {
+            if ( Double.isNaN( x[k] ) || Double.isNaN( y[k] ) ) continue;
+            mx += x[k];
+            my += y[k];
+            n++;
+        }
+        mx /= n;
+        my /= n;
+        double sxy = 0.0;
+        double sxx = 0.0;
+        double syy = 0.0;
+        for ( int k = 0; k < x.length; k++ ) {
+            if ( Double.isNaN( x[k] ) || Double.isNaN( y[k] ) ) continue;
+            sxy += ( x[k] - mx ) * ( y[k] - my );
+            sxx += ( x[k] - mx ) * ( x[k] - mx );
+            syy += ( y[k] - my ) * ( y[k] - my );
+        }
+        return sxy / Math.sqrt( sxx * syy );
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ubic.erminej.data.SplittableRandomSource;
+
+/**
+ * @version $Id$
+ */
+public class SubsetSamplerTest {
+
+    @Test
+    public final void testReset() {
+        int[] fresh = new int[10];
+        new SubsetSampler( 30 ).sampleIndices( fresh, new SplittableRandomSource( 3L ) );
+
+        SubsetSampler sampler = new SubsetSampler( 30 );
+        int[] buf = new int[10];
+        sampler.sampleIndices( buf, new SplittableRandomSource( 99L ) );
+        sampler.reset();
+        sampler.sampleIndices( buf, new SplittableRandomSource( 3L ) );
+        assertArrayEquals( fresh, buf );
+    }
+
+    @Test
+    public final void testSampleDistinct() {
+        SubsetSampler sampler = new SubsetSampler( 20 );
+        SplittableRandomSource random = new SplittableRandomSource( 42L );
+        int[] buf = new int[20];
+        for ( int k = 0; k < 100; k++ ) {
+            sampler.sampleIndices( buf, random );
+            Set<Integer> seen = new HashSet<>();
+            for ( int i : buf ) {
+                assertTrue( i >= 0 && i < 20 );
+                seen.add( i );
+            }
+            assertEquals( 20, seen.size() );
+        }
+    }
+
+    @Test
+    public final void testSampleNext() {
+        int[] all = new int[15];
+        new SubsetSampler( 40 ).sampleIndices( all, new SplittableRandomSource( 7L ) );
+
+        SubsetSampler sampler = new SubsetSampler( 40 );
+        SplittableRandomSource random = new SplittableRandomSource( 7L );
+        for ( int k = 0; k < all.length; k++ ) {
+            assertEquals( all[k], sampler.sampleNext( k, random ) );
+        }
+    }
+
+    @Test
+    public final void testSampleReproducible() {
+        double[] values = new double[100];
+        for ( int i = 0; i < values.length; i++ ) {
+            values[i] = i;
+        }
+        double[] a = new double[10];
+        double[] b = new double[10];
+        new SubsetSampler( 100 ).sample( values, a, new SplittableRandomSource( 1L ) );
+        new SubsetSampler( 100 ).sample( values, b, new SplittableRandomSource( 1L ) );
+        assertArrayEquals( a, b, 0.0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testSampleTooMany() {
+        new SubsetSampler( 5 ).sampleIndices( new int[6], new SplittableRandomSource( 1L ) );
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ubic.erminej.data.GeneSetResult;
+import ubic.erminej.data.GeneSetTerm;
+import ubic.erminej.data.SplittableRandomSource;
+
+/**
+ * @version $Id$
+ */
+public class WestfallYoungEngineTest extends AbstractPvalGeneratorTest {
+
+    private static final int TRIALS = 1000;
+
+    private GeneSetResamplingPvalGenerator pvg;
+
+    private Map<GeneSetTerm, GeneSetResult> results;
+
+    private List<GeneSetTerm> sorted;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        s.setIterations( 1000 );
+        s.setRandomSeed( 1234L );
+        s.setNullDistributionCacheMB( 0 );
+        pvg = new GeneSetResamplingPvalGenerator( s, scores.getPrunedGeneAnnotations(), scores.getGeneToScoreMap(),
+                null );
+        results = pvg.generateGeneSetResults();
+
+        sorted = new ArrayList<>( results.keySet() );
+        Collections.sort( sorted, new Comparator<GeneSetTerm>() {
+            @Override
+            public int compare( GeneSetTerm o1, GeneSetTerm o2 ) {
+                return Double.compare( results.get( o1 ).getPvalue(), results.get( o2 ).getPvalue() );
+            }
+        } );
+        assertTrue( sorted.size() > 2 );
+    }
+
+    /**
+     * A set counts in a trial when the minimum permuted p-value from it to the worst set is at most its own p-value;
+     * the corrected p-values never decrease from the best set to the worst.
+     */
+    @Test
+    public void testCounts() {
+        // every trial counts for a set whose p-value is 1, none for one whose p-value is 0.
+        Map<GeneSetTerm, GeneSetResult> fixed = new HashMap<>();
+        for ( int j = 0; j < sorted.size(); j++ ) {
+            GeneSetTerm t = sorted.get( j );
+            fixed.put( t, new GeneSetResult( t, 0, 0, 0.0, j == 1 ? 0.0 : 1.0, 1.0, s ) );
+        }
+        double[] corrected = new WestfallYoungEngine( pvg, sorted, fixed ).correct( TRIALS, 1,
+                new SplittableRandomSource( 1L ), null );
+        assertEquals( 1.0, corrected[0], 0.0 );
+        assertEquals( 1.0, corrected[1], 0.0 ); // no trials, but not less than the set before it.
+        assertEquals( 1.0, corrected[sorted.size() - 1], 0.0 );
+
+        for ( int j = 0; j < sorted.size(); j++ ) {
+            GeneSetTerm t = sorted.get( j );
+            fixed.put( t, new GeneSetResult( t, 0, 0, 0.0, j == 0 ? 0.0 : 1.0, 1.0, s ) );
+        }
+        corrected = new WestfallYoungEngine( pvg, sorted, fixed ).correct( TRIALS, 1,
+                new SplittableRandomSource( 1L ), null );
+        assertEquals( 0.0, corrected[0], 0.0 );
+        assertEquals( 1.0, corrected[1], 0.0 );
+    }
+
+    @Test
+    public void testMonotone() {
+        double[] corrected = new WestfallYoungEngine( pvg, sorted, results ).correct( TRIALS, 1,
+                new SplittableRandomSource( 1L ), null );
+        assertEquals( sorted.size(), corrected.length );
+        for ( int j = 0; j < corrected.length; j++ ) {
+            assertTrue( corrected[j] >= 0.0 && corrected[j] <= 1.0 );
+            // a fraction of the trials
+            assertEquals( Math.rint( corrected[j] * TRIALS ), corrected[j] * TRIALS, 1e-9 );
+            if ( j > 0 ) assertTrue( corrected[j] >= corrected[j - 1] );
+        }
+    }
+
+    /**
+     * Each block of trials has its own random stream, so the result for a seed must not depend on the number of
+     * threads.
+     */
+    @Test
+    public void testSameForAnyNumberOfThreads() {
+        WestfallYoungEngine engine = new WestfallYoungEngine( pvg, sorted, results );
+        double[] sequential = engine.correct( TRIALS, 1, new SplittableRandomSource( 1L ), null );
+        double[] parallel = engine.correct( TRIALS, 4, new SplittableRandomSource( 1L ), null );
+        assertArrayEquals( sequential, parallel, 0.0 );
+    }
+
+}
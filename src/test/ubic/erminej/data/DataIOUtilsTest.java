@@ -0,0 +1,83 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @version $Id$
+ */
+public class DataIOUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public final void testReadAndSave() throws Exception {
+        File f = new File( folder.getRoot(), "data.txt" );
+        try (Writer w = new FileWriter( f )) {
+            w.write( "# a comment\n" );
+            w.write( "probe\tskipped\te1\te2\te3\n" );
+            w.write( "p1\t9\t1.0\t2.0\t3.0\n" );
+            w.write( "p2\t9\t4.0\tNA\t6.0\n" );
+            w.write( "unwanted\t9\t7.0\t8.0\t9.0\n" );
+            w.write( "p3\t9\t10.0\n" );
+            w.write( "p1\t9\t0.0\t0.0\t0.0\n" );
+        }
+        Set<String> wanted = new HashSet<>( Arrays.asList( "p1", "p2", "p3" ) );
+
+        List<String> rowNames = new ArrayList<>();
+        List<String> columnNames = new ArrayList<>();
+        double[][] values = DataIOUtils.read( f.getAbsolutePath(), 1, wanted, rowNames, columnNames );
+
+        assertEquals( Arrays.asList( "p1", "p2", "p3" ), rowNames );
+        assertEquals( Arrays.asList( "e1", "e2", "e3" ), columnNames );
+        assertArrayEquals( new double[] { 1.0, 2.0, 3.0 }, values[0], 0.0 );
+        assertArrayEquals( new double[] { 4.0, Double.NaN, 6.0 }, values[1], 0.0 );
+        assertArrayEquals( new double[] { 10.0, Double.NaN, Double.NaN }, values[2], 0.0 );
+        assertEquals( rowNames, DataIOUtils.readRowNames( f.getAbsolutePath(), wanted ) );
+
+        File saved = new File( folder.getRoot(), "data.bin" );
+        DataIOUtils.writeBinary( saved, values, rowNames, columnNames );
+
+        List<String> savedRowNames = new ArrayList<>();
+        List<String> savedColumnNames = new ArrayList<>();
+        double[][] restored = DataIOUtils.readBinary( saved, savedRowNames, savedColumnNames );
+        assertEquals( rowNames, savedRowNames );
+        List<String> namesOnly = new ArrayList<>();
+        DataIOUtils.readBinaryNames( saved, namesOnly, new ArrayList<String>() );
+        assertEquals( rowNames, namesOnly );
+        assertEquals( columnNames, savedColumnNames );
+        assertEquals( values.length, restored.length );
+        for ( int i = 0; i < values.length; i++ ) {
+            assertArrayEquals( values[i], restored[i], 0.0 );
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @version $Id$
+ */
+public class HistogramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public final void testKey() {
+        String k1 = new HistogramCache.KeyBuilder( "test" ).add( 10 ).add( new double[] { 1.0, 2.0 } ).build();
+        String k2 = new HistogramCache.KeyBuilder( "test" ).add( 10 ).add( new double[] { 1.0, 2.0 } ).build();
+        String k3 = new HistogramCache.KeyBuilder( "test" ).add( 10 ).add( new double[] { 2.0, 1.0 } ).build();
+        assertEquals( k1, k2 );
+        assertNotEquals( k1, k3 );
+    }
+
+    @Test
+    public final void testPutGet() throws Exception {
+        Histogram h = new Histogram( 3, 2, 100, 1.0, 0.0 );
+        for ( int i = 0; i < 100; i++ ) {
+            h.update( 2, i / 100.0 );
+            h.update( 3, i / 200.0 );
+        }
+        h.addExactNormalProbabilityComputer( 4, 0.5, 0.01 );
+        h.tocdf();
+
+        HistogramCache cache = new HistogramCache( folder.getRoot(), 1024 * 1024 );
+        assertNull( cache.get( "abc" ) );
+        cache.put( "abc", h );
+
+        Histogram restored = cache.get( "abc" );
+        assertNotNull( restored );
+        assertEquals( h.getNumBins(), restored.getNumBins() );
+        assertEquals( h.getValue( 2, 0.3, true ), restored.getValue( 2, 0.3, true ), 1e-15 );
+        assertEquals( h.getValue( 3, 0.3, false ), restored.getValue( 3, 0.3, false ), 1e-15 );
+        assertEquals( h.getValue( 4, 0.6, true ), restored.getValue( 4, 0.6, true ), 1e-15 );
+    }
+
+    @Test
+    public final void testDisabled() {
+        HistogramCache cache = new HistogramCache( folder.getRoot(), 0 );
+        cache.put( "abc", new Histogram( 1, 2, 10, 1.0, 0.0 ) );
+        assertNull( cache.get( "abc" ) );
+    }
+
+    @Test
+    public final void testEvict() throws Exception {
+        File oldest = folder.newFile( "a.corr" );
+        File older = folder.newFile( "b.corr" );
+        File newest = folder.newFile( "c.corr" );
+        File other = folder.newFile( "d.txt" );
+        for ( File f : new File[] { oldest, older, newest, other } ) {
+            Files.write( f.toPath(), new byte[100] );
+        }
+        oldest.setLastModified( 1000000000L );
+        older.setLastModified( 2000000000L );
+        newest.setLastModified( 3000000000L );
+
+        // the oldest is in use, so the next oldest goes instead.
+        HistogramCache.evict( folder.getRoot(), ".corr", 250, oldest );
+        assertTrue( oldest.exists() );
+        assertFalse( older.exists() );
+        assertTrue( newest.exists() );
+        assertTrue( other.exists() );
+
+        HistogramCache.evict( folder.getRoot(), ".corr", 100, null );
+        assertFalse( oldest.exists() );
+        assertTrue( newest.exists() );
+    }
+
+    @Test
+    public final void testEvictUnfinished() throws Exception {
+        File stale = folder.newFile( "hist1.tmp" );
+        File recent = folder.newFile( "hist2.tmp" );
+        stale.setLastModified( System.currentTimeMillis() - 2L * 24 * 60 * 60 * 1000 );
+
+        HistogramCache.evict( folder.getRoot(), ".hist.gz", 1024, null );
+        assertFalse( stale.exists() );
+        assertTrue( recent.exists() );
+    }
+
+    @Test
+    public final void testPutReplaces() throws Exception {
+        HistogramCache cache = new HistogramCache( folder.getRoot(), 1024 * 1024 );
+        cache.put( "abc", new Histogram( 1, 2, 10, 1.0, 0.0 ) );
+        cache.put( "abc", new Histogram( 1, 5, 10, 1.0, 0.0 ) );
+        assertEquals( 5, cache.get( "abc" ).getMinGeneSetSize() );
+
+        // only the saved histogram, no temporary files.
+        assertEquals( 1, folder.getRoot().list().length );
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.erminej.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class HistogramTest {
+
+    @Test
+    public final void testMerge() {
+        Histogram whole = new Histogram( 3, 2, 200, 1.0, 0.0 );
+        Histogram merged = new Histogram( 3, 2, 200, 1.0, 0.0 );
+        Histogram p2 = new Histogram( 1, 2, 200, 1.0, 0.0 );
+        Histogram p4 = new Histogram( 1, 4, 200, 1.0, 0.0 );
+        for ( int i = 0; i < 200; i++ ) {
+            whole.update( 2, i / 200.0 );
+            p2.update( 2, i / 200.0 );
+            whole.update( 4, i / 400.0 );
+            p4.update( 4, i / 400.0 );
+        }
+        merged.merge( p4 );
+        merged.merge( p2 );
+        whole.tocdf();
+        merged.tocdf();
+
+        assertEquals( 2, merged.getNumHistograms() );
+        for ( double x = 0.0; x < 1.0; x += 0.05 ) {
+            assertEquals( whole.getValue( 2, x, true ), merged.getValue( 2, x, true ), 1e-15 );
+            assertEquals( whole.getValue( 4, x, false ), merged.getValue( 4, x, false ), 1e-15 );
+            // size 3 has no distribution of its own and uses size 2.
+            assertEquals( whole.getValue( 2, x, true ), merged.getValue( 3, x, true ), 1e-15 );
+        }
+        assertEquals( 0.5, merged.getValue( 2, 0.5, true ), 1e-12 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testMergeOutOfRange() {
+        Histogram h = new Histogram( 3, 2, 200, 1.0, 0.0 );
+        h.merge( new Histogram( 1, 5, 200, 1.0, 0.0 ) );
+    }
+
+    /**
+     * Only a few of the sizes are sampled; the others are served by the nearest smaller sampled size, also after
+     * saving and reading back.
+     */
+    @Test
+    public final void testSparseCdf() throws Exception {
+        Histogram h = new Histogram( 200, 2, 100, 1.0, 0.0 );
+        for ( int i = 0; i < 100; i++ ) {
+            h.update( 2, i / 100.0 );
+            h.update( 50, i / 200.0 );
+            h.update( 150, i / 400.0 );
+        }
+        h.tocdf();
+        assertEquals( 3, h.getNumHistograms() );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        h.write( new DataOutputStream( bytes ) );
+        Histogram restored = Histogram.read( new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+        assertEquals( 3, restored.getNumHistograms() );
+
+        for ( double x = 0.0; x < 1.0; x += 0.05 ) {
+            assertEquals( h.getValue( 2, x, true ), h.getValue( 49, x, true ), 0.0 );
+            assertEquals( h.getValue( 50, x, true ), h.getValue( 149, x, true ), 0.0 );
+            for ( int size : new int[] { 2, 30, 50, 100, 150, 201 } ) {
+                assertEquals( h.getValue( size, x, true ), restored.getValue( size, x, true ), 0.0 );
+            }
+        }
+        assertEquals( 0.5, h.getValue( 2, 0.5, true ), 1e-12 );
+        assertEquals( 0.5, h.getValue( 50, 0.25, true ), 1e-12 );
+        assertEquals( 0.5, h.getValue( 150, 0.125, true ), 1e-12 );
+        assertArrayEquals( h.getHistogram( 150 ), restored.getHistogram( 160 ), 0.0 );
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * The ermineJ project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.erminej.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ */
+public class SplittableRandomSourceTest {
+
+    @Test
+    public final void testSameSeed() {
+        assertArrayEquals( draw( new SplittableRandomSource( 42L ) ), draw( new SplittableRandomSource( 42L ) ) );
+        assertFalse( Arrays.equals( draw( new SplittableRandomSource( 42L ) ),
+                draw( new SplittableRandomSource( 43L ) ) ) );
+    }
+
+    @Test
+    public final void testSplitReproducible() {
+        RandomSource a = new SplittableRandomSource( 7L );
+        RandomSource a1 = a.split();
+        RandomSource a2 = a.split();
+
+        RandomSource b = new SplittableRandomSource( 7L );
+        RandomSource b1 = b.split();
+        RandomSource b2 = b.split();
+
+        long[] a2Values = draw( a2 );
+        long[] a1Values = draw( a1 );
+        assertArrayEquals( a1Values, draw( b1 ) );
+        assertArrayEquals( a2Values, draw( b2 ) );
+        assertArrayEquals( draw( a ), draw( b ) );
+        assertFalse( Arrays.equals( a1Values, a2Values ) );
+    }
+
+    private long[] draw( RandomSource random ) {
+        long[] result = new long[20];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = random.nextLong();
+        }
+        return result;
+    }
+
+}
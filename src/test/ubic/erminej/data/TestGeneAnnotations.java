@@ -182,6 +182,38 @@ public class TestGeneAnnotations {
         assertEquals( expectedValue, actualValue );
     }
 
+    @Test
+    public void testGeneSetMembership() {
+        GeneSetMembership m = ga.getGeneSetMembership();
+        assertEquals( ga.numGenes(), m.numGenes() );
+
+        List<GeneSetTerm> terms = new ArrayList<>( ga.getGeneSetTerms() );
+        for ( GeneSetTerm t : terms ) {
+            long[] bits = m.getGeneSetGenes( t );
+            assertEquals( ga.numGenesInGeneSet( t ), GeneSetMembership.cardinality( bits ) );
+            assertEquals( ga.numElementsInGeneSet( t ), GeneSetMembership.cardinality( m.getGeneSetElements( t ) ) );
+            for ( Gene g : ga.getGeneSetGenes( t ) ) {
+                assertTrue( GeneSetMembership.contains( bits, m.getGeneId( g ) ) );
+                assertEquals( g, m.getGene( m.getGeneId( g ) ) );
+            }
+        }
+
+        GeneSetTerm t1 = terms.get( 0 );
+        GeneSetTerm t2 = terms.get( 1 );
+        Set<Gene> overlap = new HashSet<>( ga.getGeneSetGenes( t1 ) );
+        overlap.retainAll( ga.getGeneSetGenes( t2 ) );
+        assertEquals( overlap.size(),
+                GeneSetMembership.intersectionSize( m.getGeneSetGenes( t1 ), m.getGeneSetGenes( t2 ) ) );
+
+        // adding a set makes a new one.
+        List<Gene> newGeneSet = new ArrayList<>( ga.getGeneSetGenes( t1 ) );
+        GeneSetTerm term = new GeneSetTerm( "Foo" );
+        ga.addGeneSet( term, newGeneSet );
+        assertEquals( 0, m.getGeneSetGenes( term ).length );
+        assertEquals( newGeneSet.size(),
+                GeneSetMembership.cardinality( ga.getGeneSetMembership().getGeneSetGenes( term ) ) );
+    }
+
     @Test
     public void testGetParents() {
         GeneSetTerm t = ga.findTerm( "GO:0042246" );
@@ -220,6 +252,21 @@ public class TestGeneAnnotations {
                 cellComp.getDefinition() );
     }
 
+    @Test
+    public void testIgnoreSimilarReproducible() throws Exception {
+        GeneAnnotations other = new GeneAnnotationParser( goNames ).readDefault(
+                TestGeneAnnotations.class.getResourceAsStream( "/data/geneAnnotation.sample.txt" ), null, settings,
+                false );
+        int before = ga.numGeneSets();
+        assertEquals( before, other.numGeneSets() );
+
+        GeneSetMapTools.ignoreSimilar( 0.5, ga, null, 100, 2, 1.0, new SplittableRandomSource( 42L ) );
+        GeneSetMapTools.ignoreSimilar( 0.5, other, null, 100, 2, 1.0, new SplittableRandomSource( 42L ) );
+
+        assertTrue( ga.numGeneSets() < before );
+        assertEquals( ga.getGeneSetTerms(), other.getGeneSetTerms() );
+    }
+
     @Test
     @Deprecated
     public final void testReadAffyCsv() throws Exception {